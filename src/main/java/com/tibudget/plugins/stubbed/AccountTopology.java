@@ -0,0 +1,169 @@
+package com.tibudget.plugins.stubbed;
+
+import com.tibudget.dto.AccountDto;
+import com.tibudget.dto.PaymentDto;
+import com.tibudget.dto.PaymentMethodDto;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * A network of generated accounts of every {@link AccountDto.AccountDtoType}, with a transfer graph
+ * between them.
+ * <p>
+ * Accounts are identified by their ordinal in the topology. Each account has exactly {@code fanOut}
+ * distinct transfer targets (the spokes of a {@link Shape#STAR} all have the hub), stored in one flat
+ * {@code int[]}, so choosing a transfer is two array reads.
+ * Balance changes go to the {@link BalanceLedger} the topology is bound to.
+ */
+public class AccountTopology {
+
+	public enum Shape {
+		/**
+		 * Each account sends to {@code fanOut} random other accounts
+		 */
+		RANDOM,
+		/**
+		 * Each account sends to the {@code fanOut} next accounts
+		 */
+		RING,
+		/**
+		 * Account 0 is a hub: it sends to {@code fanOut} random accounts and every other account sends to it
+		 */
+		STAR
+	}
+
+	private static final AccountDto.AccountDtoType[] TYPES = AccountDto.AccountDtoType.values();
+
+	private final AccountDto[] accounts;
+
+	private final int fanOut;
+
+	private final Shape shape;
+
+	private final int[] targets;
+
+	private BalanceLedger ledger;
+
+	/**
+	 * Ordinal of the first account of the topology in the ledger
+	 */
+	private int ledgerBase;
+
+	/**
+	 * @param accountCount  number of accounts, at least 2
+	 * @param fanOut        number of transfer targets of each account
+	 * @param shape         shape of the transfer graph
+	 * @param seed          seed of the graph and of the initial balances
+	 * @param currency      currency of all the accounts
+	 * @param counterparty  counterparty UUID of the accounts
+	 * @param timeZoneId    time zone of the accounts
+	 */
+	public AccountTopology(int accountCount, int fanOut, Shape shape, long seed, String currency, String counterparty, String timeZoneId) {
+		if (accountCount < 2) {
+			throw new IllegalArgumentException("accountCount must be at least 2: " + accountCount);
+		}
+		if (fanOut < 1 || fanOut >= accountCount) {
+			throw new IllegalArgumentException("fanOut must be between 1 and " + (accountCount - 1) + ": " + fanOut);
+		}
+		this.fanOut = fanOut;
+		this.shape = shape;
+		this.accounts = new AccountDto[accountCount];
+		this.targets = new int[accountCount * fanOut];
+
+		SplittableRandom random = new SplittableRandom(seed);
+		for (int i = 0; i < accountCount; i++) {
+			AccountDto.AccountDtoType type = TYPES[i % TYPES.length];
+			double initialBalance = Math.round(random.nextDouble() * 500000.0) / 100.0;
+			AccountDto account = new AccountDto(type, "Network " + type.name().toLowerCase() + " #" + i, counterparty, currency, timeZoneId, initialBalance);
+			account.setId(String.format("STUBBED_NET_%05d", i));
+			account.setTimeZoneId(timeZoneId);
+			account.addPaymentMethod(new PaymentMethodDto(PaymentDto.PaymentDtoType.TRANSFER));
+			accounts[i] = account;
+		}
+		for (int i = 0; i < accountCount; i++) {
+			int offset = i * fanOut;
+			if (shape == Shape.RANDOM || shape == Shape.STAR && i == 0) {
+				randomTargets(i, offset, accountCount, random);
+			}
+			else {
+				for (int k = 0; k < fanOut; k++) {
+					targets[offset + k] = shape == Shape.RING ? (i + k + 1) % accountCount : 0;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Draws {@code fanOut} distinct accounts other than the source, with Floyd's sampling: one draw per target.
+	 */
+	private void randomTargets(int source, int offset, int accountCount, SplittableRandom random) {
+		// Candidates are the ordinals of the other accounts, with the source skipped
+		int others = accountCount - 1;
+		int count = 0;
+		for (int j = others - fanOut; j < others; j++) {
+			int candidate = random.nextInt(j + 1);
+			for (int k = 0; k < count; k++) {
+				if (targets[offset + k] == candidate) {
+					candidate = j;
+					break;
+				}
+			}
+			targets[offset + count++] = candidate;
+		}
+		for (int k = 0; k < fanOut; k++) {
+			if (targets[offset + k] >= source) {
+				targets[offset + k]++;
+			}
+		}
+	}
+
+	public int size() {
+		return accounts.length;
+	}
+
+	public AccountDto account(int ordinal) {
+		return accounts[ordinal];
+	}
+
+	public List<AccountDto> getAccounts() {
+		List<AccountDto> list = new ArrayList<>(accounts.length);
+		Collections.addAll(list, accounts);
+		return list;
+	}
+
+	/**
+	 * @return the {@code k}-th transfer target of the account
+	 */
+	public int target(int source, int k) {
+		return targets[source * fanOut + k];
+	}
+
+	public int fanOut() {
+		return fanOut;
+	}
+
+	public Shape shape() {
+		return shape;
+	}
+
+	/**
+	 * Registers the accounts in the ledger that will receive their balance changes.
+	 */
+	void bind(BalanceLedger ledger) {
+		this.ledger = ledger;
+		this.ledgerBase = ledger.register(accounts[0]);
+		for (int i = 1; i < accounts.length; i++) {
+			ledger.register(accounts[i]);
+		}
+	}
+
+	/**
+	 * Adds cents (negative for a debit) to the balance of the account. Thread safe.
+	 */
+	void addCents(int ordinal, long amountInCents, long time) {
+		ledger.addCents(ledgerBase + ordinal, amountInCents, time);
+	}
+}
@@ -0,0 +1,364 @@
+package com.tibudget.plugins.stubbed;
+
+import com.tibudget.dto.AccountDto;
+import com.tibudget.dto.TransactionDto;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Daily balance of each account and daily totals of each transaction type and currency, generated with the
+ * transactions so that a host can check the curves and aggregates it computes.
+ * <p>
+ * Generation adds each balance change and transaction to the bucket of its day, without locks. When it is
+ * over, one pass of prefix sums over the days turns the changes into end-of-day balances. Until then the
+ * balances and totals are partial, reading them throws an {@link IllegalStateException}, see
+ * {@link #isComplete()}. The days, accounts and currencies are known from the start: a transaction is in
+ * the currency of its account, and amounts are totalled in their own currency, never converted. Balances follow
+ * the {@link BalanceLedger}: the last day is the balance of {@link StubbedCollector#getAccounts()}. Dates
+ * outside of the collect range go to its first or last day. Amounts too large for cents (the deliberately
+ * absurd error amounts) are kept apart, as by the ledger.
+ */
+public final class BalanceHistory {
+
+	private static final TransactionDto.TransactionDtoType[] TYPES = TransactionDto.TransactionDtoType.values();
+
+	private static final double MAX_EXACT_CENTS = 9007199254740992.0; // 2^53
+
+	private final LocalDate firstDay;
+
+	/**
+	 * Start of each day in the zone of the collector, and end of the last one
+	 */
+	private final long[] dayStarts;
+
+	private final int days;
+
+	private final List<String> accountIds;
+
+	private final Map<String, Integer> accountOrdinals = new HashMap<>();
+
+	/**
+	 * Currencies of the accounts, {@link FxRateTable#BASE} for an account without one
+	 */
+	private final List<String> currencies;
+
+	private final Map<String, Integer> currencyOrdinals = new HashMap<>();
+
+	private final long[] openingCents;
+
+	private final double[] openingResiduals;
+
+	/**
+	 * Balance changes in cents by account then day, end-of-day balances once complete
+	 */
+	private final AtomicLongArray balanceCents;
+
+	/**
+	 * Changes that cannot be expressed in cents, by account then day, rare enough to be synchronized
+	 */
+	private final double[] balanceResiduals;
+
+	/**
+	 * Number of transactions and sum of their amounts in cents, by day, currency then type
+	 */
+	private final AtomicLongArray typeCounts;
+
+	private final AtomicLongArray typeCents;
+
+	private final AtomicLongArray typeOverflows;
+
+	private volatile boolean complete;
+
+	/**
+	 * @param accounts         accounts in ledger order
+	 * @param openingCents     balance of each account before the first change, in cents
+	 * @param openingResiduals part of the opening balances not representable in cents
+	 * @param begin            first instant of the collect range
+	 * @param end              last instant of the collect range
+	 */
+	BalanceHistory(List<AccountDto> accounts, long[] openingCents, double[] openingResiduals, long begin, long end) {
+		this.firstDay = LocalDate.ofInstant(Instant.ofEpochMilli(begin), StubbedCollector.ZONE);
+		LocalDate lastDay = LocalDate.ofInstant(Instant.ofEpochMilli(Math.max(begin, end)), StubbedCollector.ZONE);
+		this.days = (int) (lastDay.toEpochDay() - firstDay.toEpochDay()) + 1;
+		this.dayStarts = new long[days + 1];
+		for (int i = 0; i <= days; i++) {
+			dayStarts[i] = firstDay.plusDays(i).atStartOfDay(StubbedCollector.ZONE).toInstant().toEpochMilli();
+		}
+		List<String> ids = new ArrayList<>(accounts.size());
+		for (AccountDto account : accounts) {
+			accountOrdinals.put(account.getId(), ids.size());
+			ids.add(account.getId());
+		}
+		this.accountIds = Collections.unmodifiableList(ids);
+		List<String> codes = new ArrayList<>();
+		for (AccountDto account : accounts) {
+			String currency = currencyOf(account.getCurrencyCode());
+			if (!currencyOrdinals.containsKey(currency)) {
+				currencyOrdinals.put(currency, codes.size());
+				codes.add(currency);
+			}
+		}
+		this.currencies = Collections.unmodifiableList(codes);
+		this.openingCents = openingCents.clone();
+		this.openingResiduals = openingResiduals.clone();
+		this.balanceCents = new AtomicLongArray(accounts.size() * days);
+		this.balanceResiduals = new double[accounts.size() * days];
+		this.typeCounts = new AtomicLongArray(days * codes.size() * TYPES.length);
+		this.typeCents = new AtomicLongArray(days * codes.size() * TYPES.length);
+		this.typeOverflows = new AtomicLongArray(days * codes.size() * TYPES.length);
+	}
+
+	private static String currencyOf(String currencyCode) {
+		return currencyCode == null ? FxRateTable.BASE : currencyCode;
+	}
+
+	/**
+	 * @return the day of an instant, clamped to the collect range
+	 */
+	int dayOf(long time) {
+		int low = 0;
+		int high = days - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (dayStarts[middle] <= time) {
+				low = middle;
+			}
+			else {
+				high = middle - 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Records a balance change of the account of the ledger with this ordinal. Thread safe.
+	 */
+	void addCents(int ordinal, long time, long amountInCents) {
+		checkRecording();
+		if (ordinal < openingCents.length) {
+			balanceCents.getAndAdd(ordinal * days + dayOf(time), amountInCents);
+		}
+	}
+
+	/**
+	 * Records a balance change not representable in cents. Thread safe.
+	 */
+	synchronized void addResidual(int ordinal, long time, double amount) {
+		checkRecording();
+		if (ordinal < openingCents.length) {
+			balanceResiduals[ordinal * days + dayOf(time)] += amount;
+		}
+	}
+
+	/**
+	 * Adds generated transactions to the totals of their day, currency and type. Thread safe.
+	 */
+	void addTransactions(List<TransactionDto> transactions) {
+		checkRecording();
+		for (int i = 0; i < transactions.size(); i++) {
+			TransactionDto transaction = transactions.get(i);
+			if (transaction.getDateTransaction() == null || transaction.getType() == null) {
+				// Error injected on purpose, it has no day
+				continue;
+			}
+			Integer currency = currencyOrdinals.get(currencyOf(transaction.getCurrencyCode()));
+			if (currency == null) {
+				// Not the currency of an account of the ledger, a transaction of an unregistered account
+				continue;
+			}
+			int cell = typeCell(dayOf(transaction.getDateTransaction().getTime()), currency, transaction.getType());
+			typeCounts.incrementAndGet(cell);
+			double amountInCents = transaction.getAmount() * 100.0;
+			if (Math.abs(amountInCents) < MAX_EXACT_CENTS) {
+				typeCents.getAndAdd(cell, Math.round(amountInCents));
+			}
+			else {
+				typeOverflows.incrementAndGet(cell);
+			}
+		}
+	}
+
+	/**
+	 * Turns the daily changes into end-of-day balances, once generation is over. Must not run concurrently
+	 * with the add methods, which throw afterwards.
+	 */
+	synchronized void complete() {
+		if (complete) {
+			return;
+		}
+		for (int account = 0; account < openingCents.length; account++) {
+			long cents = openingCents[account];
+			double residual = openingResiduals[account];
+			for (int day = 0; day < days; day++) {
+				int cell = account * days + day;
+				cents += balanceCents.get(cell);
+				residual += balanceResiduals[cell];
+				balanceCents.set(cell, cents);
+				balanceResiduals[cell] = residual;
+			}
+		}
+		complete = true;
+	}
+
+	/**
+	 * @return true once generation is over and the balances and totals can be read
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+
+	public LocalDate getFirstDay() {
+		return firstDay;
+	}
+
+	public LocalDate getLastDay() {
+		return firstDay.plusDays(days - 1L);
+	}
+
+	public int getDayCount() {
+		return days;
+	}
+
+	/**
+	 * @return ids of the accounts with a balance history
+	 */
+	public List<String> getAccountIds() {
+		return accountIds;
+	}
+
+	/**
+	 * @return the balance of the account at the end of the day, in cents, not counting the amounts not
+	 * representable in cents
+	 * @throws IllegalArgumentException if the account or day is not in the history
+	 * @throws IllegalStateException    if generation is not over
+	 */
+	public long getBalanceCents(String accountId, LocalDate day) {
+		checkComplete();
+		return balanceCents.get(cell(accountId, day));
+	}
+
+	/**
+	 * @return the balance of the account at the end of the day
+	 * @throws IllegalArgumentException if the account or day is not in the history
+	 * @throws IllegalStateException    if generation is not over
+	 */
+	public double getBalance(String accountId, LocalDate day) {
+		checkComplete();
+		int cell = cell(accountId, day);
+		return Cents.toDouble(balanceCents.get(cell)) + balanceResiduals[cell];
+	}
+
+	/**
+	 * @return the end-of-day balances of the account, from the first day to the last one
+	 * @throws IllegalArgumentException if the account is not in the history
+	 * @throws IllegalStateException    if generation is not over
+	 */
+	public double[] getDailyBalances(String accountId) {
+		checkComplete();
+		int first = cell(accountId, firstDay);
+		double[] balances = new double[days];
+		for (int day = 0; day < days; day++) {
+			balances[day] = Cents.toDouble(balanceCents.get(first + day)) + balanceResiduals[first + day];
+		}
+		return balances;
+	}
+
+	/**
+	 * @return the currencies of the totals, those of the accounts
+	 */
+	public List<String> getCurrencies() {
+		return currencies;
+	}
+
+	/**
+	 * @return the number of transactions of the type dated on that day, in any currency
+	 * @throws IllegalArgumentException if the day is not in the history
+	 * @throws IllegalStateException    if generation is not over
+	 */
+	public long getCount(LocalDate day, TransactionDto.TransactionDtoType type) {
+		long count = 0;
+		for (String currency : currencies) {
+			count += getCount(day, type, currency);
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of transactions of the type and currency dated on that day
+	 * @throws IllegalArgumentException if the day or currency is not in the history
+	 * @throws IllegalStateException    if generation is not over
+	 */
+	public long getCount(LocalDate day, TransactionDto.TransactionDtoType type, String currency) {
+		checkComplete();
+		return typeCounts.get(typeCell(dayIndex(day), currencyIndex(currency), type));
+	}
+
+	/**
+	 * @return the sum in cents of the amounts of the transactions of the type and currency dated on that day,
+	 * amounts not representable in cents excluded
+	 * @throws IllegalArgumentException if the day or currency is not in the history
+	 * @throws IllegalStateException    if generation is not over
+	 */
+	public long getTotalCents(LocalDate day, TransactionDto.TransactionDtoType type, String currency) {
+		checkComplete();
+		return typeCents.get(typeCell(dayIndex(day), currencyIndex(currency), type));
+	}
+
+	/**
+	 * @return the number of transactions of the type and currency on that day whose amount is not
+	 * representable in cents
+	 * @throws IllegalArgumentException if the day or currency is not in the history
+	 * @throws IllegalStateException    if generation is not over
+	 */
+	public long getOverflowCount(LocalDate day, TransactionDto.TransactionDtoType type, String currency) {
+		checkComplete();
+		return typeOverflows.get(typeCell(dayIndex(day), currencyIndex(currency), type));
+	}
+
+	private void checkRecording() {
+		if (complete) {
+			throw new IllegalStateException("Balance history changed after the end of generation");
+		}
+	}
+
+	private void checkComplete() {
+		if (!complete) {
+			throw new IllegalStateException("Balance history read before the end of generation");
+		}
+	}
+
+	private int cell(String accountId, LocalDate day) {
+		Integer ordinal = accountOrdinals.get(accountId);
+		if (ordinal == null) {
+			throw new IllegalArgumentException("No balance history for account " + accountId);
+		}
+		return ordinal * days + dayIndex(day);
+	}
+
+	private int typeCell(int day, int currency, TransactionDto.TransactionDtoType type) {
+		return (day * currencies.size() + currency) * TYPES.length + type.ordinal();
+	}
+
+	private int currencyIndex(String currency) {
+		Integer ordinal = currencyOrdinals.get(currency);
+		if (ordinal == null) {
+			throw new IllegalArgumentException("No totals in currency " + currency + ", only in " + currencies);
+		}
+		return ordinal;
+	}
+
+	private int dayIndex(LocalDate day) {
+		long index = day.toEpochDay() - firstDay.toEpochDay();
+		if (index < 0 || index >= days) {
+			throw new IllegalArgumentException(day + " is not within " + firstDay + " and " + getLastDay());
+		}
+		return (int) index;
+	}
+}
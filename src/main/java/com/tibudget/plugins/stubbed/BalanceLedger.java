@@ -0,0 +1,205 @@
+package com.tibudget.plugins.stubbed;
+
+import com.tibudget.dto.AccountDto;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Accumulates balance changes of accounts without locks, so generators can run on several threads.
+ * <p>
+ * Balances are kept in fixed-point {@link Cents}: the balance of an account at registration plus one
+ * striped {@link LongAdder} of pending changes, which makes the sum exact whatever the order of the
+ * additions. Amounts too large to be represented exactly in cents (the deliberately absurd error
+ * amounts, and the balances they leave on the accounts) go to a separate {@link DoubleAdder} and are
+ * reported as a residual, see {@link #getResidualAccountCount()}. Balances are written to the
+ * {@link AccountDto}s by {@link #flush()}, which must be called once generation is over.
+ * <p>
+ * Changes are dated, so that a {@link BalanceHistory} started on the ledger also gets them by day.
+ */
+final class BalanceLedger {
+
+	private static final Logger LOG = Logger.getLogger(BalanceLedger.class.getName());
+
+	/**
+	 * Largest amount of cents for which a double is still exact
+	 */
+	private static final double MAX_EXACT_CENTS = 9007199254740992.0; // 2^53
+
+	private final List<AccountDto> accounts = new ArrayList<>();
+
+	private final Map<AccountDto, Integer> ordinals = new IdentityHashMap<>();
+
+	private long[] balances = new long[0];
+
+	/**
+	 * Part of the balances that cannot be represented in cents: sub-cent initial balances and overflows
+	 */
+	private double[] residuals = new double[0];
+
+	private LongAdder[] cents = new LongAdder[0];
+
+	private DoubleAdder[] overflows = new DoubleAdder[0];
+
+	private volatile BalanceHistory history;
+
+	private volatile int residualAccountCount;
+
+	/**
+	 * Registers an account, before any concurrent use of the ledger.
+	 *
+	 * @return the ordinal of the account in the ledger
+	 */
+	synchronized int register(AccountDto account) {
+		Integer existing = ordinals.get(account);
+		if (existing != null) {
+			return existing;
+		}
+		int ordinal = accounts.size();
+		accounts.add(account);
+		ordinals.put(account, ordinal);
+		if (ordinal == cents.length) {
+			int capacity = Math.max(8, ordinal * 2);
+			balances = Arrays.copyOf(balances, capacity);
+			residuals = Arrays.copyOf(residuals, capacity);
+			cents = Arrays.copyOf(cents, capacity);
+			overflows = Arrays.copyOf(overflows, capacity);
+		}
+		double balance = account.getCurrentBalance();
+		if (Math.abs(balance * 100.0) < MAX_EXACT_CENTS) {
+			balances[ordinal] = Cents.of(balance);
+			residuals[ordinal] = balance - Cents.toDouble(balances[ordinal]);
+		}
+		else {
+			// Left by an overflow of a previous ledger, Cents.of() would saturate
+			balances[ordinal] = 0;
+			residuals[ordinal] = balance;
+		}
+		cents[ordinal] = new LongAdder();
+		overflows[ordinal] = new DoubleAdder();
+		return ordinal;
+	}
+
+	/**
+	 * @return the ordinal of a registered account
+	 */
+	int ordinalOf(AccountDto account) {
+		Integer ordinal = ordinals.get(account);
+		if (ordinal == null) {
+			throw new IllegalArgumentException("Account not registered in the ledger: " + account.getId());
+		}
+		return ordinal;
+	}
+
+	/**
+	 * Starts recording the changes by day, from the current balances of the registered accounts.
+	 *
+	 * @param begin first instant of the days of the history
+	 * @param end   last instant of the days of the history
+	 */
+	synchronized BalanceHistory startHistory(long begin, long end) {
+		long[] openingCents = new long[accounts.size()];
+		double[] openingResiduals = new double[accounts.size()];
+		for (int i = 0; i < accounts.size(); i++) {
+			openingCents[i] = balances[i] + cents[i].sum();
+			openingResiduals[i] = residuals[i] + overflows[i].sum();
+		}
+		history = new BalanceHistory(accounts, openingCents, openingResiduals, begin, end);
+		return history;
+	}
+
+	void stopHistory() {
+		history = null;
+	}
+
+	/**
+	 * Adds cents (negative for a debit) to an account. Thread safe.
+	 *
+	 * @param time date of the change
+	 */
+	void addCents(int ordinal, long amountInCents, long time) {
+		cents[ordinal].add(amountInCents);
+		BalanceHistory recording = history;
+		if (recording != null) {
+			recording.addCents(ordinal, time, amountInCents);
+		}
+	}
+
+	/**
+	 * Adds an amount (negative for a debit) to an account. Thread safe.
+	 *
+	 * @param time date of the change
+	 */
+	void add(int ordinal, double amount, long time) {
+		double amountInCents = amount * 100.0;
+		if (Math.abs(amountInCents) < MAX_EXACT_CENTS) {
+			addCents(ordinal, Math.round(amountInCents), time);
+		}
+		else {
+			overflows[ordinal].add(amount);
+			BalanceHistory recording = history;
+			if (recording != null) {
+				recording.addResidual(ordinal, time, amount);
+			}
+		}
+	}
+
+	void add(AccountDto account, double amount, long time) {
+		add(ordinalOf(account), amount, time);
+	}
+
+	void addCents(AccountDto account, long amountInCents, long time) {
+		addCents(ordinalOf(account), amountInCents, time);
+	}
+
+	/**
+	 * @return the exact balance of an account in cents, pending changes included
+	 */
+	long balanceCents(int ordinal) {
+		return balances[ordinal] + cents[ordinal].sum();
+	}
+
+	/**
+	 * Writes the exact balances to the accounts. Any part that cannot be expressed in cents is
+	 * reported and added as is. Must not run concurrently with the add methods.
+	 *
+	 * @return the number of accounts with a residual
+	 */
+	synchronized int flush() {
+		StubbedEvents.LedgerFlush event = new StubbedEvents.LedgerFlush();
+		event.begin();
+		int withResidual = 0;
+		for (int i = 0; i < accounts.size(); i++) {
+			balances[i] += cents[i].sumThenReset();
+			residuals[i] += overflows[i].sumThenReset();
+			AccountDto account = accounts.get(i);
+			account.setCurrentBalance(Cents.toDouble(balances[i]) + residuals[i]);
+			if (residuals[i] != 0.0) {
+				withResidual++;
+				LOG.log(Level.FINE, "Balance of " + account.getId() + " has a residual of " + residuals[i] + " not representable in cents");
+			}
+		}
+		residualAccountCount = withResidual;
+		event.end();
+		if (event.shouldCommit()) {
+			event.accountCount = accounts.size();
+			event.residualAccountCount = withResidual;
+			event.commit();
+		}
+		return withResidual;
+	}
+
+	/**
+	 * @return the number of accounts whose balance had a part not representable in cents at the last flush
+	 */
+	int getResidualAccountCount() {
+		return residualAccountCount;
+	}
+}
@@ -0,0 +1,44 @@
+package com.tibudget.plugins.stubbed;
+
+import java.util.Random;
+import java.util.SplittableRandom;
+
+/**
+ * Fixed-point amounts: the generation engine works on {@code long} cents and only converts to the
+ * {@code double} of the DTOs at the boundary. Sums of cents are exact and allocation free, whatever
+ * their order or number.
+ */
+final class Cents {
+
+	/**
+	 * Smallest generated price: 1.00
+	 */
+	static final long MIN_PRICE = 100;
+
+	/**
+	 * Largest generated price: 499.99
+	 */
+	static final long MAX_PRICE = 49999;
+
+	private Cents() {
+	}
+
+	/**
+	 * @return the amount rounded to the nearest cent
+	 */
+	static long of(double amount) {
+		return Math.round(amount * 100.0);
+	}
+
+	static double toDouble(long cents) {
+		return cents / 100.0;
+	}
+
+	static long randomPrice(Random random) {
+		return MIN_PRICE + random.nextInt((int) (MAX_PRICE - MIN_PRICE + 1));
+	}
+
+	static long randomPrice(SplittableRandom random) {
+		return MIN_PRICE + random.nextInt((int) (MAX_PRICE - MIN_PRICE + 1));
+	}
+}
@@ -0,0 +1,167 @@
+package com.tibudget.plugins.stubbed;
+
+import com.tibudget.plugins.stubbed.StubbedCollector.Type;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Error-storm mode of the collector: each attempt (a validate and the collect that follows) fails in a way
+ * drawn from a weighted mix, so a host retrying in a loop sees thousands of failures per second and its
+ * error logging and retry queues can be sized.
+ * <p>
+ * The mix is written {@code ERR_CollectError=40,ERR_TemporaryUnavailable=30,ERR_RuntimeValidate=10,OPERATIONS=5},
+ * any {@link Type} can appear, {@code OPERATIONS} being a successful collect. Without stack traces, each
+ * attempt still gets its own error, of an anonymous subclass of the usual type that does not fill in its
+ * stack trace, which is most of the cost of throwing. See {@link ErrorStormRunner} to play a storm.
+ */
+public final class ErrorStorm {
+
+	private static final Type[] TYPES = Type.values();
+
+	private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+	private final String mix;
+
+	/**
+	 * Cumulative weights of the types, in ordinal order
+	 */
+	private final int[] thresholds;
+
+	final boolean stackTraces;
+
+	private final AtomicLongArray counts = new AtomicLongArray(TYPES.length);
+
+	private long firstAttempt;
+
+	private long lastAttempt;
+
+	private long attempts;
+
+	private long currentSecond;
+
+	private long currentSecondAttempts;
+
+	private long peakPerSecond;
+
+	private ErrorStorm(String mix, int[] thresholds, boolean stackTraces) {
+		this.mix = mix;
+		this.thresholds = thresholds;
+		this.stackTraces = stackTraces;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the mix is invalid
+	 */
+	static ErrorStorm parse(String mix, boolean stackTraces) {
+		int[] weights = new int[TYPES.length];
+		for (String part : mix.split(",")) {
+			if (part.trim().isEmpty()) {
+				continue;
+			}
+			int equals = part.indexOf('=');
+			if (equals < 0) {
+				throw new IllegalArgumentException("Expected TYPE=weight: " + part.trim());
+			}
+			Type type;
+			int weight;
+			try {
+				type = Type.valueOf(part.substring(0, equals).trim());
+				weight = Integer.parseInt(part.substring(equals + 1).trim());
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Invalid entry: " + part.trim(), e);
+			}
+			if (weight < 0) {
+				throw new IllegalArgumentException("Weight must not be negative: " + part.trim());
+			}
+			weights[type.ordinal()] += weight;
+		}
+		int[] thresholds = new int[TYPES.length];
+		int total = 0;
+		for (int i = 0; i < TYPES.length; i++) {
+			total += weights[i];
+			thresholds[i] = total;
+		}
+		if (total <= 0) {
+			throw new IllegalArgumentException("At least one weight must be positive");
+		}
+		return new ErrorStorm(mix, thresholds, stackTraces);
+	}
+
+	String getMix() {
+		return mix;
+	}
+
+	/**
+	 * Starts an attempt.
+	 *
+	 * @return how the attempt fails
+	 */
+	Type nextAttempt(Random random) {
+		int draw = random.nextInt(thresholds[thresholds.length - 1]);
+		Type type = TYPES[TYPES.length - 1];
+		for (int i = 0; i < thresholds.length; i++) {
+			if (draw < thresholds[i]) {
+				type = TYPES[i];
+				break;
+			}
+		}
+		counts.incrementAndGet(type.ordinal());
+		record(System.nanoTime());
+		return type;
+	}
+
+	private synchronized void record(long now) {
+		if (attempts == 0) {
+			firstAttempt = now;
+			currentSecond = now / NANOS_PER_SECOND;
+		}
+		attempts++;
+		lastAttempt = now;
+		long second = now / NANOS_PER_SECOND;
+		if (second != currentSecond) {
+			currentSecond = second;
+			currentSecondAttempts = 0;
+		}
+		peakPerSecond = Math.max(peakPerSecond, ++currentSecondAttempts);
+	}
+
+	public synchronized long getAttempts() {
+		return attempts;
+	}
+
+	public long getAttempts(Type type) {
+		return counts.get(type.ordinal());
+	}
+
+	/**
+	 * @return the average rate of attempts the host sustained, from the first attempt to the last one
+	 */
+	public synchronized double getAttemptsPerSecond() {
+		if (attempts < 2 || lastAttempt == firstAttempt) {
+			return 0;
+		}
+		return (attempts - 1) * (double) NANOS_PER_SECOND / (lastAttempt - firstAttempt);
+	}
+
+	/**
+	 * @return the largest number of attempts started within one second of the clock
+	 */
+	public synchronized long getPeakAttemptsPerSecond() {
+		return peakPerSecond;
+	}
+
+	@Override
+	public String toString() {
+		List<String> perType = new ArrayList<>();
+		for (Type type : TYPES) {
+			if (getAttempts(type) > 0) {
+				perType.add(type.name() + "=" + getAttempts(type));
+			}
+		}
+		return String.format("%d attempts, %.0f/s on average, %d/s at peak, stack traces %s: %s",
+				getAttempts(), getAttemptsPerSecond(), getPeakAttemptsPerSecond(), stackTraces ? "on" : "off", perType);
+	}
+}
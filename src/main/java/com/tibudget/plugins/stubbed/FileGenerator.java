@@ -1,15 +1,32 @@
 package com.tibudget.plugins.stubbed;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class FileGenerator {
 
     private static final String RESOURCE_PATH = "samples/"; // Path to the images folder in resources
-    private static final Random RANDOM = new Random();
+    private static final Random RANDOM = GenerationRandom.INSTANCE;
 
     public static final String[] IMAGE_FILES = {
             "image_produit_01.avif",
@@ -20,6 +37,122 @@ public class FileGenerator {
             "image_produit_06.jpg"
     };
 
+    private static final String INVOICE_FILE = "invoice.pdf";
+
+    /**
+     * Content of the samples already read from the JAR
+     */
+    private static final Map<String, byte[]> SAMPLES = new ConcurrentHashMap<>();
+
+    /**
+     * Samples extracted once to a file, to be sent as is
+     */
+    private static final Map<String, Path> SAMPLE_FILES = new ConcurrentHashMap<>();
+
+    /**
+     * Number of files registered with {@link File#deleteOnExit()}, they stay in memory until the JVM exits
+     */
+    private static final AtomicInteger DELETE_ON_EXIT_COUNT = new AtomicInteger();
+
+    static int deleteOnExitCount() {
+        return DELETE_ON_EXIT_COUNT.get();
+    }
+
+    /**
+     * Directory of the attachment files, named after the process so that every class loader of the
+     * plugin uses the same one, see {@link Attachments}
+     */
+    private static final Path ATTACHMENT_DIRECTORY = Paths.get(System.getProperty("java.io.tmpdir"),
+            "tibu_attachments_" + ProcessHandle.current().pid());
+
+    /**
+     * Attachment slots freed by {@link Attachments#clear()}, by file extension, reused before new ones
+     */
+    private static final Map<String, Queue<Integer>> FREE_SLOTS = new ConcurrentHashMap<>();
+
+    private static final AtomicInteger NEXT_SLOT = new AtomicInteger();
+
+    /**
+     * Attachment file names already registered with {@link File#deleteOnExit()}
+     */
+    private static final Set<String> REGISTERED_SLOTS = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @return the names of all the samples
+     */
+    static List<String> sampleNames() {
+        List<String> names = new ArrayList<>(Arrays.asList(IMAGE_FILES));
+        names.add(INVOICE_FILE);
+        return names;
+    }
+
+    /**
+     * @param name name of a sample, see {@link #sampleNames()}
+     * @return a file with the content of the sample, extracted on first call and shared afterwards.
+     * It is extracted again if someone deleted it
+     */
+    static Path sampleFile(String name) throws IOException {
+        if (!sampleNames().contains(name)) {
+            throw new IOException("Unknown sample: " + name);
+        }
+        try {
+            Path path = SAMPLE_FILES.computeIfAbsent(name, FileGenerator::extractSample);
+            while (!Files.isRegularFile(path)) {
+                SAMPLE_FILES.remove(name, path);
+                path = SAMPLE_FILES.computeIfAbsent(name, FileGenerator::extractSample);
+            }
+            return path;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static Path extractSample(String name) {
+        try {
+            return copyResourceToTempFile(RESOURCE_PATH + name).toPath();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads all the samples in memory, so the first purchases do not open the JAR.
+     */
+    static void preload() {
+        for (String image : IMAGE_FILES) {
+            sample(RESOURCE_PATH + image);
+        }
+        sample(RESOURCE_PATH + INVOICE_FILE);
+    }
+
+    private static byte[] sample(String resourceName) {
+        return SAMPLES.computeIfAbsent(resourceName, name -> {
+            try {
+                return readResource(name);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private static byte[] readResource(String resourceName) throws IOException {
+        try (InputStream inputStream = FileGenerator.class.getClassLoader().getResourceAsStream(resourceName)) {
+            if (inputStream == null) {
+                throw new IOException("Resource not found on classpath: " + resourceName);
+            }
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int bytesRead;
+            while ((bytesRead = inputStream.read(buffer)) != -1) {
+                content.write(buffer, 0, bytesRead);
+            }
+            return content.toByteArray();
+        }
+    }
+
+    /**
+     * @return a new temporary copy of a random image, deleted when the JVM exits
+     */
     public static File getRandomImageFile() throws IOException {
         // Select a random image from the pre-defined list
         String selectedImage = IMAGE_FILES[RANDOM.nextInt(IMAGE_FILES.length)];
@@ -28,6 +161,14 @@ public class FileGenerator {
         return copyResourceToTempFile(RESOURCE_PATH + selectedImage);
     }
 
+    /**
+     * @param index index in {@link #IMAGE_FILES}
+     * @return a temporary copy of the image, shared with every caller: read it, do not move or delete it
+     */
+    static File getImageFile(int index) throws IOException {
+        return sampleFile(IMAGE_FILES[index]).toFile();
+    }
+
     /**
      * Copies a resource from the classpath to a temporary file.
      *
@@ -36,37 +177,248 @@ public class FileGenerator {
      * @throws IOException if the resource cannot be read or the file cannot be written
      */
     public static File copyResourceToTempFile(String resourceName) throws IOException {
-        // Attempt to load the resource as an InputStream from the classpath
-        try (InputStream inputStream = FileGenerator.class.getClassLoader().getResourceAsStream(resourceName)) {
-            if (inputStream == null) {
-                throw new IOException("Resource not found on classpath: " + resourceName);
-            }
+        File tempFile = writeTempFile(resourceName);
+        tempFile.deleteOnExit(); // Ensure the file is removed when the JVM exits
+        DELETE_ON_EXIT_COUNT.incrementAndGet();
+        return tempFile;
+    }
 
-            // Extract the file extension (e.g., ".png", ".jpg") from the resource name
-            String extension = "";
-            int lastDotIndex = resourceName.lastIndexOf('.');
-            if (lastDotIndex >= 0 && lastDotIndex < resourceName.length() - 1) {
-                extension = resourceName.substring(lastDotIndex);
-            }
+    private static File writeTempFile(String resourceName) throws IOException {
+        return writeFile(resourceName, extension -> File.createTempFile("tibu_", extension).toPath()).toFile();
+    }
+
+    /**
+     * Creates the empty file a resource is copied to
+     */
+    private interface Target {
 
-            // Create a temporary file with a prefix and extracted extension
-            File tempFile = File.createTempFile("tibu_", extension);
-            tempFile.deleteOnExit(); // Ensure the file is removed when the JVM exits
-
-            // Write the content of the resource to the temp file
-            try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
-                byte[] buffer = new byte[4096]; // Larger buffer for better performance
-                int bytesRead;
-                while ((bytesRead = inputStream.read(buffer)) != -1) {
-                    outputStream.write(buffer, 0, bytesRead);
-                }
+        /**
+         * @param extension extension of the resource, with its dot, or an empty string
+         */
+        Path create(String extension) throws IOException;
+    }
+
+    private static Path writeFile(String resourceName, Target target) throws IOException {
+        StubbedEvents.FileExtraction event = new StubbedEvents.FileExtraction();
+        event.begin();
+        byte[] content;
+        if (resourceName.startsWith(RESOURCE_PATH)) {
+            try {
+                content = sample(resourceName);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
             }
+        }
+        else {
+            content = readResource(resourceName);
+        }
 
-            return tempFile;
+        // Extract the file extension (e.g., ".png", ".jpg") from the resource name
+        String extension = "";
+        int lastDotIndex = resourceName.lastIndexOf('.');
+        if (lastDotIndex >= 0 && lastDotIndex < resourceName.length() - 1) {
+            extension = resourceName.substring(lastDotIndex);
         }
+
+        // Create a file with the extracted extension
+        Path file = target.create(extension);
+
+        // Write the content of the resource to the file
+        try (FileOutputStream outputStream = new FileOutputStream(file.toFile())) {
+            outputStream.write(content);
+        }
+
+        event.end();
+        if (event.shouldCommit()) {
+            event.resource = resourceName;
+            event.bytes = content.length;
+            event.commit();
+        }
+        return file;
     }
 
+    /**
+     * @return a new temporary copy of the invoice, deleted when the JVM exits
+     */
     public static File getRandomInvoiceFile() throws IOException {
-        return FileGenerator.copyResourceToTempFile(RESOURCE_PATH + "invoice.pdf");
+        return FileGenerator.copyResourceToTempFile(RESOURCE_PATH + INVOICE_FILE);
+    }
+
+    /**
+     * Creates the file of an attachment in a free slot of {@link #ATTACHMENT_DIRECTORY}
+     *
+     * @param slot receives the slot of the file
+     */
+    private static Path createAttachmentFile(String extension, int[] slot) throws IOException {
+        if (!Files.isDirectory(ATTACHMENT_DIRECTORY)) {
+            Files.createDirectories(ATTACHMENT_DIRECTORY);
+            // Registered before its files, so it is deleted after them
+            ATTACHMENT_DIRECTORY.toFile().deleteOnExit();
+        }
+        Queue<Integer> free = FREE_SLOTS.computeIfAbsent(extension, e -> new ConcurrentLinkedQueue<>());
+        while (true) {
+            Integer freed = free.poll();
+            int candidate = freed != null ? freed : NEXT_SLOT.getAndIncrement();
+            Path file = ATTACHMENT_DIRECTORY.resolve(candidate + extension);
+            try {
+                Files.createFile(file);
+            } catch (FileAlreadyExistsException e) {
+                // Still used by another class loader of the plugin, or kept by the host
+                continue;
+            }
+            if (REGISTERED_SLOTS.add(file.getFileName().toString())) {
+                file.toFile().deleteOnExit();
+                DELETE_ON_EXIT_COUNT.incrementAndGet();
+            }
+            slot[0] = candidate;
+            return file;
+        }
+    }
+
+    private static String extension(Path file) {
+        String name = file.getFileName().toString();
+        int lastDotIndex = name.lastIndexOf('.');
+        return lastDotIndex < 0 ? "" : name.substring(lastDotIndex);
+    }
+
+    /**
+     * Files attached to the transactions of a collector. Each attachment has its own file, which the host
+     * owns once handed over: it may move or delete it without touching the other transactions.
+     * <p>
+     * {@link #clear()} deletes the files that are still there, a collector calls it when the next collect
+     * starts, so a long-lived host keeps the files of one collect at most. The files are named after
+     * slots that {@link #clear()} frees for the next attachments, so the files registered with
+     * {@link File#deleteOnExit()} are bounded by the most attachments alive at once, not by the number of
+     * collects. No shutdown hook is registered, nothing keeps the class loader of the plugin reachable.
+     */
+    static final class Attachments {
+
+        /**
+         * Attached files, with their slot
+         */
+        private final Map<Path, Integer> files = new ConcurrentHashMap<>();
+
+        /**
+         * Files of each transaction, by transaction id
+         */
+        private final Map<String, List<Path>> byOwner = new ConcurrentHashMap<>();
+
+        /**
+         * Files of the content built from a {@link PurchaseDescriptor}, by owner and place in the purchase,
+         * so that a purchase built again from its descriptor gets the same files
+         */
+        private final Map<String, Path> keyed = new ConcurrentHashMap<>();
+
+        /**
+         * @param owner id of the transaction the file is attached to, null if none
+         * @param index index in {@link #IMAGE_FILES}
+         */
+        File image(String owner, int index) throws IOException {
+            return add(owner, RESOURCE_PATH + IMAGE_FILES[index]);
+        }
+
+        /**
+         * Same as {@link #image(String, int)}, returning the file already attached to the same item of the
+         * purchase if it is still there
+         *
+         * @param item index of the item in the purchase
+         */
+        File itemImage(String owner, int item, int index) throws IOException {
+            return reuse(owner, owner + "/item/" + item, RESOURCE_PATH + IMAGE_FILES[index]);
+        }
+
+        File randomImage(String owner) throws IOException {
+            return image(owner, RANDOM.nextInt(IMAGE_FILES.length));
+        }
+
+        /**
+         * A purchase has one invoice at most: the file already attached to it is returned if it is still there
+         */
+        File invoice(String owner) throws IOException {
+            return reuse(owner, owner + "/invoice", RESOURCE_PATH + INVOICE_FILE);
+        }
+
+        private synchronized File reuse(String owner, String key, String resourceName) throws IOException {
+            if (owner == null) {
+                return add(null, resourceName);
+            }
+            Path previous = keyed.get(key);
+            if (previous != null && Files.isRegularFile(previous)) {
+                return previous.toFile();
+            }
+            Path path = write(resourceName);
+            keyed.put(key, path);
+            List<Path> owned = byOwner.computeIfAbsent(owner, id -> new CopyOnWriteArrayList<>());
+            int at = previous == null ? -1 : owned.indexOf(previous);
+            if (at >= 0) {
+                // Deleted by the host, replaced in place
+                owned.set(at, path);
+                release(previous);
+            }
+            else {
+                owned.add(path);
+            }
+            return path.toFile();
+        }
+
+        private File add(String owner, String resourceName) throws IOException {
+            Path path = write(resourceName);
+            if (owner != null) {
+                byOwner.computeIfAbsent(owner, id -> new CopyOnWriteArrayList<>()).add(path);
+            }
+            return path.toFile();
+        }
+
+        private Path write(String resourceName) throws IOException {
+            int[] slot = new int[1];
+            Path path = writeFile(resourceName, extension -> createAttachmentFile(extension, slot));
+            files.put(path, slot[0]);
+            return path;
+        }
+
+        /**
+         * Deletes a file and frees its slot
+         */
+        private void release(Path file) {
+            Integer slot = files.remove(file);
+            if (slot == null) {
+                return;
+            }
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // Left in the temporary directory, its slot is not reused
+                return;
+            }
+            FREE_SLOTS.computeIfAbsent(extension(file), e -> new ConcurrentLinkedQueue<>()).add(slot);
+        }
+
+        /**
+         * @param owner id of a transaction
+         * @return the files attached to the transaction since the last {@link #clear()}, in the order they
+         * were attached: its item images, then its invoice
+         */
+        List<Path> of(String owner) {
+            List<Path> owned = byOwner.get(owner);
+            return owned == null ? Collections.emptyList() : Collections.unmodifiableList(owned);
+        }
+
+        /**
+         * Deletes the files attached so far, the host must be done with them
+         */
+        void clear() {
+            byOwner.clear();
+            keyed.clear();
+            for (Path file : files.keySet()) {
+                release(file);
+            }
+        }
+
+        /**
+         * @return the number of files attached since the last {@link #clear()}
+         */
+        int size() {
+            return files.size();
+        }
     }
 }
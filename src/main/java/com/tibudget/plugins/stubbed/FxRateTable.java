@@ -0,0 +1,149 @@
+package com.tibudget.plugins.stubbed;
+
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Synthetic, date-indexed foreign exchange rates, precomputed for a date range.
+ * <p>
+ * Rates are stored in one flat {@code double[]}, one row per currency and one column per day, as the
+ * number of currency units for one {@link #BASE} unit. Each row is a small daily random walk around a
+ * reference rate. A lookup is an index computation, so converting a transaction is O(1).
+ */
+final class FxRateTable {
+
+	static final String BASE = "EUR";
+
+	private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+	/**
+	 * Maximum daily variation of a rate
+	 */
+	private static final double DAILY_VOLATILITY = 0.004;
+
+	private static final Map<String, Double> REFERENCE_RATES = Map.of(
+			"EUR", 1.0,
+			"USD", 1.08,
+			"GBP", 0.85,
+			"CHF", 0.95,
+			"CAD", 1.47,
+			"JPY", 160.0,
+			"SEK", 11.4,
+			"PLN", 4.3
+	);
+
+	/**
+	 * Minor units of the reference currencies, looked up once
+	 */
+	private static final Map<String, Integer> FRACTION_DIGITS = new HashMap<>();
+
+	static {
+		for (String code : REFERENCE_RATES.keySet()) {
+			FRACTION_DIGITS.put(code, lookupFractionDigits(code));
+		}
+	}
+
+	private final String[] currencies;
+
+	private final Map<String, Integer> indexes = new HashMap<>();
+
+	private final int[] fractionDigits;
+
+	private final long firstDay;
+
+	private final int dayCount;
+
+	private final double[] rates;
+
+	/**
+	 * @param seed       seed of the random walks
+	 * @param firstDay   first epoch day of the table
+	 * @param lastDay    last epoch day of the table, included
+	 * @param currencies ISO codes of the currencies, the base currency is always added
+	 */
+	FxRateTable(long seed, long firstDay, long lastDay, String... currencies) {
+		Map<String, Integer> distinct = new HashMap<>();
+		distinct.put(BASE, 0);
+		for (String currency : currencies) {
+			distinct.putIfAbsent(currency, distinct.size());
+		}
+		this.currencies = new String[distinct.size()];
+		distinct.forEach((code, index) -> this.currencies[index] = code);
+		this.indexes.putAll(distinct);
+		this.firstDay = firstDay;
+		this.dayCount = (int) Math.max(1, lastDay - firstDay + 1);
+		this.rates = new double[this.currencies.length * dayCount];
+		this.fractionDigits = new int[this.currencies.length];
+
+		SplittableRandom random = new SplittableRandom(seed);
+		for (int c = 0; c < this.currencies.length; c++) {
+			String code = this.currencies[c];
+			fractionDigits[c] = fractionDigits(code);
+			int row = c * dayCount;
+			double rate = REFERENCE_RATES.getOrDefault(code, 1.0);
+			for (int d = 0; d < dayCount; d++) {
+				rates[row + d] = rate;
+				if (c != 0) {
+					rate *= 1.0 + (random.nextDouble() * 2.0 - 1.0) * DAILY_VOLATILITY;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the index of the currency, or -1 if it is not in the table
+	 */
+	int indexOf(String currency) {
+		Integer index = indexes.get(currency);
+		return index == null ? -1 : index;
+	}
+
+	String currency(int index) {
+		return currencies[index];
+	}
+
+	/**
+	 * @param currency  index of the currency
+	 * @param epochDay  day of the rate, clamped to the table range
+	 * @return units of the currency for one {@link #BASE} unit
+	 */
+	double rate(int currency, long epochDay) {
+		long day = epochDay - firstDay;
+		int column = day < 0 ? 0 : day >= dayCount ? dayCount - 1 : (int) day;
+		return rates[currency * dayCount + column];
+	}
+
+	/**
+	 * Converts an amount at the rate of the day and rounds it to the minor unit of the target currency.
+	 * Currencies not in the table are treated as pegged to the base currency.
+	 */
+	double convert(double amount, String from, String to, long epochMillis) {
+		if (from.equals(to)) {
+			return amount;
+		}
+		long epochDay = Math.floorDiv(epochMillis, MILLIS_PER_DAY);
+		int fromIndex = indexOf(from);
+		int toIndex = indexOf(to);
+		double fromRate = fromIndex < 0 ? 1.0 : rate(fromIndex, epochDay);
+		double toRate = toIndex < 0 ? 1.0 : rate(toIndex, epochDay);
+		int digits = toIndex < 0 ? 2 : fractionDigits[toIndex];
+		double scale = Math.pow(10, digits);
+		return Math.round(amount / fromRate * toRate * scale) / scale;
+	}
+
+	private static int fractionDigits(String code) {
+		Integer digits = FRACTION_DIGITS.get(code);
+		return digits != null ? digits : lookupFractionDigits(code);
+	}
+
+	private static int lookupFractionDigits(String code) {
+		try {
+			int digits = Currency.getInstance(code).getDefaultFractionDigits();
+			return digits < 0 ? 2 : digits;
+		} catch (IllegalArgumentException e) {
+			return 2;
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package com.tibudget.plugins.stubbed;
+
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+/**
+ * The {@link Random} shared by all the generators.
+ * <p>
+ * Draws come from one shared sequence, or, inside {@link #withSeed(long, Supplier)}, from a generator
+ * seeded for the current thread. Everything a generator produces inside {@code withSeed}, identifiers
+ * included, then only depends on the seed, whatever the thread, the JVM or what was generated before.
+ */
+final class GenerationRandom extends Random {
+
+	private static final long serialVersionUID = 1L;
+
+	static final GenerationRandom INSTANCE = new GenerationRandom();
+
+	private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+	private static final ThreadLocal<SplittableRandom> SEEDED = new ThreadLocal<>();
+
+	private GenerationRandom() {
+	}
+
+	@Override
+	protected int next(int bits) {
+		SplittableRandom seeded = SEEDED.get();
+		if (seeded == null) {
+			return super.next(bits);
+		}
+		return seeded.nextInt() >>> (32 - bits);
+	}
+
+	/**
+	 * Runs a generation with draws seeded on the current thread.
+	 */
+	static <T> T withSeed(long seed, Supplier<T> generation) {
+		SplittableRandom previous = SEEDED.get();
+		SEEDED.set(new SplittableRandom(seed));
+		try {
+			return generation.get();
+		} finally {
+			if (previous == null) {
+				SEEDED.remove();
+			}
+			else {
+				SEEDED.set(previous);
+			}
+		}
+	}
+
+	/**
+	 * @return the seed of the stream of a dataset, well spread even for consecutive streams
+	 */
+	static long derive(long seed, long stream) {
+		return RecurringSeries.mix(seed + (stream + 1) * GOLDEN_GAMMA);
+	}
+
+	/**
+	 * @return a random (version 4) UUID drawn from the generation random
+	 */
+	static String uuid() {
+		long most = (INSTANCE.nextLong() & ~0xF000L) | 0x4000L;
+		long least = (INSTANCE.nextLong() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+		return new UUID(most, least).toString();
+	}
+}
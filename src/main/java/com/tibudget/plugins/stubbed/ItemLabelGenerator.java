@@ -45,10 +45,18 @@ public class ItemLabelGenerator {
             "Portable Camping Stove", "Rechargeable LED Flashlight", "Hardcover Travel Journal"
     );
 
-    private static final Random RANDOM = new Random();
+    private static final Random RANDOM = GenerationRandom.INSTANCE;
 
     public static String generateProductName() {
         return PRODUCTS.get(RANDOM.nextInt(PRODUCTS.size()));
     }
+
+    public static int productCount() {
+        return PRODUCTS.size();
+    }
+
+    public static String productName(int index) {
+        return PRODUCTS.get(index);
+    }
 }
 
@@ -0,0 +1,376 @@
+package com.tibudget.plugins.stubbed;
+
+import com.tibudget.dto.TransactionDto;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Generated transactions held column by column in direct buffers, outside of the heap.
+ * <p>
+ * Each column is one array of primitives: dates in epoch milliseconds, amounts in cents, UUIDs as two
+ * longs, ordinals for types and states, and dictionary ids for every string. A transaction costs about
+ * 80 bytes of direct memory plus its new strings, and nothing on the heap but a slot of the string
+ * dictionary hash table. {@link TransactionDto} instances are only created when the host reads them.
+ */
+final class OffHeapTransactionStore implements TransactionStore {
+
+	private static final int INITIAL_ROWS = 1024;
+
+	private static final TransactionDto.TransactionDtoType[] TYPES = TransactionDto.TransactionDtoType.values();
+
+	private static final TransactionDto.TransactionDtoState[] STATES = TransactionDto.TransactionDtoState.values();
+
+	private static final int DATE_TRANSACTION = 1;
+	private static final int DATE_VALUE = 2;
+	private static final int STATE = 4;
+	private static final int DESCRIPTOR = 8;
+	private static final int INVOICE = 16;
+	/**
+	 * The id is not a UUID and is in the dictionary
+	 */
+	private static final int TEXT_ID = 32;
+	/**
+	 * The amount has more than two decimals (injected errors), the column holds its raw bits
+	 */
+	private static final int RAW_AMOUNT = 64;
+
+	/**
+	 * Bytes of a row in all the columns
+	 */
+	static final int ROW_BYTES = 1 + 1 + 1 + 8 + 8 + 4 + 4 + 4 + 4 + 4 + 8 + 8 + 8 + 8 + 4 + 1;
+
+	private final Strings strings = new Strings();
+
+	private int size;
+
+	private int capacity;
+
+	private ByteBuffer flags;
+	private ByteBuffer types;
+	private ByteBuffer states;
+	private ByteBuffer idHigh;
+	private ByteBuffer idLow;
+	private ByteBuffer accounts;
+	private ByteBuffer currencies;
+	private ByteBuffer labels;
+	private ByteBuffer details;
+	private ByteBuffer recurrents;
+	private ByteBuffer datesTransaction;
+	private ByteBuffer datesValue;
+	private ByteBuffer amounts;
+	private ByteBuffer descriptorSeeds;
+	private ByteBuffer descriptorItems;
+	private ByteBuffer descriptorImages;
+
+	OffHeapTransactionStore() {
+		allocate(INITIAL_ROWS);
+	}
+
+	@Override
+	public synchronized List<TransactionDto> append(List<TransactionDto> transactions, Function<String, PurchaseDescriptor> descriptors) {
+		List<TransactionDto> kept = new ArrayList<>();
+		for (TransactionDto transaction : transactions) {
+			PurchaseDescriptor descriptor = transaction.getId() == null ? null : descriptors.apply(transaction.getId());
+			if (descriptor == null && TransactionStore.hasContent(transaction)) {
+				kept.add(transaction);
+				continue;
+			}
+			if (size == capacity) {
+				allocate(Math.max(INITIAL_ROWS, capacity * 2));
+			}
+			write(size++, transaction, descriptor);
+		}
+		return kept;
+	}
+
+	@Override
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return bytes of direct memory used by the rows and the strings
+	 */
+	synchronized long offHeapBytes() {
+		return (long) size * ROW_BYTES + strings.bytes();
+	}
+
+	/**
+	 * @return bytes of heap kept by the store, the string dictionary hash table
+	 */
+	synchronized long heapBytes() {
+		return 4L * strings.table.length;
+	}
+
+	@Override
+	public synchronized TransactionDto get(int index, Consumer<StoredPurchase> restored) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+		}
+		int rowFlags = flags.get(index);
+		String id = (rowFlags & TEXT_ID) != 0
+				? strings.get((int) idLow.getLong(index * 8))
+				: new UUID(idHigh.getLong(index * 8), idLow.getLong(index * 8)).toString();
+		long amount = amounts.getLong(index * 8);
+		String account = strings.get(accounts.getInt(index * 4));
+		TransactionDto.TransactionDtoType type = TYPES[types.get(index)];
+		Date dateTransaction = (rowFlags & DATE_TRANSACTION) != 0 ? new Date(datesTransaction.getLong(index * 8)) : null;
+		Date dateValue = (rowFlags & DATE_VALUE) != 0 ? new Date(datesValue.getLong(index * 8)) : null;
+		String label = strings.get(labels.getInt(index * 4));
+		String detail = strings.get(details.getInt(index * 4));
+		double value = (rowFlags & RAW_AMOUNT) != 0 ? Double.longBitsToDouble(amount) : Cents.toDouble(amount);
+		String currency = strings.get(currencies.getInt(index * 4));
+		StoredPurchase purchase = null;
+		TransactionDto transaction;
+		if ((rowFlags & DESCRIPTOR) != 0) {
+			PurchaseDescriptor descriptor = PurchaseDescriptor.restore(descriptorSeeds.getLong(index * 8),
+					descriptorItems.getInt(index * 4), (rowFlags & INVOICE) != 0, descriptorImages.get(index));
+			purchase = new StoredPurchase(descriptor, id, account, type, dateTransaction, dateValue, label, detail, value, currency);
+			transaction = purchase;
+		}
+		else {
+			transaction = new TransactionDto(id, account, type, dateTransaction, dateValue, label, detail, value, currency);
+		}
+		String recurrent = strings.get(recurrents.getInt(index * 4));
+		if (recurrent != null) {
+			transaction.setRecurrentPaymentUuid(recurrent);
+		}
+		if ((rowFlags & STATE) != 0) {
+			transaction.setState(STATES[states.get(index)]);
+		}
+		if (purchase != null) {
+			restored.accept(purchase);
+		}
+		return transaction;
+	}
+
+	@Override
+	public synchronized void close() {
+		size = 0;
+		strings.clear();
+		allocate(0);
+	}
+
+	private void write(int row, TransactionDto transaction, PurchaseDescriptor descriptor) {
+		int rowFlags = 0;
+		String id = transaction.getId();
+		UUID uuid = uuid(id);
+		if (uuid != null) {
+			idHigh.putLong(row * 8, uuid.getMostSignificantBits());
+			idLow.putLong(row * 8, uuid.getLeastSignificantBits());
+		}
+		else {
+			rowFlags |= TEXT_ID;
+			idLow.putLong(row * 8, strings.intern(id));
+		}
+		accounts.putInt(row * 4, strings.intern(transaction.getAccountUuid()));
+		types.put(row, (byte) transaction.getType().ordinal());
+		if (transaction.getDateTransaction() != null) {
+			rowFlags |= DATE_TRANSACTION;
+			datesTransaction.putLong(row * 8, transaction.getDateTransaction().getTime());
+		}
+		if (transaction.getDateValue() != null) {
+			rowFlags |= DATE_VALUE;
+			datesValue.putLong(row * 8, transaction.getDateValue().getTime());
+		}
+		labels.putInt(row * 4, strings.intern(transaction.getLabel()));
+		details.putInt(row * 4, strings.intern(transaction.getDetails()));
+		long cents = Cents.of(transaction.getAmount());
+		if (Cents.toDouble(cents) == transaction.getAmount()) {
+			amounts.putLong(row * 8, cents);
+		}
+		else {
+			rowFlags |= RAW_AMOUNT;
+			amounts.putLong(row * 8, Double.doubleToRawLongBits(transaction.getAmount()));
+		}
+		currencies.putInt(row * 4, strings.intern(transaction.getCurrencyCode()));
+		recurrents.putInt(row * 4, strings.intern(transaction.getRecurrentPaymentUuid()));
+		if (transaction.getState() != null) {
+			rowFlags |= STATE;
+			states.put(row, (byte) transaction.getState().ordinal());
+		}
+		if (descriptor != null) {
+			rowFlags |= DESCRIPTOR | (descriptor.invoice ? INVOICE : 0);
+			descriptorSeeds.putLong(row * 8, descriptor.seed);
+			descriptorItems.putInt(row * 4, descriptor.itemCount);
+			descriptorImages.put(row, (byte) descriptor.imagePercent);
+		}
+		flags.put(row, (byte) rowFlags);
+	}
+
+	/**
+	 * @return the UUID if the id is one in its canonical form, so that it reads back identical
+	 */
+	private static UUID uuid(String id) {
+		if (id == null || id.length() != 36) {
+			return null;
+		}
+		try {
+			UUID uuid = UUID.fromString(id);
+			return uuid.toString().equals(id) ? uuid : null;
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private void allocate(int rows) {
+		flags = grow(flags, rows, 1);
+		types = grow(types, rows, 1);
+		states = grow(states, rows, 1);
+		idHigh = grow(idHigh, rows, 8);
+		idLow = grow(idLow, rows, 8);
+		accounts = grow(accounts, rows, 4);
+		currencies = grow(currencies, rows, 4);
+		labels = grow(labels, rows, 4);
+		details = grow(details, rows, 4);
+		recurrents = grow(recurrents, rows, 4);
+		datesTransaction = grow(datesTransaction, rows, 8);
+		datesValue = grow(datesValue, rows, 8);
+		amounts = grow(amounts, rows, 8);
+		descriptorSeeds = grow(descriptorSeeds, rows, 8);
+		descriptorItems = grow(descriptorItems, rows, 4);
+		descriptorImages = grow(descriptorImages, rows, 1);
+		capacity = rows;
+	}
+
+	/**
+	 * @return a direct buffer of {@code rows} values with the first {@link #size} values of the column
+	 */
+	private ByteBuffer grow(ByteBuffer column, int rows, int width) {
+		ByteBuffer grown = ByteBuffer.allocateDirect(rows * width);
+		if (column != null && size > 0) {
+			ByteBuffer used = column.duplicate();
+			used.position(0).limit(size * width);
+			grown.put(used);
+			grown.clear();
+		}
+		return grown;
+	}
+
+	/**
+	 * Interned strings, UTF-8 encoded one after the other in a direct buffer. The open addressing hash
+	 * table of ids is the only part on the heap.
+	 */
+	private static final class Strings {
+
+		private ByteBuffer arena = ByteBuffer.allocateDirect(64 * 1024);
+
+		/**
+		 * Start and length in the arena of each string, by id
+		 */
+		private ByteBuffer entries = ByteBuffer.allocateDirect(1024 * 8);
+
+		private int count;
+
+		/**
+		 * Id + 1 of the string in each slot, 0 for an empty slot
+		 */
+		private int[] table = new int[2048];
+
+		/**
+		 * @return the id of the string, -1 for null
+		 */
+		int intern(String value) {
+			if (value == null) {
+				return -1;
+			}
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			int mask = table.length - 1;
+			int slot = hash(bytes) & mask;
+			while (table[slot] != 0) {
+				if (matches(table[slot] - 1, bytes)) {
+					return table[slot] - 1;
+				}
+				slot = (slot + 1) & mask;
+			}
+			int id = count++;
+			if (arena.remaining() < bytes.length) {
+				arena = copy(arena, Math.max(arena.capacity() * 2, arena.position() + bytes.length));
+			}
+			if (entries.remaining() < 8) {
+				entries = copy(entries, entries.capacity() * 2);
+			}
+			entries.putInt(arena.position()).putInt(bytes.length);
+			arena.put(bytes);
+			table[slot] = id + 1;
+			if (count * 2 > table.length) {
+				rehash();
+			}
+			return id;
+		}
+
+		String get(int id) {
+			if (id < 0) {
+				return null;
+			}
+			int start = entries.getInt(id * 8);
+			byte[] bytes = new byte[entries.getInt(id * 8 + 4)];
+			ByteBuffer value = arena.duplicate();
+			value.position(start);
+			value.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+
+		long bytes() {
+			return arena.position() + entries.position();
+		}
+
+		void clear() {
+			arena = ByteBuffer.allocateDirect(0);
+			entries = ByteBuffer.allocateDirect(0);
+			table = new int[2];
+			count = 0;
+		}
+
+		private boolean matches(int id, byte[] bytes) {
+			if (entries.getInt(id * 8 + 4) != bytes.length) {
+				return false;
+			}
+			int start = entries.getInt(id * 8);
+			for (int i = 0; i < bytes.length; i++) {
+				if (arena.get(start + i) != bytes[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private void rehash() {
+			int[] rehashed = new int[table.length * 2];
+			int mask = rehashed.length - 1;
+			for (int id = 0; id < count; id++) {
+				byte[] bytes = new byte[entries.getInt(id * 8 + 4)];
+				int start = entries.getInt(id * 8);
+				for (int i = 0; i < bytes.length; i++) {
+					bytes[i] = arena.get(start + i);
+				}
+				int slot = hash(bytes) & mask;
+				while (rehashed[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				rehashed[slot] = id + 1;
+			}
+			table = rehashed;
+		}
+
+		private static int hash(byte[] bytes) {
+			int hash = Arrays.hashCode(bytes);
+			return hash ^ (hash >>> 16);
+		}
+
+		private static ByteBuffer copy(ByteBuffer buffer, int capacity) {
+			ByteBuffer copy = ByteBuffer.allocateDirect(capacity);
+			buffer.flip();
+			copy.put(buffer);
+			return copy;
+		}
+	}
+}
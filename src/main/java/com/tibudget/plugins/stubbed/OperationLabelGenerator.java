@@ -58,7 +58,7 @@ public class OperationLabelGenerator {
             "mollit", "anim", "id", "est", "laborum"
     };
 
-    private static final Random RANDOM = new Random();
+    private static final Random RANDOM = GenerationRandom.INSTANCE;
 
     public static String generateOperationLabel() {
         String operationType = OPERATION_TYPES[RANDOM.nextInt(OPERATION_TYPES.length)];
@@ -0,0 +1,146 @@
+package com.tibudget.plugins.stubbed;
+
+import com.tibudget.dto.FileDto;
+import com.tibudget.dto.ItemDto;
+import com.tibudget.dto.PaymentDto;
+import com.tibudget.dto.TransactionDto;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+
+/**
+ * Compact, deterministic description of the content of a purchase: items, payment and files.
+ * <p>
+ * Every item is derived from {@code (seed, index)} only, so the cheap parts needed by the transaction
+ * header (item labels and prices) can be computed without building the items, and the full DTOs
+ * (references, URL, image files, payment, invoice) are built later, only if someone asks for them.
+ */
+final class PurchaseDescriptor {
+
+	private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+	final long seed;
+
+	final int itemCount;
+
+	final boolean invoice;
+
+	final int imagePercent;
+
+	private PurchaseDescriptor(long seed, int itemCount, boolean invoice, int imagePercent) {
+		this.seed = seed;
+		this.itemCount = itemCount;
+		this.invoice = invoice;
+		this.imagePercent = imagePercent;
+	}
+
+	static PurchaseDescriptor create(long seed, ScenarioPlan plan) {
+		SplittableRandom random = new SplittableRandom(seed);
+		int itemCount = plan.itemQuantity(random.nextInt(100), random.nextInt(Integer.MAX_VALUE));
+		return new PurchaseDescriptor(seed, itemCount, random.nextInt(100) < plan.invoicePercent, plan.imagePercent);
+	}
+
+	/**
+	 * @return the descriptor written by {@link SpillStore}
+	 */
+	static PurchaseDescriptor restore(long seed, int itemCount, boolean invoice, int imagePercent) {
+		return new PurchaseDescriptor(seed, itemCount, invoice, imagePercent);
+	}
+
+	/**
+	 * The first two draws of an item are its label and its price, the header only needs those.
+	 */
+	private SplittableRandom itemRandom(int index) {
+		return new SplittableRandom(seed + (index + 1) * GOLDEN_GAMMA);
+	}
+
+	String itemLabel(int index) {
+		return ItemLabelGenerator.productName(itemRandom(index).nextInt(ItemLabelGenerator.productCount()));
+	}
+
+	long itemPriceCents(int index) {
+		SplittableRandom random = itemRandom(index);
+		random.nextInt(ItemLabelGenerator.productCount());
+		return Cents.randomPrice(random);
+	}
+
+	/**
+	 * @param owner id of the purchase, its image is attached to it. Building the same item again reuses the file
+	 */
+	ItemDto item(int index, FileGenerator.Attachments attachments, String owner) {
+		SplittableRandom random = itemRandom(index);
+		ItemDto dto = new ItemDto(
+				ItemLabelGenerator.productName(random.nextInt(ItemLabelGenerator.productCount())),
+				Cents.toDouble(Cents.randomPrice(random)),
+				quantity(random),
+				ItemDto.QuantityUnit.UNIT
+		);
+		if (random.nextInt(100) < 40) {
+			dto.setReference(ItemDto.ProductReferenceType.ASIN, "ABCDEFGHIJ");
+		}
+		if (random.nextInt(100) < 70) {
+			dto.setReference(ItemDto.ProductReferenceType.SKU, "ABC-1234-XY");
+		}
+		if (random.nextInt(100) < 80) {
+			dto.setUrl(StubbedCollector.ITEM_URL);
+		}
+		int image = random.nextInt(FileGenerator.IMAGE_FILES.length);
+		if (random.nextInt(100) < imagePercent) {
+			try {
+				dto.addFile(new FileDto(
+						FileDto.FileDtoType.IMAGE,
+						"Cover of the image",
+						attachments.itemImage(owner, index, image)
+				));
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+		return dto;
+	}
+
+	/**
+	 * Adds the items, the card payment and the optional invoice to the purchase header. A purchase read back
+	 * from a {@link TransactionStore} again gets the files attached the first time, if they are still there.
+	 */
+	void materializeInto(TransactionDto purchase, FileGenerator.Attachments attachments) {
+		for (int i = 0; i < itemCount; i++) {
+			purchase.addItem(item(i, attachments, purchase.getId()));
+		}
+		purchase.addPayment(new PaymentDto(
+				PaymentDto.PaymentDtoType.CARD,
+				"Visa",
+				purchase.getDateTransaction(),
+				purchase.getAmount(),
+				purchase.getCurrencyCode(),
+				null,
+				"1234"
+		));
+		if (invoice) {
+			try {
+				purchase.addFile(new FileDto(
+						FileDto.FileDtoType.INVOICE,
+						"Invoice",
+						"application/pdf",
+						attachments.invoice(purchase.getId())
+				));
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+	}
+
+	/**
+	 * Same distribution as {@link StubbedCollector#randomQuantity()}
+	 */
+	private static int quantity(SplittableRandom random) {
+		int randInt = random.nextInt(10);
+		if (randInt < 7) {
+			return 1;
+		} else if (randInt < 9) {
+			return 2;
+		} else {
+			return 3;
+		}
+	}
+}
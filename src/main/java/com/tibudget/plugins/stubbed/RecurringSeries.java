@@ -0,0 +1,156 @@
+package com.tibudget.plugins.stubbed;
+
+import com.tibudget.dto.RecurringPaymentDto;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * All the occurrences of one {@link RecurringPaymentConfig} within a date range, computed in one pass
+ * into primitive arrays.
+ * <p>
+ * Unlike {@link StubbedCollector#generateRecurringTransactions(RecurringPaymentConfig)}, the amount
+ * variation does not use a PRNG: it is derived from a hash of {@code (seed, date)}, so the whole series
+ * is deterministic. Identifiers are derived from the same hash instead of an MD5 name-based UUID.
+ * Both are stable across runs and JVMs because they only depend on the seed characters and on the
+ * epoch day.
+ */
+final class RecurringSeries {
+
+	private static final double DEFAULT_RATIO = 0.30;
+
+	final RecurringPaymentConfig config;
+
+	final int size;
+
+	final long[] epochDays;
+
+	final double[] amounts;
+
+	private final long[] idHigh;
+
+	private final long[] idLow;
+
+	private RecurringSeries(RecurringPaymentConfig config, int size, long[] epochDays, double[] amounts, long[] idHigh, long[] idLow) {
+		this.config = config;
+		this.size = size;
+		this.epochDays = epochDays;
+		this.amounts = amounts;
+		this.idHigh = idHigh;
+		this.idLow = idLow;
+	}
+
+	/**
+	 * @param config      the recurring payment
+	 * @param globalBegin first day of the generation range, included
+	 * @param globalEnd   last day of the generation range, included
+	 */
+	static RecurringSeries compute(RecurringPaymentConfig config, LocalDate globalBegin, LocalDate globalEnd) {
+		// Per-config constants, computed once for the whole series
+		double ratio = config.ratio == null ? DEFAULT_RATIO : config.ratio;
+		double sign = Math.signum(config.amount);
+		double base = Math.abs(config.amount);
+		double low = base * (1.0 - ratio);
+		double span = base * 2.0 * ratio;
+		long seedHash = hash(config.seed);
+		int startMonth = config.startMonth == null || config.endMonth == null ? 1 : config.startMonth.getValue();
+		int endMonth = config.startMonth == null || config.endMonth == null ? 12 : config.endMonth.getValue();
+		LocalDate end = config.end == null || globalEnd.isBefore(config.end) ? globalEnd : config.end;
+
+		long[] epochDays = occurrences(config, globalBegin, end, startMonth, endMonth);
+		int size = epochDays.length;
+		double[] amounts = new double[size];
+		long[] idHigh = new long[size];
+		long[] idLow = new long[size];
+		for (int i = 0; i < size; i++) {
+			long h1 = mix(seedHash ^ epochDays[i]);
+			long h2 = mix(h1 ^ seedHash);
+			double amount = span == 0.0 ? base : low + (h1 >>> 11) * 0x1.0p-53 * span;
+			amounts[i] = sign * Math.round(amount * 100.0) / 100.0;
+			// Version 8 (custom) and IETF variant bits, like any other UUID
+			idHigh[i] = (h2 & ~0xF000L) | 0x8000L;
+			idLow[i] = (h1 & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+		}
+		return new RecurringSeries(config, size, epochDays, amounts, idHigh, idLow);
+	}
+
+	String id(int index) {
+		return new UUID(idHigh[index], idLow[index]).toString();
+	}
+
+	private static long[] occurrences(RecurringPaymentConfig config, LocalDate globalBegin, LocalDate end, int startMonth, int endMonth) {
+		long[] days = new long[16];
+		int size = 0;
+		long endDay = end.toEpochDay();
+		if (config.unit == RecurringPaymentDto.RecurrenceUnit.WEEK) {
+			// Pure arithmetic: jump directly to the first occurrence in range
+			long step = 7L * config.interval;
+			long day = config.start.toEpochDay();
+			long beginDay = globalBegin.toEpochDay();
+			if (day < beginDay) {
+				day += (beginDay - day + step - 1) / step * step;
+			}
+			boolean allMonths = startMonth == 1 && endMonth == 12;
+			for (; day <= endDay; day += step) {
+				int month = allMonths ? 1 : LocalDate.ofEpochDay(day).getMonthValue();
+				if (month >= startMonth && month <= endMonth) {
+					if (size == days.length) {
+						days = Arrays.copyOf(days, size * 2);
+					}
+					days[size++] = day;
+				}
+			}
+			return Arrays.copyOf(days, size);
+		}
+		LocalDate date = config.start;
+		while (date.isBefore(globalBegin)) {
+			date = increment(date, config);
+		}
+		while (date.toEpochDay() <= endDay) {
+			int month = date.getMonthValue();
+			if (month >= startMonth && month <= endMonth) {
+				if (size == days.length) {
+					days = Arrays.copyOf(days, size * 2);
+				}
+				days[size++] = date.toEpochDay();
+			}
+			date = increment(date, config);
+		}
+		return Arrays.copyOf(days, size);
+	}
+
+	/**
+	 * Same as the collector: dates are incremented one period at a time, so month-end clamping is identical.
+	 */
+	private static LocalDate increment(LocalDate date, RecurringPaymentConfig config) {
+		if (config.unit == RecurringPaymentDto.RecurrenceUnit.MONTH) {
+			return date.plusMonths(config.interval);
+		}
+		if (config.unit == RecurringPaymentDto.RecurrenceUnit.YEAR) {
+			return date.plusYears(config.interval);
+		}
+		throw new IllegalStateException("Unsupported recurrence unit");
+	}
+
+	/**
+	 * 64-bit FNV-1a over the UTF-16 chars of the seed
+	 */
+	static long hash(String seed) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < seed.length(); i++) {
+			h ^= seed.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	/**
+	 * SplitMix64 finalizer
+	 */
+	static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
@@ -0,0 +1,364 @@
+package com.tibudget.plugins.stubbed;
+
+import com.tibudget.dto.RecurringPaymentDto;
+import com.tibudget.dto.TransactionDto.TransactionDtoType;
+import com.tibudget.plugins.stubbed.StubbedCollector.Type;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Immutable, precompiled description of a generation workload, loaded from a scenario file.
+ * <p>
+ * A scenario is a properties file (see the bundled {@code scenarios/*.properties}):
+ * <pre>
+ * name=Steady-state daily sync
+ * phases=today
+ * phase.today.beginDaysAgo=1
+ * phase.today.endDaysAgo=0
+ * phase.today.operations=20
+ * phase.today.errors=0
+ * phase.today.delaySeconds=0
+ * mix.purchase=40
+ * mix.transfer=40
+ * mix.internal=20
+ * items=1:70,2-6:10,5-14:15,10-59:5
+ * attachments.invoice=60
+ * attachments.image=50
+ * fault.type=ERR_TemporaryUnavailable
+ * fault.percent=5
+ * recurring.NETFLIX=Streaming subscription;-5.99;0.0;MONTH;1;2020-03-06
+ * </pre>
+ * The mix weights the {@link TransactionDtoType}s of the operations as the {@code typeMix} input does,
+ * transfers include those of the account network when there is one. The fault is an error thrown by
+ * {@code collect()}.
+ * <p>
+ * Everything is parsed once into primitive arrays, so generators read plain fields and never look up
+ * configuration per transaction.
+ */
+public final class ScenarioPlan {
+
+	public static final class Phase {
+
+		public final String name;
+		public final int beginDaysAgo;
+		public final int endDaysAgo;
+		public final int operations;
+		public final int errors;
+		public final int delaySeconds;
+
+		Phase(String name, int beginDaysAgo, int endDaysAgo, int operations, int errors, int delaySeconds) {
+			this.name = name;
+			this.beginDaysAgo = beginDaysAgo;
+			this.endDaysAgo = endDaysAgo;
+			this.operations = operations;
+			this.errors = errors;
+			this.delaySeconds = delaySeconds;
+		}
+	}
+
+	private static final String RESOURCE_PATH = "scenarios/";
+
+	/**
+	 * Errors thrown by collect(), the other error types fail elsewhere
+	 */
+	private static final Set<Type> FAULT_TYPES = EnumSet.of(Type.ERR_CollectError, Type.ERR_AccessDeny,
+			Type.ERR_TemporaryUnavailable, Type.ERR_ConnectionFailure, Type.ERR_ParameterError, Type.ERR_RuntimeCollect);
+
+	/**
+	 * Plan matching the built-in behaviour: no phases, historical item and attachment distributions
+	 */
+	public static final ScenarioPlan DEFAULT = new ScenarioPlan(
+			"default", "", new Phase[0], null,
+			new int[]{1, 2, 5, 10}, new int[]{1, 6, 14, 59}, new int[]{70, 80, 95, 100},
+			60, 50, null, 0, Collections.emptyList());
+
+	public final String name;
+
+	public final String description;
+
+	private final Phase[] phases;
+
+	/**
+	 * Types of the operations, null to use the {@code typeMix} of the collector
+	 */
+	public final TypeMix mix;
+
+	private final int[] itemMin;
+
+	private final int[] itemMax;
+
+	/**
+	 * Cumulative percentages of the item quantity buckets, the last one is 100
+	 */
+	private final int[] itemThresholds;
+
+	public final int invoicePercent;
+
+	public final int imagePercent;
+
+	/**
+	 * Error thrown by some collects, or null
+	 */
+	public final Type faultType;
+
+	public final int faultPercent;
+
+	public final List<RecurringPaymentConfig> recurring;
+
+	private ScenarioPlan(String name, String description, Phase[] phases, TypeMix mix,
+						 int[] itemMin, int[] itemMax, int[] itemThresholds,
+						 int invoicePercent, int imagePercent, Type faultType, int faultPercent,
+						 List<RecurringPaymentConfig> recurring) {
+		this.name = name;
+		this.description = description;
+		this.phases = phases;
+		this.mix = mix;
+		this.itemMin = itemMin;
+		this.itemMax = itemMax;
+		this.itemThresholds = itemThresholds;
+		this.invoicePercent = invoicePercent;
+		this.imagePercent = imagePercent;
+		this.faultType = faultType;
+		this.faultPercent = faultPercent;
+		this.recurring = recurring;
+	}
+
+	public int phaseCount() {
+		return phases.length;
+	}
+
+	public Phase phase(int index) {
+		return phases[index];
+	}
+
+	/**
+	 * @return a number of items for a purchase, drawn according to the item distribution
+	 */
+	public int randomItemQuantity(Random random) {
+		return itemQuantity(random.nextInt(100), random.nextInt(Integer.MAX_VALUE));
+	}
+
+	/**
+	 * @param percentDraw uniform between 0 and 99, selects the bucket
+	 * @param spreadDraw  uniform non-negative int, selects the quantity within the bucket
+	 */
+	int itemQuantity(int percentDraw, int spreadDraw) {
+		for (int i = 0; i < itemThresholds.length; i++) {
+			if (percentDraw < itemThresholds[i]) {
+				return itemMin[i] + spreadDraw % (itemMax[i] - itemMin[i] + 1);
+			}
+		}
+		return itemMin[0];
+	}
+
+	/**
+	 * Loads a scenario bundled with the plugin (for example {@code steady-state-daily}) or from a file.
+	 *
+	 * @throws IllegalArgumentException if the scenario cannot be found or is invalid
+	 */
+	public static ScenarioPlan load(String scenario) {
+		Properties properties = new Properties();
+		try (InputStream bundled = ScenarioPlan.class.getClassLoader().getResourceAsStream(RESOURCE_PATH + scenario + ".properties")) {
+			if (bundled != null) {
+				try (Reader reader = new InputStreamReader(bundled, StandardCharsets.UTF_8)) {
+					properties.load(reader);
+				}
+			}
+			else {
+				Path path = Paths.get(scenario);
+				if (!Files.isRegularFile(path)) {
+					throw new IllegalArgumentException("Scenario not found: " + scenario);
+				}
+				try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+					properties.load(reader);
+				}
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Cannot read scenario " + scenario, e);
+		}
+		return parse(properties);
+	}
+
+	static ScenarioPlan parse(Properties properties) {
+		String name = properties.getProperty("name", "unnamed");
+
+		List<Phase> phases = new ArrayList<>();
+		for (String phaseName : list(properties.getProperty("phases", ""))) {
+			String prefix = "phase." + phaseName + ".";
+			int beginDaysAgo = integer(properties, prefix + "beginDaysAgo", -1);
+			int endDaysAgo = integer(properties, prefix + "endDaysAgo", 0);
+			if (beginDaysAgo < endDaysAgo) {
+				throw new IllegalArgumentException(prefix + "beginDaysAgo must be greater than or equal to endDaysAgo");
+			}
+			phases.add(new Phase(phaseName, beginDaysAgo, endDaysAgo,
+					integer(properties, prefix + "operations", 0),
+					integer(properties, prefix + "errors", 0),
+					integer(properties, prefix + "delaySeconds", 0)));
+		}
+
+		TypeMix mix = null;
+		double[] weights = new double[TransactionDtoType.values().length];
+		int total = 0;
+		for (String key : properties.stringPropertyNames()) {
+			if (key.startsWith("mix.")) {
+				TransactionDtoType type;
+				try {
+					type = TransactionDtoType.valueOf(key.substring("mix.".length()).toUpperCase(Locale.ROOT));
+				} catch (IllegalArgumentException e) {
+					throw new IllegalArgumentException("Unknown transaction type in " + key, e);
+				}
+				int weight = integer(properties, key, 0);
+				weights[type.ordinal()] = weight;
+				total += weight;
+			}
+		}
+		if (total > 0) {
+			mix = new TypeMix(weights);
+		}
+
+		int[] itemMin = DEFAULT.itemMin;
+		int[] itemMax = DEFAULT.itemMax;
+		int[] itemThresholds = DEFAULT.itemThresholds;
+		String items = properties.getProperty("items");
+		if (items != null) {
+			List<String> buckets = list(items);
+			itemMin = new int[buckets.size()];
+			itemMax = new int[buckets.size()];
+			itemThresholds = new int[buckets.size()];
+			int cumulative = 0;
+			for (int i = 0; i < buckets.size(); i++) {
+				String bucket = buckets.get(i);
+				int colon = bucket.indexOf(':');
+				if (colon < 0) {
+					throw new IllegalArgumentException("items bucket must be min[-max]:percent: " + bucket);
+				}
+				String range = bucket.substring(0, colon);
+				int dash = range.indexOf('-');
+				itemMin[i] = parseInt("items", dash < 0 ? range : range.substring(0, dash));
+				itemMax[i] = dash < 0 ? itemMin[i] : parseInt("items", range.substring(dash + 1));
+				cumulative += parseInt("items", bucket.substring(colon + 1));
+				itemThresholds[i] = cumulative;
+				if (itemMin[i] < 1 || itemMax[i] < itemMin[i]) {
+					throw new IllegalArgumentException("Invalid items range: " + range);
+				}
+			}
+			if (cumulative != 100) {
+				throw new IllegalArgumentException("items percentages must add up to 100: " + cumulative);
+			}
+		}
+
+		Type faultType = null;
+		String fault = properties.getProperty("fault.type");
+		if (fault != null && !fault.trim().isEmpty()) {
+			try {
+				faultType = Type.valueOf(fault.trim());
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Unknown fault.type: " + fault, e);
+			}
+			if (!FAULT_TYPES.contains(faultType)) {
+				throw new IllegalArgumentException("fault.type must be one of " + FAULT_TYPES + ": " + fault);
+			}
+		}
+
+		List<RecurringPaymentConfig> recurring = new ArrayList<>();
+		for (String key : properties.stringPropertyNames()) {
+			if (key.startsWith("recurring.")) {
+				recurring.add(recurring(key.substring("recurring.".length()), properties.getProperty(key)));
+			}
+		}
+		// Property order is not defined, keep catalogues reproducible
+		recurring.sort((a, b) -> a.seed.compareTo(b.seed));
+
+		return new ScenarioPlan(name, properties.getProperty("description", ""), phases.toArray(new Phase[0]), mix,
+				itemMin, itemMax, itemThresholds,
+				percent(properties, "attachments.invoice", DEFAULT.invoicePercent),
+				percent(properties, "attachments.image", DEFAULT.imagePercent),
+				faultType, percent(properties, "fault.percent", 0),
+				Collections.unmodifiableList(recurring));
+	}
+
+	/**
+	 * {@code label;amount;ratio;unit;interval;start[;end]}, an empty ratio means the default variation
+	 */
+	private static RecurringPaymentConfig recurring(String seed, String value) {
+		String[] fields = value.split(";", -1);
+		if (fields.length < 6) {
+			throw new IllegalArgumentException("recurring." + seed + " must be label;amount;ratio;unit;interval;start[;end]");
+		}
+		try {
+			return new RecurringPaymentConfig(
+					seed,
+					fields[0].trim(),
+					null,
+					Double.parseDouble(fields[1].trim()),
+					fields[2].trim().isEmpty() ? null : Double.valueOf(fields[2].trim()),
+					RecurringPaymentDto.RecurrenceUnit.valueOf(fields[3].trim()),
+					Integer.parseInt(fields[4].trim()),
+					LocalDate.parse(fields[5].trim()),
+					fields.length > 6 && !fields[6].trim().isEmpty() ? LocalDate.parse(fields[6].trim()) : null,
+					null,
+					null
+			);
+		} catch (IllegalArgumentException | DateTimeParseException e) {
+			throw new IllegalArgumentException("Invalid recurring." + seed + ": " + value, e);
+		}
+	}
+
+	private static List<String> list(String value) {
+		List<String> result = new ArrayList<>();
+		for (String part : value.split(",")) {
+			if (!part.trim().isEmpty()) {
+				result.add(part.trim());
+			}
+		}
+		return result;
+	}
+
+	private static int integer(Properties properties, String key, int defaultValue) {
+		String value = properties.getProperty(key);
+		if (value == null) {
+			if (defaultValue < 0) {
+				throw new IllegalArgumentException(key + " is mandatory");
+			}
+			return defaultValue;
+		}
+		int result = parseInt(key, value);
+		if (result < 0) {
+			throw new IllegalArgumentException(key + " must not be negative: " + value);
+		}
+		return result;
+	}
+
+	private static int percent(Properties properties, String key, int defaultValue) {
+		int result = integer(properties, key, defaultValue);
+		if (result > 100) {
+			throw new IllegalArgumentException(key + " must be a percentage: " + result);
+		}
+		return result;
+	}
+
+	private static int parseInt(String key, String value) {
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(key + " must be an integer: " + value, e);
+		}
+	}
+}
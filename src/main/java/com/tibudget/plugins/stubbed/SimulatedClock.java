@@ -0,0 +1,147 @@
+package com.tibudget.plugins.stubbed;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A clock whose time runs faster than real time, or only moves when told to, so that days of
+ * collects, recurring payments and pending operations becoming completed play out in minutes.
+ * <p>
+ * Delays of the collector go through {@link #sleep(Clock, long)}: with a simulated clock a delay of
+ * one simulated hour lasts one hour divided by the speed, and with a stopped clock (speed 0) it does
+ * not wait at all but moves the clock forward.
+ */
+public final class SimulatedClock extends Clock {
+
+	private final ZoneId zone;
+
+	private final long originMillis;
+
+	private final long originNanos;
+
+	private final double speed;
+
+	/**
+	 * Time added by {@link #advance(Duration)} and by the delays of a stopped clock, shared with the
+	 * clocks returned by {@link #withZone(ZoneId)}
+	 */
+	private final AtomicLong offsetMillis;
+
+	/**
+	 * @param origin simulated time at creation
+	 * @param speed  simulated milliseconds per real millisecond, 0 for a clock that only moves with
+	 *               {@link #advance(Duration)} and delays
+	 * @param zone   zone of the clock
+	 */
+	public SimulatedClock(Instant origin, double speed, ZoneId zone) {
+		this(origin.toEpochMilli(), System.nanoTime(), speed, zone, new AtomicLong());
+		if (speed < 0 || Double.isNaN(speed) || Double.isInfinite(speed)) {
+			throw new IllegalArgumentException("speed must be finite and not negative: " + speed);
+		}
+	}
+
+	private SimulatedClock(long originMillis, long originNanos, double speed, ZoneId zone, AtomicLong offsetMillis) {
+		this.originMillis = originMillis;
+		this.originNanos = originNanos;
+		this.speed = speed;
+		this.zone = zone;
+		this.offsetMillis = offsetMillis;
+	}
+
+	/**
+	 * @return a clock starting now in the default zone, running {@code speed} times faster than real time
+	 */
+	public static SimulatedClock accelerated(double speed) {
+		return new SimulatedClock(Instant.now(), speed, ZoneId.systemDefault());
+	}
+
+	/**
+	 * @return a clock stopped at {@code origin}, see {@link #advance(Duration)}
+	 */
+	public static SimulatedClock stopped(Instant origin, ZoneId zone) {
+		return new SimulatedClock(origin, 0, zone);
+	}
+
+	public double getSpeed() {
+		return speed;
+	}
+
+	/**
+	 * Moves the clock forward.
+	 */
+	public void advance(Duration duration) {
+		offsetMillis.addAndGet(duration.toMillis());
+	}
+
+	@Override
+	public long millis() {
+		long elapsedNanos = System.nanoTime() - originNanos;
+		return originMillis + (long) (elapsedNanos / 1_000_000.0 * speed) + offsetMillis.get();
+	}
+
+	@Override
+	public Instant instant() {
+		return Instant.ofEpochMilli(millis());
+	}
+
+	@Override
+	public ZoneId getZone() {
+		return zone;
+	}
+
+	@Override
+	public Clock withZone(ZoneId zone) {
+		if (zone.equals(this.zone)) {
+			return this;
+		}
+		return new SimulatedClock(originMillis, originNanos, speed, zone, offsetMillis);
+	}
+
+	/**
+	 * @param clock           the clock of the collector
+	 * @param simulatedMillis a delay measured with this clock
+	 * @return the real time to wait for the delay to pass on the clock. A stopped clock is moved forward
+	 * instead, and the result is 0
+	 */
+	public static long realDelay(Clock clock, long simulatedMillis) {
+		if (simulatedMillis <= 0 || !(clock instanceof SimulatedClock)) {
+			return Math.max(0, simulatedMillis);
+		}
+		SimulatedClock simulated = (SimulatedClock) clock;
+		if (simulated.speed == 0) {
+			simulated.offsetMillis.addAndGet(simulatedMillis);
+			return 0;
+		}
+		return (long) Math.ceil(simulatedMillis / simulated.speed);
+	}
+
+	/**
+	 * @param clock           the clock of the collector
+	 * @param simulatedMillis a timeout measured with this clock
+	 * @return the real time after which the timeout expires, -1 for a stopped clock, on which it never
+	 * expires while waiting. Unlike {@link #realDelay(Clock, long)}, the clock is never moved
+	 */
+	public static long realTimeout(Clock clock, long simulatedMillis) {
+		if (simulatedMillis <= 0 || !(clock instanceof SimulatedClock)) {
+			return Math.max(0, simulatedMillis);
+		}
+		SimulatedClock simulated = (SimulatedClock) clock;
+		if (simulated.speed == 0) {
+			return -1;
+		}
+		return (long) Math.ceil(simulatedMillis / simulated.speed);
+	}
+
+	/**
+	 * Waits until a delay has passed on the clock.
+	 */
+	public static void sleep(Clock clock, long simulatedMillis) throws InterruptedException {
+		long realMillis = realDelay(clock, simulatedMillis);
+		if (realMillis > 0) {
+			Thread.sleep(realMillis);
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package com.tibudget.plugins.stubbed;
+
+import com.tibudget.api.OTPProvider;
+
+import java.time.Clock;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link OTPProvider} that simulates a user answering 2FA challenges, so that thousands of collectors
+ * can be parked on an OTP request without a real SMS service.
+ * <p>
+ * Challenges wait in a fair (FIFO) queue bounded by {@code maxOutstanding}. Once admitted, the
+ * simulated user answers after a random latency, or not at all. A challenge that is not answered
+ * within {@code timeoutMillis} (queue time included) returns {@code null}, like a user who never
+ * typed the code. The provider is thread safe and may be shared by many collectors.
+ * <p>
+ * Latencies and timeouts are measured with a clock, see {@link SimulatedClock}: on an accelerated clock
+ * they last less in real time, and on a stopped clock nothing waits, the clock is moved forward instead
+ * and a queued challenge waits for its turn without timing out.
+ */
+public class SimulatedOtpProvider implements OTPProvider {
+
+	private static final Logger LOG = Logger.getLogger(SimulatedOtpProvider.class.getName());
+
+	/**
+	 * The only code accepted by {@link #isExpected(String)}
+	 */
+	public static final String EXPECTED_CODE = "123456";
+
+	private static final String WRONG_CODE = "000000";
+
+	private final long latencyMinMillis;
+	private final long latencyMaxMillis;
+	private final long timeoutMillis;
+	private final int wrongCodePercent;
+	private final int noAnswerPercent;
+	private final Semaphore outstanding;
+	private final Clock clock;
+
+	private final AtomicInteger waiting = new AtomicInteger();
+	private final AtomicInteger peakWaiting = new AtomicInteger();
+	private final LongAdder answered = new LongAdder();
+	private final LongAdder wrongCodes = new LongAdder();
+	private final LongAdder noAnswers = new LongAdder();
+	private final LongAdder timeouts = new LongAdder();
+
+	/**
+	 * Answers immediately with the expected code.
+	 */
+	public SimulatedOtpProvider() {
+		this(0, 0, 60_000, 0, 0, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param latencyMinMillis minimum time before the simulated user answers
+	 * @param latencyMaxMillis maximum time before the simulated user answers
+	 * @param timeoutMillis    time after which a challenge gives up and returns null, queue time included
+	 * @param wrongCodePercent percentage of challenges answered with a wrong code
+	 * @param noAnswerPercent  percentage of challenges never answered (they end with the timeout)
+	 * @param maxOutstanding   maximum number of challenges handled at the same time, others are queued
+	 */
+	public SimulatedOtpProvider(long latencyMinMillis, long latencyMaxMillis, long timeoutMillis, int wrongCodePercent, int noAnswerPercent, int maxOutstanding) {
+		this(latencyMinMillis, latencyMaxMillis, timeoutMillis, wrongCodePercent, noAnswerPercent, maxOutstanding, Clock.systemUTC());
+	}
+
+	/**
+	 * Same as {@link #SimulatedOtpProvider(long, long, long, int, int, int)}, with the durations measured
+	 * with a clock, usually the one of the collectors, see {@link StubbedCollector#setClock(Clock)}
+	 */
+	public SimulatedOtpProvider(long latencyMinMillis, long latencyMaxMillis, long timeoutMillis, int wrongCodePercent, int noAnswerPercent, int maxOutstanding, Clock clock) {
+		if (latencyMinMillis < 0 || latencyMaxMillis < latencyMinMillis) {
+			throw new IllegalArgumentException("Invalid latency range: " + latencyMinMillis + ".." + latencyMaxMillis);
+		}
+		if (timeoutMillis <= 0) {
+			throw new IllegalArgumentException("timeoutMillis must be positive: " + timeoutMillis);
+		}
+		if (wrongCodePercent < 0 || noAnswerPercent < 0 || wrongCodePercent + noAnswerPercent > 100) {
+			throw new IllegalArgumentException("Invalid percentages: wrongCode=" + wrongCodePercent + " noAnswer=" + noAnswerPercent);
+		}
+		if (maxOutstanding <= 0) {
+			throw new IllegalArgumentException("maxOutstanding must be positive: " + maxOutstanding);
+		}
+		this.latencyMinMillis = latencyMinMillis;
+		this.latencyMaxMillis = latencyMaxMillis;
+		this.timeoutMillis = timeoutMillis;
+		this.wrongCodePercent = wrongCodePercent;
+		this.noAnswerPercent = noAnswerPercent;
+		this.outstanding = new Semaphore(maxOutstanding, true);
+		this.clock = clock;
+	}
+
+	@Override
+	public String getCode(Channel channel, String keyword, String pattern, String message) {
+		long deadline = clock.millis() + timeoutMillis;
+		peakWaiting.accumulateAndGet(waiting.incrementAndGet(), Math::max);
+		try {
+			if (!admit()) {
+				timeouts.increment();
+				LOG.log(Level.FINE, "OTP challenge timed out in queue");
+				return null;
+			}
+			try {
+				return answer(deadline);
+			} finally {
+				outstanding.release();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} finally {
+			waiting.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @return false if the timeout expired while queued
+	 */
+	private boolean admit() throws InterruptedException {
+		long realTimeout = SimulatedClock.realTimeout(clock, timeoutMillis);
+		if (realTimeout < 0) {
+			// Time does not pass while queued
+			outstanding.acquire();
+			return true;
+		}
+		return outstanding.tryAcquire(realTimeout, TimeUnit.MILLISECONDS);
+	}
+
+	private String answer(long deadline) throws InterruptedException {
+		int draw = ThreadLocalRandom.current().nextInt(100);
+		long remaining = deadline - clock.millis();
+		if (draw < noAnswerPercent) {
+			noAnswers.increment();
+			sleep(remaining);
+			return null;
+		}
+		long latency = latencyMinMillis == latencyMaxMillis
+				? latencyMinMillis
+				: ThreadLocalRandom.current().nextLong(latencyMinMillis, latencyMaxMillis + 1);
+		if (latency >= remaining) {
+			timeouts.increment();
+			sleep(remaining);
+			return null;
+		}
+		sleep(latency);
+		if (draw < noAnswerPercent + wrongCodePercent) {
+			wrongCodes.increment();
+			return WRONG_CODE;
+		}
+		answered.increment();
+		return EXPECTED_CODE;
+	}
+
+	private void sleep(long millis) throws InterruptedException {
+		SimulatedClock.sleep(clock, millis);
+	}
+
+	/**
+	 * @param code the code returned by {@link #getCode(Channel, String, String, String)}
+	 * @return true if the code is the one the simulated bank expects
+	 */
+	public boolean isExpected(String code) {
+		return EXPECTED_CODE.equals(code);
+	}
+
+	/**
+	 * @return challenges currently waiting, queued or being answered
+	 */
+	public int getWaiting() {
+		return waiting.get();
+	}
+
+	public int getPeakWaiting() {
+		return peakWaiting.get();
+	}
+
+	public long getAnswered() {
+		return answered.sum();
+	}
+
+	public long getWrongCodes() {
+		return wrongCodes.sum();
+	}
+
+	public long getNoAnswers() {
+		return noAnswers.sum();
+	}
+
+	public long getTimeouts() {
+		return timeouts.sum();
+	}
+}
@@ -0,0 +1,315 @@
+package com.tibudget.plugins.stubbed;
+
+import com.tibudget.dto.TransactionDto;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Generated transactions written to disk when a collect goes over its memory budget.
+ * <p>
+ * Records are appended to segment files of a few megabytes and read back one at a time, so only the
+ * transactions the host is looking at are in memory. Segment files are deleted when the store is closed.
+ */
+final class SpillStore implements TransactionStore {
+
+	private static final int SEGMENT_BYTES = 16 * 1024 * 1024;
+
+	/**
+	 * Bytes read at once, sequential reads of small records hit the same window
+	 */
+	private static final int WINDOW_BYTES = 64 * 1024;
+
+	private static final TransactionDto.TransactionDtoType[] TYPES = TransactionDto.TransactionDtoType.values();
+
+	private static final TransactionDto.TransactionDtoState[] STATES = TransactionDto.TransactionDtoState.values();
+
+	private static final int DATE_TRANSACTION = 1;
+	private static final int DATE_VALUE = 2;
+	private static final int STATE = 4;
+	private static final int DESCRIPTOR = 8;
+
+	private static final class Segment {
+
+		final FileChannel channel;
+
+		final int first;
+
+		long[] offsets = new long[1024];
+
+		int count;
+
+		long size;
+
+		Segment(FileChannel channel, int first) {
+			this.channel = channel;
+			this.first = first;
+		}
+	}
+
+	/**
+	 * Account UUIDs and currency codes, the same few values for every record
+	 */
+	private final List<String> dictionary = new ArrayList<>();
+
+	private final Map<String, Integer> dictionaryIds = new HashMap<>();
+
+	private final List<Segment> segments = new ArrayList<>();
+
+	private int size;
+
+	private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+	private final DataOutputStream out = new DataOutputStream(buffer);
+
+	private ByteBuffer window;
+
+	private Segment windowSegment;
+
+	private long windowStart;
+
+	@Override
+	public synchronized List<TransactionDto> append(List<TransactionDto> transactions, Function<String, PurchaseDescriptor> descriptors) {
+		List<TransactionDto> kept = new ArrayList<>();
+		try {
+			for (TransactionDto transaction : transactions) {
+				PurchaseDescriptor descriptor = transaction.getId() == null ? null : descriptors.apply(transaction.getId());
+				if (descriptor == null && TransactionStore.hasContent(transaction)) {
+					kept.add(transaction);
+					continue;
+				}
+				Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+				if (segment == null || segment.size >= SEGMENT_BYTES) {
+					segment = newSegment();
+				}
+				buffer.reset();
+				write(transaction, descriptor);
+				if (segment.count == segment.offsets.length) {
+					segment.offsets = Arrays.copyOf(segment.offsets, segment.count * 2);
+				}
+				segment.offsets[segment.count++] = segment.size;
+				ByteBuffer record = ByteBuffer.wrap(buffer.toByteArray());
+				while (record.hasRemaining()) {
+					segment.size += segment.channel.write(record, segment.size);
+				}
+				size++;
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Cannot spill transactions to disk", e);
+		}
+		return kept;
+	}
+
+	@Override
+	public synchronized int size() {
+		return size;
+	}
+
+	@Override
+	public synchronized TransactionDto get(int index, Consumer<StoredPurchase> restored) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+		}
+		int low = 0;
+		int high = segments.size() - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (segments.get(middle).first <= index) {
+				low = middle;
+			}
+			else {
+				high = middle - 1;
+			}
+		}
+		Segment segment = segments.get(low);
+		int local = index - segment.first;
+		long start = segment.offsets[local];
+		long end = local + 1 < segment.count ? segment.offsets[local + 1] : segment.size;
+		try {
+			return read(window(segment, start, (int) (end - start)), restored);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Cannot read spilled transaction " + index, e);
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		for (Segment segment : segments) {
+			try {
+				segment.channel.close();
+			} catch (IOException e) {
+				// Deleted on close, nothing else to do
+			}
+		}
+		segments.clear();
+		size = 0;
+		window = null;
+		windowSegment = null;
+	}
+
+	/**
+	 * Estimated heap retained by a generated transaction, to compare with the memory budget
+	 */
+	static long estimateRetainedBytes(TransactionDto transaction) {
+		long bytes = 160 + stringBytes(transaction.getId()) + stringBytes(transaction.getLabel()) + stringBytes(transaction.getDetails());
+		if (transaction.getItems() != null) {
+			for (int i = 0; i < transaction.getItems().size(); i++) {
+				bytes += 240 + stringBytes(transaction.getItems().get(i).getLabel());
+			}
+		}
+		if (transaction.getPayments() != null) {
+			bytes += 150L * transaction.getPayments().size();
+		}
+		if (transaction.getFiles() != null) {
+			bytes += 200L * transaction.getFiles().size();
+		}
+		return bytes;
+	}
+
+	private static long stringBytes(String value) {
+		return value == null ? 0 : 48 + value.length();
+	}
+
+	private Segment newSegment() throws IOException {
+		FileChannel channel = FileChannel.open(Files.createTempFile("tibu_spill_", ".seg"),
+				StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+		Segment segment = new Segment(channel, size);
+		segments.add(segment);
+		return segment;
+	}
+
+	private ByteBuffer window(Segment segment, long start, int length) throws IOException {
+		if (window == null || windowSegment != segment || start < windowStart || start + length > windowStart + window.limit()) {
+			ByteBuffer read = ByteBuffer.allocate(Math.max(WINDOW_BYTES, length));
+			read.limit((int) Math.min(read.capacity(), segment.size - start));
+			while (read.hasRemaining()) {
+				if (segment.channel.read(read, start + read.position()) < 0) {
+					throw new IOException("Truncated spill segment");
+				}
+			}
+			read.flip();
+			window = read;
+			windowSegment = segment;
+			windowStart = start;
+		}
+		ByteBuffer record = window.duplicate();
+		record.position((int) (start - windowStart));
+		record.limit(record.position() + length);
+		return record;
+	}
+
+	private void write(TransactionDto transaction, PurchaseDescriptor descriptor) throws IOException {
+		int flags = (transaction.getDateTransaction() != null ? DATE_TRANSACTION : 0)
+				| (transaction.getDateValue() != null ? DATE_VALUE : 0)
+				| (transaction.getState() != null ? STATE : 0)
+				| (descriptor != null ? DESCRIPTOR : 0);
+		out.writeByte(flags);
+		writeString(transaction.getId());
+		out.writeInt(dictionaryId(transaction.getAccountUuid()));
+		out.writeByte(transaction.getType().ordinal());
+		if (transaction.getDateTransaction() != null) {
+			out.writeLong(transaction.getDateTransaction().getTime());
+		}
+		if (transaction.getDateValue() != null) {
+			out.writeLong(transaction.getDateValue().getTime());
+		}
+		writeString(transaction.getLabel());
+		writeString(transaction.getDetails());
+		out.writeDouble(transaction.getAmount());
+		out.writeInt(dictionaryId(transaction.getCurrencyCode()));
+		writeString(transaction.getRecurrentPaymentUuid());
+		if (transaction.getState() != null) {
+			out.writeByte(transaction.getState().ordinal());
+		}
+		if (descriptor != null) {
+			out.writeLong(descriptor.seed);
+			out.writeInt(descriptor.itemCount);
+			out.writeBoolean(descriptor.invoice);
+			out.writeByte(descriptor.imagePercent);
+		}
+	}
+
+	private TransactionDto read(ByteBuffer in, Consumer<StoredPurchase> restored) {
+		int flags = in.get();
+		String id = readString(in);
+		String account = dictionaryValue(in.getInt());
+		TransactionDto.TransactionDtoType type = TYPES[in.get()];
+		Date dateTransaction = (flags & DATE_TRANSACTION) != 0 ? new Date(in.getLong()) : null;
+		Date dateValue = (flags & DATE_VALUE) != 0 ? new Date(in.getLong()) : null;
+		String label = readString(in);
+		String details = readString(in);
+		double amount = in.getDouble();
+		String currency = dictionaryValue(in.getInt());
+		String recurrent = readString(in);
+		TransactionDto.TransactionDtoState state = (flags & STATE) != 0 ? STATES[in.get()] : null;
+		StoredPurchase purchase = null;
+		TransactionDto transaction;
+		if ((flags & DESCRIPTOR) != 0) {
+			PurchaseDescriptor descriptor = PurchaseDescriptor.restore(in.getLong(), in.getInt(), in.get() != 0, in.get());
+			purchase = new StoredPurchase(descriptor, id, account, type, dateTransaction, dateValue, label, details, amount, currency);
+			transaction = purchase;
+		}
+		else {
+			transaction = new TransactionDto(id, account, type, dateTransaction, dateValue, label, details, amount, currency);
+		}
+		if (recurrent != null) {
+			transaction.setRecurrentPaymentUuid(recurrent);
+		}
+		if (state != null) {
+			transaction.setState(state);
+		}
+		if (purchase != null) {
+			restored.accept(purchase);
+		}
+		return transaction;
+	}
+
+	private int dictionaryId(String value) {
+		if (value == null) {
+			return -1;
+		}
+		return dictionaryIds.computeIfAbsent(value, v -> {
+			dictionary.add(v);
+			return dictionary.size() - 1;
+		});
+	}
+
+	private String dictionaryValue(int id) {
+		return id < 0 ? null : dictionary.get(id);
+	}
+
+	private void writeString(String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0) {
+			return null;
+		}
+		String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+		in.position(in.position() + length);
+		return value;
+	}
+}
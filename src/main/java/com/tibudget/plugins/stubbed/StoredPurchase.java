@@ -0,0 +1,30 @@
+package com.tibudget.plugins.stubbed;
+
+import com.tibudget.dto.TransactionDto;
+
+import java.util.Date;
+
+/**
+ * Purchase header read back from a {@link TransactionStore}, carrying the descriptor of its content until
+ * {@link StubbedCollector#materialize(TransactionDto)} builds it. The descriptor lives and dies with the
+ * instance, so headers the host drops leave nothing behind in the collector.
+ */
+final class StoredPurchase extends TransactionDto {
+
+	private transient PurchaseDescriptor descriptor;
+
+	StoredPurchase(PurchaseDescriptor descriptor, String id, String accountUuid, TransactionDtoType type, Date dateTransaction,
+				   Date dateValue, String label, String details, double amount, String currencyCode) {
+		super(id, accountUuid, type, dateTransaction, dateValue, label, details, amount, currencyCode);
+		this.descriptor = descriptor;
+	}
+
+	/**
+	 * @return the descriptor of the content, null once taken
+	 */
+	synchronized PurchaseDescriptor takeDescriptor() {
+		PurchaseDescriptor taken = descriptor;
+		descriptor = null;
+		return taken;
+	}
+}
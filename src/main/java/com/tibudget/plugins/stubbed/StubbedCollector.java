@@ -11,11 +11,18 @@ import com.tibudget.utils.AbstractCollectorPlugin;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Instant;
 import java.time.LocalDate;
 import java.time.Month;
 import java.time.ZoneId;
 import java.util.*;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,6 +32,10 @@ public class StubbedCollector extends AbstractCollectorPlugin {
 
 	private static final String COUNTERPARTY_UUID = "12345678-1234-1234-1245-123456789012";
 
+	static final URL ITEM_URL = itemUrl();
+
+	private static final long MILLIS_PER_DAY = 1000L * 60 * 60 * 24;
+
 	public enum Type {
 		OPERATIONS, ERR_CollectError, ERR_AccessDeny, ERR_TemporaryUnavailable, ERR_ConnectionFailure, ERR_ParameterError, ERR_RuntimeCollect, ERR_RuntimeOperation, ERR_RuntimeAccount, ERR_RuntimeValidate
 	}
@@ -65,31 +76,268 @@ public class StubbedCollector extends AbstractCollectorPlugin {
 	@Input(required = false)
 	private boolean askForCode = false;
 
+	/**
+	 * When positive, transactions are generated lazily and served by {@link #getTransactionPage(String)}
+	 */
+	@Input(order = 7, fieldset = "type_OPERATIONS", required = false)
+	private int pageSize = 0;
+
+	@Input(order = 8, fieldset = "type_OPERATIONS", required = false)
+	private long pageDelayMillis = 0;
+
+	/**
+	 * Weights of the generated operation types, for example {@code PURCHASE=50,TRANSFER=30,PAYMENT=20}.
+	 * When set, each correct operation has a type drawn from this mix, see {@link TypeMix}. A scenario
+	 * with its own mix cannot be combined with it
+	 */
+	@Input(order = 9, fieldset = "type_OPERATIONS", required = false)
+	private String typeMix = null;
+
+	/**
+	 * Heap the generated transactions may use, in megabytes, 0 for no limit. Over the budget, purchases
+	 * are generated as descriptors and transactions are spilled to disk, see {@link SpillStore}
+	 */
+	@Input(order = 10, fieldset = "type_OPERATIONS", required = false)
+	private int memoryBudgetMb = 0;
+
+	/**
+	 * When true, generated transactions are kept column by column outside of the heap, see
+	 * {@link OffHeapTransactionStore}. The memory budget is then not used
+	 */
+	@Input(required = false)
+	private boolean offHeap = false;
+
+	private TransactionStore store;
+
+	/**
+	 * When set, every attempt fails as drawn from this mix instead of as {@link #type}, see {@link ErrorStorm}
+	 */
+	@Input(required = false)
+	private String errorMix = null;
+
+	/**
+	 * When false, the errors of the error-storm mode are created once and thrown again at each attempt
+	 */
+	@Input(required = false)
+	private boolean errorStackTraces = true;
+
+	private ErrorStorm storm;
+
+	/**
+	 * Type of the current attempt in error-storm mode, drawn by validate(), or by collect() if the host
+	 * did not validate first
+	 */
+	private volatile Type attempt;
+
+	private boolean attemptStarted;
+
+	/**
+	 * Source of the transactions without content while publishing, null to allocate them
+	 */
+	private volatile TransactionPool pool;
+
+	private long retainedBytes;
+
+	/**
+	 * Purchases are generated as descriptors, as with {@code lazyItems}, because they go to {@link #store}
+	 */
+	private volatile boolean storeDescriptors;
+
+	private TypeMix mix = TypeMix.DEFAULT;
+
+	/**
+	 * When not 0, the generated dataset only depends on this seed, see {@link GenerationRandom}
+	 */
+	@Input(required = false)
+	private long seed = 0;
+
+	/**
+	 * Slice of the dataset generated by this collector: shards with the same seed generate disjoint
+	 * parts of the same dataset, and only the first one carries the initial balances
+	 */
+	@Input(required = false)
+	private int shardIndex = 0;
+
+	@Input(required = false)
+	private int shardCount = 1;
+
+	/**
+	 * Accounts whose opening balance has been left to the first shard, by identity
+	 */
+	private final Set<AccountDto> openingCleared = Collections.newSetFromMap(new IdentityHashMap<>());
+
+	private long fxSeed;
+
+	private TransactionPager pager;
+
+	/**
+	 * When true, purchases are generated as headers only, see {@link #materialize(TransactionDto)}
+	 */
+	@Input(required = false)
+	private boolean lazyItems = false;
+
+	/**
+	 * Descriptors of the purchases of the last collect kept in the heap and not materialized yet. Purchases
+	 * read back from {@link #store} carry their own, see {@link StoredPurchase}
+	 */
+	private final Map<String, PurchaseDescriptor> lazyPurchases = new ConcurrentHashMap<>();
+
+	/**
+	 * Files attached to the transactions, deleted when the next collect starts
+	 */
+	private final FileGenerator.Attachments attachments = new FileGenerator.Attachments();
+
+	/**
+	 * Ids of the operations broken on purpose by {@link #addError(TransactionDto)}, with the account their
+	 * amount was posted to, see {@link InvariantChecker}
+	 */
+	private final Map<String, String> injectedErrors = new ConcurrentHashMap<>();
+
+	/**
+	 * When true, default accounts get different currencies and transfers between them are converted
+	 */
+	@Input(required = false)
+	private boolean multiCurrency = false;
+
+	private volatile FxRateTable fxRates;
+
+	/**
+	 * When positive, a network of this many extra accounts is generated, see {@link AccountTopology}
+	 */
+	@Input(required = false)
+	private int accountCount = 0;
+
+	@Input(required = false)
+	private int transferFanOut = 3;
+
+	@Input(required = false)
+	private AccountTopology.Shape topologyShape = AccountTopology.Shape.RANDOM;
+
+	private AccountTopology topology;
+
+	/**
+	 * Balance changes of the generated operations, flushed to the accounts when generation is over
+	 */
+	private BalanceLedger ledger = new BalanceLedger();
+
+	/**
+	 * When true, daily balances of the accounts and daily totals of the transaction types are generated
+	 * with the transactions, see {@link BalanceHistory}
+	 */
+	@Input(required = false)
+	private boolean balanceHistory = false;
+
+	private volatile BalanceHistory history;
+
+	/**
+	 * Name of a bundled scenario (see {@code scenarios/}) or path of a scenario file, see {@link ScenarioPlan}
+	 */
+	@Input(required = false)
+	private String scenario = null;
+
+	private ScenarioPlan plan = ScenarioPlan.DEFAULT;
+
+	private Clock clock = Clock.systemDefaultZone();
+
+	/**
+	 * Period last set from the clock. While {@link #beginDate} and {@link #endDate} still hold these very
+	 * instances, {@link #validate()} moves the period to end now on the clock. The host sets the inputs
+	 * directly, so any other value, null included, is its own.
+	 */
+	private Date clockBeginDate;
+
+	private Date clockEndDate;
+
+	/**
+	 * Whole generation range: the collect dates, or the span of the scenario phases
+	 */
+	private long rangeBegin;
+
+	private long rangeEnd;
+
+	/**
+	 * Range of the operations being generated: the whole range, or the current scenario phase
+	 */
+	private long windowBegin;
+
+	private long windowEnd;
+
 	private Double progress = 0.0;
 
 	/**
 	 * Random instance for generating random values
 	 */
-	private static final Random RANDOM = new Random();
+	private static final Random RANDOM = GenerationRandom.INSTANCE;
+
+	/**
+	 * Zone of the generated accounts and dates, looked up once
+	 */
+	static final ZoneId ZONE = ZoneId.of("Europe/Paris");
+
+	static final String TIME_ZONE_ID = TimeZone.getTimeZone(ZONE).getID();
 
 	public StubbedCollector() {
 		super();
-		endDate = new Date();
+		// The host instantiates plugins long before the first collect, use that time
+		Warmup.start();
+		resetDates();
+	}
+
+	/**
+	 * Default period: the past year, ending now on the clock of the collector
+	 */
+	private void resetDates() {
+		endDate = now();
 		beginDate = new Date(endDate.getTime() - (1000L * 60 * 60 * 24 * 365));
+		clockBeginDate = beginDate;
+		clockEndDate = endDate;
+	}
+
+	private boolean datesFromClock() {
+		return beginDate == clockBeginDate && endDate == clockEndDate;
+	}
+
+	private Date now() {
+		return new Date(clock.millis());
 	}
 
 	@Override
 	public List<MessageDto> validate() {
 		List<MessageDto> msg = new ArrayList<>();
-		if (type == Type.ERR_RuntimeValidate) {
-			throw new RuntimeException("Simulated runtime exception in validate()");
+		// Shards run at different times, possibly on different JVMs: they only share a period set by the host
+		boolean explicitPeriod = !datesFromClock() && beginDate != null && endDate != null;
+		if (datesFromClock()) {
+			resetDates();
+		}
+		if (errorMix != null && !errorMix.trim().isEmpty()) {
+			if (storm == null || !storm.getMix().equals(errorMix) || storm.stackTraces != errorStackTraces) {
+				try {
+					storm = ErrorStorm.parse(errorMix, errorStackTraces);
+				} catch (IllegalArgumentException e) {
+					msg.add(new MessageDto("errorMix", "form.error.errorMix", e.getMessage()));
+					return msg;
+				}
+			}
+			attempt = storm.nextAttempt(RANDOM);
+			attemptStarted = true;
+		}
+		else {
+			storm = null;
+			attempt = null;
+		}
+		if (type() == Type.ERR_RuntimeValidate) {
+			throw runtimeError("Simulated runtime exception in validate()");
 		}
-		switch (type) {
+		switch (type()) {
 			case OPERATIONS:
+				// Generated operations are in euros unless multiCurrency gives each account its own currency
+				String paymentCurrency = FxRateTable.BASE;
+				String savingCurrency = multiCurrency ? "USD" : FxRateTable.BASE;
+				String shoppingCurrency = multiCurrency ? "GBP" : FxRateTable.BASE;
 				if (this.accountPayment == null) {
-					this.accountPayment = new AccountDto(AccountDto.AccountDtoType.PAYMENT, "My checking account", COUNTERPARTY_UUID, Currency.getInstance(Locale.getDefault()).getCurrencyCode(), TimeZone.getDefault().getID(), 0.0);
+					this.accountPayment = new AccountDto(AccountDto.AccountDtoType.PAYMENT, "My checking account", COUNTERPARTY_UUID, paymentCurrency, TIME_ZONE_ID, 0.0);
 					this.accountPayment.setId("STUBBED_PAYMENT");
-					this.accountPayment.setTimeZoneId(TimeZone.getTimeZone("Europe/Paris").getID());
+					this.accountPayment.setTimeZoneId(TIME_ZONE_ID);
 					this.accountPayment.addPaymentMethod(new PaymentMethodDto(PaymentDto.PaymentDtoType.CARD, "1234"));
 					this.accountPayment.addPaymentMethod(new PaymentMethodDto(PaymentDto.PaymentDtoType.TRANSFER));
 					this.accountPayment.addPaymentMethod(new PaymentMethodDto(PaymentDto.PaymentDtoType.CHECK));
@@ -97,22 +345,22 @@ public class StubbedCollector extends AbstractCollectorPlugin {
 					this.accounts.put(this.accountPayment.getId(), this.accountPayment);
 				}
 				if (this.accountSaving == null) {
-					this.accountSaving = new AccountDto(AccountDto.AccountDtoType.SAVING, "My saving account", COUNTERPARTY_UUID, Currency.getInstance(Locale.getDefault()).getCurrencyCode(), TimeZone.getDefault().getID(), 0.0);
+					this.accountSaving = new AccountDto(AccountDto.AccountDtoType.SAVING, "My saving account", COUNTERPARTY_UUID, savingCurrency, TIME_ZONE_ID, 0.0);
 					this.accountSaving.setId("STUBBED_SAVING");
-					this.accountSaving.setTimeZoneId(TimeZone.getTimeZone("Europe/Paris").getID());
+					this.accountSaving.setTimeZoneId(TIME_ZONE_ID);
 					this.accountSaving.addPaymentMethod(new PaymentMethodDto(PaymentDto.PaymentDtoType.TRANSFER));
 					this.accounts.put(this.accountSaving.getId(), this.accountSaving);
 				}
 				if (this.accountShopping == null) {
-					this.accountShopping = new AccountDto(AccountDto.AccountDtoType.SHOPPING, "My shopping account", COUNTERPARTY_UUID, Currency.getInstance(Locale.getDefault()).getCurrencyCode(), TimeZone.getDefault().getID(), 12.32);
+					this.accountShopping = new AccountDto(AccountDto.AccountDtoType.SHOPPING, "My shopping account", COUNTERPARTY_UUID, shoppingCurrency, TIME_ZONE_ID, 12.32);
 					this.accountShopping.setId("STUBBED_SHOPPING");
-					this.accountShopping.setTimeZoneId(TimeZone.getTimeZone("Europe/Paris").getID());
+					this.accountShopping.setTimeZoneId(TIME_ZONE_ID);
 					this.accounts.put(this.accountShopping.getId(), this.accountShopping);
 				}
 				if (this.accountLoyalty == null) {
-					this.accountLoyalty = new AccountDto(AccountDto.AccountDtoType.LOYALTY_CARD, "My loyalty", COUNTERPARTY_UUID, Currency.getInstance(Locale.getDefault()).getCurrencyCode(), TimeZone.getDefault().getID(), 0.0);
+					this.accountLoyalty = new AccountDto(AccountDto.AccountDtoType.LOYALTY_CARD, "My loyalty", COUNTERPARTY_UUID, paymentCurrency, TIME_ZONE_ID, 0.0);
 					this.accountLoyalty.setId("STUBBED_LOYALTY_CARD");
-					this.accountLoyalty.setTimeZoneId(TimeZone.getTimeZone("Europe/Paris").getID());
+					this.accountLoyalty.setTimeZoneId(TIME_ZONE_ID);
 					this.accountLoyalty.setMetadata(AccountDto.METADATA_LOYALTY_CARD_BAR_CODE_TYPE, BarcodeTypeEnum.EAN_13.name());
 					this.accountLoyalty.setMetadata(AccountDto.METADATA_LOYALTY_CARD_REFERENCE, "978020137862");
 					this.accountLoyalty.setMetadata(AccountDto.METADATA_LOYALTY_CARD_BG_COLOR, "#00ACDF");
@@ -120,21 +368,115 @@ public class StubbedCollector extends AbstractCollectorPlugin {
 				}
 				if (beginDate == null) {
 					// Default is past 7 days
-					endDate = new Date();
+					endDate = now();
 					beginDate = new Date(endDate.getTime() - (1000 * 60 * 60 * 24 * 7));
 				}
 				else if (endDate == null) {
 					msg.add(new MessageDto("endDate", "form.error.endDate.null"));
 				}
+				if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount || (shardCount > 1 && seed == 0)) {
+					msg.add(new MessageDto("shardIndex", "form.error.shard"));
+				}
+				else if (shardCount > 1 && !explicitPeriod) {
+					msg.add(new MessageDto("beginDate", "form.error.shard.period"));
+				}
+				// Rates depend on the date range and account currencies
+				fxRates = null;
+				fxSeed = seed != 0 ? GenerationRandom.derive(seed, -2) : RANDOM.nextLong();
+				boolean topologyChanged = topology == null
+						? accountCount > 0
+						: topology.size() != accountCount || topology.fanOut() != transferFanOut || topology.shape() != topologyShape;
+				if (topologyChanged) {
+					// The accounts of the previous network are not returned anymore
+					if (topology != null) {
+						topology.getAccounts().forEach(a -> this.accounts.remove(a.getId()));
+						topology = null;
+					}
+					if (accountCount > 0 && (accountCount < 2 || transferFanOut < 1 || transferFanOut >= accountCount)) {
+						msg.add(new MessageDto("accountCount", "form.error.accountCount"));
+					}
+					else if (accountCount > 0) {
+						long topologySeed = seed != 0 ? GenerationRandom.derive(seed, -3) : RANDOM.nextLong();
+						topology = new AccountTopology(accountCount, transferFanOut, topologyShape, topologySeed,
+								currencyOf(accountPayment), COUNTERPARTY_UUID, TIME_ZONE_ID);
+						topology.getAccounts().forEach(a -> this.accounts.put(a.getId(), a));
+					}
+				}
+				// Accounts may have changed: keep what is pending and register them in a new ledger
+				ledger.flush();
+				if (shardIndex > 0) {
+					// Balances of the shards are contributions, they add up to the balances of the whole dataset:
+					// the opening balances are counted by the first shard only, each account is cleared once
+					List<AccountDto> shardAccounts = new ArrayList<>(Arrays.asList(accountPayment, accountSaving, accountShopping, accountLoyalty));
+					if (topology != null) {
+						shardAccounts.addAll(topology.getAccounts());
+					}
+					for (AccountDto account : shardAccounts) {
+						if (openingCleared.add(account)) {
+							account.setCurrentBalance(0.0);
+						}
+					}
+				}
+				ledger = new BalanceLedger();
+				ledger.register(accountPayment);
+				ledger.register(accountSaving);
+				ledger.register(accountShopping);
+				if (topology != null) {
+					topology.bind(ledger);
+				}
 				if (endDate != null && beginDate.after(endDate)) {
 					msg.add(new MessageDto("beginDate", "form.error.beginAfterEndDate"));
 				}
+				mix = TypeMix.DEFAULT;
+				if (typeMix != null && !typeMix.trim().isEmpty()) {
+					try {
+						mix = TypeMix.parse(typeMix);
+					} catch (IllegalArgumentException e) {
+						msg.add(new MessageDto("typeMix", "form.error.typeMix", e.getMessage()));
+					}
+				}
+				plan = ScenarioPlan.DEFAULT;
+				if (scenario != null && !scenario.trim().isEmpty()) {
+					try {
+						plan = ScenarioPlan.load(scenario.trim());
+					} catch (IllegalArgumentException e) {
+						LOG.log(Level.WARNING, "Invalid scenario " + scenario, e);
+						msg.add(new MessageDto("scenario", "form.error.scenario", e.getMessage()));
+					}
+					if (plan.mix != null && typeMix != null && !typeMix.trim().isEmpty()) {
+						// Only one of them could be used
+						msg.add(new MessageDto("typeMix", "form.error.typeMix.scenario", plan.name));
+					}
+				}
+				if (endDate != null) {
+					rangeBegin = beginDate.getTime();
+					rangeEnd = endDate.getTime();
+					if (plan.phaseCount() > 0) {
+						// Scenario phases are relative to the end date
+						int maxDaysAgo = 0;
+						int minDaysAgo = Integer.MAX_VALUE;
+						for (int i = 0; i < plan.phaseCount(); i++) {
+							maxDaysAgo = Math.max(maxDaysAgo, plan.phase(i).beginDaysAgo);
+							minDaysAgo = Math.min(minDaysAgo, plan.phase(i).endDaysAgo);
+						}
+						rangeBegin = endDate.getTime() - maxDaysAgo * MILLIS_PER_DAY;
+						rangeEnd = endDate.getTime() - minDaysAgo * MILLIS_PER_DAY;
+					}
+					windowBegin = rangeBegin;
+					windowEnd = rangeEnd;
+				}
 				if (errorOpCount < 0) {
 					msg.add(new MessageDto("errorOpCount", "form.error.errorOpCount"));
 				}
 				if (correctOpCount < 0) {
 					msg.add(new MessageDto("correctOpCount", "form.error.correctOpCount"));
 				}
+				if (pageSize < 0) {
+					msg.add(new MessageDto("pageSize", "form.error.pageSize"));
+				}
+				if (memoryBudgetMb < 0) {
+					msg.add(new MessageDto("memoryBudgetMb", "form.error.memoryBudgetMb"));
+				}
 				if (delayInSeconds < 0 || delayInSeconds > 3600) {
 					msg.add(new MessageDto(MessageType.WARN, "delayInSeconds", "form.warn.delayInSeconds.ignored", delayInSeconds));
 					delayInSeconds = 1;
@@ -151,14 +493,50 @@ public class StubbedCollector extends AbstractCollectorPlugin {
 		return msg;
 	}
 
+	/**
+	 * Generates the transactions. The files attached to the transactions of the previous collect (item
+	 * images and invoices) are deleted first: a host that keeps them after the next collect must move or
+	 * copy them, deleting them itself is allowed at any time.
+	 */
 	@Override
 	public void collect() throws CollectError, AccessDeny, TemporaryUnavailable, ConnectionFailure, ParameterError {
 		progress = 0.0;
+		if (storm != null) {
+			if (!attemptStarted) {
+				attempt = storm.nextAttempt(RANDOM);
+			}
+			attemptStarted = false;
+		}
+		// The previous results were handed to the host, a plugin that stays loaded must not keep them
+		transactions.clear();
+		pool = null;
+		history = null;
+		injectedErrors.clear();
+		lazyPurchases.clear();
+		attachments.clear();
+		pager = null;
+		if (store != null) {
+			store.close();
+			store = null;
+		}
+		retainedBytes = 0;
+		storeDescriptors = offHeap;
 		if (askForCode && otpProvider != null) {
+			StubbedEvents.OtpWait otpWait = new StubbedEvents.OtpWait();
+			otpWait.begin();
 			String otpCode = otpProvider.getCode(OTPProvider.Channel.SMS, "the keyword", OTPProvider.PATTERN_6_DIGIT, "The stubbed collector need a code, please provide one");
+			otpWait.end();
+			if (otpWait.shouldCommit()) {
+				otpWait.channel = OTPProvider.Channel.SMS.name();
+				otpWait.answered = otpCode != null && !otpCode.isEmpty();
+				otpWait.commit();
+			}
 			if (otpCode == null || otpCode.isEmpty()) {
 				throw new AccessDeny("Access denied, no OTP code provided");
 			}
+			if (otpProvider instanceof SimulatedOtpProvider && !((SimulatedOtpProvider) otpProvider).isExpected(otpCode)) {
+				throw new AccessDeny("Access denied, wrong OTP code");
+			}
 		}
 
 		// Test settings and setConfigurationName
@@ -169,61 +547,579 @@ public class StubbedCollector extends AbstractCollectorPlugin {
 		settings.put("collectCount", Integer.toString(Integer.parseInt(collectCount) + 1));
 		setConfigurationName("Collect #" + collectCount);
 
-		switch (type) {
+		if (type() == Type.OPERATIONS && plan.faultType != null && randomYes(plan.faultPercent)) {
+			throwError(plan.faultType);
+		}
+
+		StubbedEvents.CollectPhase generatePhase = new StubbedEvents.CollectPhase();
+		generatePhase.begin();
+		if (type() == Type.OPERATIONS) {
+			Iterator<List<TransactionDto>> chunks = chunks(millis -> injectDelay(millis, "phase"));
+			if (pageSize > 0) {
+				// Generation is deferred until pages are requested
+				pager = new TransactionPager(pageSize, pageDelayMillis, clock, chunks);
+			}
+			else {
+				chunks.forEachRemaining(this::retain);
+				ledger.flush();
+			}
+		}
+		else {
+			throwError(type());
+		}
+		commitPhase(generatePhase, "generate");
+
+		StubbedEvents.CollectPhase delayPhase = new StubbedEvents.CollectPhase();
+		delayPhase.begin();
+		for (int i = 0; i < this.delayInSeconds; i++) {
+			injectDelay(1000, "collect");
+			progress = (i + 1) * (100.0 / delayInSeconds);
+		}
+		commitPhase(delayPhase, "delay");
+		progress = 100.0;
+	}
+
+	private void throwError(Type error) throws CollectError, AccessDeny, TemporaryUnavailable, ConnectionFailure, ParameterError {
+		Exception exception = newError(error, storm == null || storm.stackTraces);
+		if (exception instanceof CollectError) {
+			throw (CollectError) exception;
+		}
+		if (exception instanceof AccessDeny) {
+			throw (AccessDeny) exception;
+		}
+		if (exception instanceof TemporaryUnavailable) {
+			throw (TemporaryUnavailable) exception;
+		}
+		if (exception instanceof ConnectionFailure) {
+			throw (ConnectionFailure) exception;
+		}
+		if (exception instanceof ParameterError) {
+			throw (ParameterError) exception;
+		}
+		if (exception instanceof RuntimeException) {
+			throw (RuntimeException) exception;
+		}
+	}
+
+	/**
+	 * @param stackTrace false for an error that does not fill in its stack trace, see {@link ErrorStorm}
+	 * @return the error thrown by collect() for the type, null if the type fails elsewhere
+	 */
+	private Exception newError(Type error, boolean stackTrace) {
+		switch (error) {
 			case ERR_CollectError:
-				throw new CollectError("error.CollectError", new Date());
+				return stackTrace ? new CollectError("error.CollectError", now()) : new CollectError("error.CollectError", now()) {
+					@Override
+					public synchronized Throwable fillInStackTrace() {
+						return this;
+					}
+				};
 			case ERR_AccessDeny:
-				throw new AccessDeny("error.AccessDeny", new Date());
+				return stackTrace ? new AccessDeny("error.AccessDeny", now()) : new AccessDeny("error.AccessDeny", now()) {
+					@Override
+					public synchronized Throwable fillInStackTrace() {
+						return this;
+					}
+				};
 			case ERR_TemporaryUnavailable:
-				throw new TemporaryUnavailable("error.TemporaryUnavailable", new Date());
+				return stackTrace ? new TemporaryUnavailable("error.TemporaryUnavailable", now()) : new TemporaryUnavailable("error.TemporaryUnavailable", now()) {
+					@Override
+					public synchronized Throwable fillInStackTrace() {
+						return this;
+					}
+				};
 			case ERR_ConnectionFailure:
-				throw new ConnectionFailure("error.ConnectionFailure", new Date());
+				return stackTrace ? new ConnectionFailure("error.ConnectionFailure", now()) : new ConnectionFailure("error.ConnectionFailure", now()) {
+					@Override
+					public synchronized Throwable fillInStackTrace() {
+						return this;
+					}
+				};
 			case ERR_ParameterError:
-				throw new ParameterError(parameterErrorField, "error.ParameterError", new Date());
+				return stackTrace ? new ParameterError(parameterErrorField, "error.ParameterError", now()) : new ParameterError(parameterErrorField, "error.ParameterError", now()) {
+					@Override
+					public synchronized Throwable fillInStackTrace() {
+						return this;
+					}
+				};
 			case ERR_RuntimeCollect:
-				throw new RuntimeException("Simulated runtime exception in collect()");
-			case OPERATIONS:
+				return runtimeError("Simulated runtime exception in collect()", stackTrace);
 			default:
-				transactions.addAll(generateOperationInterne());
-				for (int i = 0; i < this.correctOpCount; i++) {
-					transactions.addAll(generateOperationPurchase());
-					transactions.addAll(generateOperationTransfer());
-				}
-				transactions.addAll(generateRecurringTransactions());
-				for (int i = 0; i < this.errorOpCount; i++) {
-					TransactionDto opDto = generateOperation();
-					addError(opDto);
-					this.accountPayment.setCurrentBalance(this.accountPayment.getCurrentBalance() + opDto.getAmount());
-					transactions.add(opDto);
+				// Other types fail outside of collect()
+				return null;
+		}
+	}
+
+	private RuntimeException runtimeError(String message) {
+		return runtimeError(message, storm == null || storm.stackTraces);
+	}
+
+	private static RuntimeException runtimeError(String message, boolean stackTrace) {
+		return stackTrace ? new RuntimeException(message) : new RuntimeException(message, null, false, false) {
+		};
+	}
+
+	/**
+	 * @return the type of the current attempt: {@link #type}, unless in error-storm mode
+	 */
+	private Type type() {
+		Type attempt = this.attempt;
+		return attempt != null ? attempt : type;
+	}
+
+	private void injectDelay(long millis, String reason) {
+		StubbedEvents.InjectedDelay delay = new StubbedEvents.InjectedDelay();
+		delay.begin();
+		try {
+			SimulatedClock.sleep(clock, millis);
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Cannot sleep anymore :-(", e);
+		}
+		delay.end();
+		if (delay.shouldCommit()) {
+			delay.reason = reason;
+			delay.requestedMillis = millis;
+			delay.commit();
+		}
+	}
+
+	private void commitPhase(StubbedEvents.CollectPhase event, String phase) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.phase = phase;
+			event.collectorType = type().name();
+			event.transactionCount = transactions.size();
+			event.commit();
+		}
+	}
+
+	private static void commitBatch(StubbedEvents.GenerationBatch event, String generator, int transactionCount, int itemCount, int fileCount) {
+		event.end();
+		if (event.shouldCommit()) {
+			event.generator = generator;
+			event.transactionCount = transactionCount;
+			event.itemCount = itemCount;
+			event.fileCount = fileCount;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Lazy sequence of the chunks of a collect, of the scenario if there is one, added to the balance
+	 * history when enabled.
+	 *
+	 * @param phaseDelay applies the delay of a scenario phase, in milliseconds
+	 */
+	private Iterator<List<TransactionDto>> chunks(LongConsumer phaseDelay) {
+		Iterator<List<TransactionDto>> chunks = plan.phaseCount() > 0 ? scenarioChunks(phaseDelay) : generationChunks();
+		if (!balanceHistory) {
+			ledger.stopHistory();
+			history = null;
+			return chunks;
+		}
+		BalanceHistory recording = ledger.startHistory(rangeBegin, rangeEnd);
+		history = recording;
+		return new Iterator<>() {
+			@Override
+			public boolean hasNext() {
+				if (chunks.hasNext()) {
+					return true;
 				}
-				break;
+				// End of generation, whoever consumes the chunks: the history is final
+				ledger.stopHistory();
+				recording.complete();
+				return false;
+			}
+
+			@Override
+			public List<TransactionDto> next() {
+				List<TransactionDto> chunk = chunks.next();
+				recording.addTransactions(chunk);
+				return chunk;
+			}
+		};
+	}
+
+	/**
+	 * Lazy sequence of everything a collect generates, one chunk per generator call, in this order:
+	 * interest, then for each correct operation a purchase, a transfer and a network transfer (with a
+	 * topology), then recurring payments and finally erroneous operations.
+	 * <p>
+	 * With several shards, each one generates the steps it owns, see {@link #ownsStep(int)}.
+	 */
+	private Iterator<List<TransactionDto>> generationChunks() {
+		List<Supplier<List<TransactionDto>>> perOperation = new ArrayList<>();
+		if (typeMix != null && !typeMix.trim().isEmpty()) {
+			List<Supplier<List<TransactionDto>>> generators = typeGenerators();
+			TypeMix typeMixPlan = mix;
+			perOperation.add(() -> generators.get(typeMixPlan.sample(RANDOM).ordinal()).get());
 		}
-		for (int i = 0; i < this.delayInSeconds; i++) {
-			try {
-				Thread.sleep(1000);
-				progress = (i + 1) * (100.0 / delayInSeconds);
-			} catch (InterruptedException e) {
-				throw new RuntimeException("Cannot sleep anymore :-(", e);
+		else {
+			perOperation.add(this::generateOperationPurchase);
+			perOperation.add(this::generateOperationTransfer);
+			if (topology != null) {
+				perOperation.add(this::generateNetworkTransfer);
 			}
 		}
-		progress = 100.0;
+		int operationSteps = perOperation.size() * correctOpCount;
+		return new Iterator<>() {
+			private int step = 0;
+
+			@Override
+			public boolean hasNext() {
+				return step < 2 + operationSteps + errorOpCount;
+			}
+
+			@Override
+			public List<TransactionDto> next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				int current = step++;
+				if (current == operationSteps + 1) {
+					// Recurring series are shared out by series
+					return generateRecurringTransactions();
+				}
+				if (!ownsStep(current)) {
+					return Collections.emptyList();
+				}
+				return seeded(current, () -> {
+					if (current == 0) {
+						return generateOperationInterne();
+					}
+					if (current <= operationSteps) {
+						return perOperation.get((current - 1) % perOperation.size()).get();
+					}
+					return Collections.singletonList(generateErrorOperation());
+				});
+			}
+		};
+	}
+
+	/**
+	 * Lazy sequence of the chunks of a scenario: the operations and errors of each phase, in its own
+	 * date window and followed by its delay, then the recurring catalogue of the scenario.
+	 *
+	 * @param phaseDelay applies the delay of a phase, in milliseconds, when the next one starts
+	 */
+	private Iterator<List<TransactionDto>> scenarioChunks(LongConsumer phaseDelay) {
+		ScenarioPlan scenarioPlan = plan;
+		List<Supplier<List<TransactionDto>>> generators = typeGenerators();
+		TypeMix scenarioMix = scenarioPlan.mix != null ? scenarioPlan.mix : mix;
+		int[] phaseEnds = new int[scenarioPlan.phaseCount()];
+		int total = 0;
+		for (int i = 0; i < phaseEnds.length; i++) {
+			total += scenarioPlan.phase(i).operations + scenarioPlan.phase(i).errors;
+			phaseEnds[i] = total;
+		}
+		int stepCount = total + 1;
+		return new Iterator<>() {
+			private int step = 0;
+
+			private int activePhase = -1;
+
+			@Override
+			public boolean hasNext() {
+				return step < stepCount;
+			}
+
+			@Override
+			public List<TransactionDto> next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				int current = step++;
+				int phaseIndex = 0;
+				while (phaseIndex < phaseEnds.length && current >= phaseEnds[phaseIndex]) {
+					phaseIndex++;
+				}
+				if (phaseIndex != activePhase) {
+					if (activePhase >= 0 && scenarioPlan.phase(activePhase).delaySeconds > 0) {
+						phaseDelay.accept(1000L * scenarioPlan.phase(activePhase).delaySeconds);
+					}
+					activePhase = phaseIndex;
+					if (phaseIndex < phaseEnds.length) {
+						ScenarioPlan.Phase phase = scenarioPlan.phase(phaseIndex);
+						windowBegin = endDate.getTime() - phase.beginDaysAgo * MILLIS_PER_DAY;
+						windowEnd = endDate.getTime() - phase.endDaysAgo * MILLIS_PER_DAY;
+					}
+				}
+				if (phaseIndex == phaseEnds.length) {
+					windowBegin = rangeBegin;
+					windowEnd = rangeEnd;
+					return generateRecurringCatalogue(scenarioPlan.recurring);
+				}
+				if (!ownsStep(current)) {
+					return Collections.emptyList();
+				}
+				int offset = current - (phaseIndex == 0 ? 0 : phaseEnds[phaseIndex - 1]);
+				boolean operation = offset < scenarioPlan.phase(phaseIndex).operations;
+				return seeded(current, () -> operation
+						? generators.get(scenarioMix.sample(RANDOM).ordinal()).get()
+						: Collections.singletonList(generateErrorOperation()));
+			}
+		};
+	}
+
+	/**
+	 * @return true if the step of the dataset is generated by this shard
+	 */
+	private boolean ownsStep(int step) {
+		return step % shardCount == shardIndex;
+	}
+
+	/**
+	 * @return true if the occurrences of the recurring series are generated by this shard
+	 */
+	private boolean ownsSeries(String seriesSeed) {
+		return Math.floorMod(RecurringSeries.hash(seriesSeed), shardCount) == shardIndex;
+	}
+
+	/**
+	 * Runs a step of the dataset with its own seed, when the dataset is seeded
+	 */
+	private <T> T seeded(long stream, Supplier<T> generation) {
+		if (seed == 0) {
+			return generation.get();
+		}
+		return GenerationRandom.withSeed(GenerationRandom.derive(seed, stream), generation);
+	}
+
+	/**
+	 * Sums the balances of the accounts of several shards of a dataset, by account id.
+	 * The sum is done in cents, so it is exact.
+	 *
+	 * @param shards accounts of each shard, see {@link #getAccounts()}
+	 * @return the balance of each account in the whole dataset
+	 */
+	public static Map<String, Double> mergeShardBalances(Collection<? extends Collection<AccountDto>> shards) {
+		Map<String, Long> cents = new TreeMap<>();
+		for (Collection<AccountDto> accounts : shards) {
+			for (AccountDto account : accounts) {
+				cents.merge(account.getId(), Cents.of(account.getCurrentBalance()), Long::sum);
+			}
+		}
+		Map<String, Double> balances = new TreeMap<>();
+		cents.forEach((id, balance) -> balances.put(id, Cents.toDouble(balance)));
+		return balances;
+	}
+
+	/**
+	 * Dispatch table of the generators of each transaction type, indexed by ordinal
+	 */
+	private List<Supplier<List<TransactionDto>>> typeGenerators() {
+		List<Supplier<List<TransactionDto>>> generators = new ArrayList<>();
+		for (TransactionDto.TransactionDtoType transactionType : TransactionDto.TransactionDtoType.values()) {
+			switch (transactionType) {
+				case PURCHASE:
+					generators.add(this::generateOperationPurchase);
+					break;
+				case TRANSFER:
+					if (topology != null) {
+						generators.add(() -> RANDOM.nextBoolean() ? generateNetworkTransfer() : generateOperationTransfer());
+					}
+					else {
+						generators.add(this::generateOperationTransfer);
+					}
+					break;
+				case INTERNAL:
+					generators.add(this::generateOperationInterne);
+					break;
+				default:
+					generators.add(() -> Collections.singletonList(generateSingleOperation(transactionType)));
+			}
+		}
+		return generators;
+	}
+
+	/**
+	 * A plain operation of the type on the payment account, with no item nor counterpart
+	 */
+	private TransactionDto generateSingleOperation(TransactionDto.TransactionDtoType transactionType) {
+		TransactionDto opDto = generateOperation(transactionType);
+		ledger.add(accountPayment, opDto.getAmount(), opDto.getDateTransaction().getTime());
+		return opDto;
+	}
+
+	private TransactionDto generateErrorOperation() {
+		TransactionDto opDto = generateOperation();
+		// The error may remove the date
+		long dateOperation = opDto.getDateTransaction().getTime();
+		injectedErrors.put(opDto.getId(), accountPayment.getUuid());
+		addError(opDto);
+		ledger.add(accountPayment, opDto.getAmount(), dateOperation);
+		return opDto;
+	}
+
+	/**
+	 * Paged retrieval, available when {@code pageSize} is positive. Each page is generated on request
+	 * and account balances are final once the last page has been served.
+	 *
+	 * @param cursor null for the first page, then the cursor returned with the previous page
+	 * @return the requested page
+	 * @throws IllegalStateException if paging is not enabled or collect() has not been called
+	 * @throws IllegalArgumentException if the cursor is unknown or expired
+	 */
+	public TransactionPage getTransactionPage(String cursor) {
+		if (type() == Type.ERR_RuntimeOperation) {
+			throw runtimeError("Simulated runtime exception in getTransactionPage()");
+		}
+		if (pager == null) {
+			throw new IllegalStateException("Paging is not enabled, set a positive pageSize and call collect() first");
+		}
+		return pager.getPage(cursor);
+	}
+
+	/**
+	 * Reactive alternative to {@link #collect()} and {@link #getTransactions()}: operations are generated as
+	 * the subscriber requests them, and account balances are final once it has been completed. The collect
+	 * delay and the scenario delays are scheduled, no thread sleeps. No OTP is asked.
+	 *
+	 * @return a publisher accepting a single subscriber, to call after validate()
+	 */
+	public Flow.Publisher<TransactionDto> publishTransactions() {
+		return publishTransactions(null);
+	}
+
+	/**
+	 * Same as {@link #publishTransactions()}, with the transactions taken from a pool: the subscriber gives
+	 * them back once processed, see {@link TransactionPool} for the ownership rules.
+	 *
+	 * @param pool pool of the transactions, null to allocate them
+	 */
+	public Flow.Publisher<TransactionDto> publishTransactions(TransactionPool pool) {
+		this.pool = pool;
+		injectedErrors.clear();
+		lazyPurchases.clear();
+		if (type() == Type.ERR_RuntimeOperation) {
+			return TransactionPublisher.failed(runtimeError("Simulated runtime exception in publishTransactions()"));
+		}
+		try {
+			if (type() != Type.OPERATIONS) {
+				throwError(type());
+			}
+			else if (plan.faultType != null && randomYes(plan.faultPercent)) {
+				throwError(plan.faultType);
+			}
+		} catch (Exception e) {
+			return TransactionPublisher.failed(e);
+		}
+		AtomicLong delay = new AtomicLong(SimulatedClock.realDelay(clock, 1000L * delayInSeconds));
+		Iterator<List<TransactionDto>> chunks = chunks(millis -> delay.addAndGet(SimulatedClock.realDelay(clock, millis)));
+		return new TransactionPublisher(chunks, delay, ledger::flush);
 	}
 
 	public List<AccountDto> getAccounts() {
-		if (type == Type.ERR_RuntimeAccount) {
-			throw new RuntimeException("Simulated runtime exception in getAccounts()");
+		if (type() == Type.ERR_RuntimeAccount) {
+			throw runtimeError("Simulated runtime exception in getAccounts()");
+		}
+		TransactionPager serving = pager;
+		if (serving != null) {
+			// Pages may be requested from other threads, see BankSimulator
+			serving.betweenPages(ledger::flush);
+		}
+		else {
+			ledger.flush();
 		}
 		return super.getAccounts();
 	}
 
 	@Override
 	public List<TransactionDto> getTransactions() {
-		if (type == Type.ERR_RuntimeOperation) {
-			throw new RuntimeException("Simulated runtime exception in getOperations()");
+		if (type() == Type.ERR_RuntimeOperation) {
+			throw runtimeError("Simulated runtime exception in getOperations()");
+		}
+		if (pager != null) {
+			// Host not using pages: generate everything not served yet
+			pager.drain(this::retain);
+		}
+		if (store != null) {
+			return store.concat(super.getTransactions(), this::restore);
 		}
 		return super.getTransactions();
 	}
 
+	/**
+	 * Keeps generated transactions for {@link #getTransactions()}, off the heap or on disk once over the
+	 * memory budget.
+	 */
+	private void retain(List<TransactionDto> chunk) {
+		if (store == null && offHeap) {
+			store = new OffHeapTransactionStore();
+		}
+		if (store == null) {
+			transactions.addAll(chunk);
+			if (memoryBudgetMb > 0) {
+				for (TransactionDto transaction : chunk) {
+					retainedBytes += SpillStore.estimateRetainedBytes(transaction);
+				}
+				if (retainedBytes > memoryBudgetMb * 1024L * 1024L) {
+					LOG.log(Level.FINE, "Memory budget of {0} MB reached after {1} transactions, spilling to disk",
+							new Object[]{memoryBudgetMb, transactions.size()});
+					store = new SpillStore();
+					storeDescriptors = true;
+				}
+			}
+		}
+		else {
+			transactions.addAll(store.append(chunk, lazyPurchases::remove));
+		}
+	}
+
+	/**
+	 * Purchase read back from the store: built again, or left to {@link #materialize(TransactionDto)}
+	 */
+	private void restore(StoredPurchase purchase) {
+		if (!lazyItems) {
+			materialize(purchase);
+		}
+	}
+
+	/**
+	 * @return ids of the operations of the last collect broken on purpose, with the account they were posted to
+	 */
+	Map<String, String> injectedErrors() {
+		return injectedErrors;
+	}
+
+	/**
+	 * Daily balances and type totals of the last collect, enabled by {@code balanceHistory}. As the balances
+	 * of the accounts, they are final once generation is over: after collect() without paging, after the last
+	 * page, or once the publisher has completed. Reading them before throws, see {@link BalanceHistory#isComplete()}.
+	 *
+	 * @return the history of the last collect, null if not enabled
+	 */
+	public BalanceHistory getBalanceHistory() {
+		return history;
+	}
+
+	/**
+	 * Accounts credited or debited with amounts too large to be counted in cents, as the erroneous operations
+	 * can be, have a balance that is not exact. Final at the same time as the balances.
+	 *
+	 * @return the number of accounts whose balance is not exact
+	 */
+	public int getResidualAccountCount() {
+		ledger.flush();
+		return ledger.getResidualAccountCount();
+	}
+
+	/**
+	 * @return the number of entries kept by the plugin between collects, see {@link SoakRunner}
+	 */
+	Map<String, Integer> retainedSizes() {
+		Map<String, Integer> sizes = new LinkedHashMap<>();
+		sizes.put("accounts", accounts.size());
+		sizes.put("transactions", transactions.size());
+		sizes.put("storedTransactions", store == null ? 0 : store.size());
+		sizes.put("recurringPayments", recurringPayments.size());
+		sizes.put("attachments", attachments.size());
+		sizes.put("injectedErrors", injectedErrors.size());
+		sizes.put("lazyPurchases", lazyPurchases.size());
+		sizes.put("settings", settings.size());
+		return sizes;
+	}
+
 	@Override
 	public String getDomain() {
 		return "";
@@ -278,79 +1174,117 @@ public class StubbedCollector extends AbstractCollectorPlugin {
 	}
 
 	public List<TransactionDto> generateOperationPurchase() {
+		StubbedEvents.GenerationBatch batch = new StubbedEvents.GenerationBatch();
+		batch.begin();
 		List<TransactionDto> operationsDtos = new ArrayList<>();
-		Date datePurchase = new Date(beginDate.getTime() + (long) (RANDOM.nextDouble() * (endDate.getTime() - beginDate.getTime())));
+		Date datePurchase = randomDate();
 		TransactionDto purchase = new TransactionDto(
-				UUID.randomUUID().toString(),
+				GenerationRandom.uuid(),
 				accountShopping.getUuid(),
 				TransactionDto.TransactionDtoType.PURCHASE,
 				datePurchase,
 				datePurchase,
 				OperationLabelGenerator.generateOperationLabel(),
 				OperationLabelGenerator.generateOperationDetails(15),
-				-RANDOM.nextDouble() * 1000,
-				"EUR"
+				0.0,
+				currencyOf(accountShopping)
 		);
-		double amount = 0.0;
+		long amountCents = 0;
+		int itemCount = 0;
+		int fileCount = 0;
 		StringBuilder sb = new StringBuilder();
-		for (int i = 0; i < randomItemQuantity(); i++) {
-			ItemDto itemDto = generateItem();
-			amount += itemDto.getPrice();
-			if (sb.length() > 0) {
-				sb.append(", ");
+		PurchaseDescriptor descriptor = null;
+		if (lazyItems || storeDescriptors) {
+			// Only labels and prices are needed for the header, the rest is built by materialize() or on read
+			descriptor = PurchaseDescriptor.create(RANDOM.nextLong(), plan);
+			for (int i = 0; i < descriptor.itemCount; i++) {
+				amountCents += descriptor.itemPriceCents(i);
+				if (sb.length() > 0) {
+					sb.append(", ");
+				}
+				sb.append(descriptor.itemLabel(i));
 			}
-			sb.append(itemDto.getLabel());
-			purchase.addItem(itemDto);
 		}
+		else {
+			int quantity = plan.randomItemQuantity(RANDOM);
+			for (int i = 0; i < quantity; i++) {
+				ItemDto itemDto = generateItem(plan.imagePercent, attachments, purchase.getId());
+				amountCents += Cents.of(itemDto.getPrice());
+				if (sb.length() > 0) {
+					sb.append(", ");
+				}
+				sb.append(itemDto.getLabel());
+				purchase.addItem(itemDto);
+				itemCount++;
+			}
+		}
+		double amount = Cents.toDouble(amountCents);
 		purchase.setDetails(sb.toString());
 		purchase.setLabel(sb.toString());
 		purchase.setAmount(amount);
+		if (descriptor != null) {
+			lazyPurchases.put(purchase.getId(), descriptor);
+		}
+		else {
+			fileCount = addPaymentAndInvoice(purchase, datePurchase, amount, plan.invoicePercent, attachments);
+		}
+		operationsDtos.add(purchase);
+
+		double paymentAmount = fxRates().convert(amount, currencyOf(accountShopping), currencyOf(accountPayment), datePurchase.getTime());
+		TransactionDto checkOp = newTransaction(
+				GenerationRandom.uuid(),
+				accountPayment.getUuid(),
+				TransactionDto.TransactionDtoType.PAYMENT,
+				datePurchase,
+				datePurchase,
+				"Purchase of " + purchase.getLabel(),
+				OperationLabelGenerator.generateOperationDetails(15),
+				-paymentAmount,
+				currencyOf(accountPayment)
+		);
+		ledger.add(accountPayment, -paymentAmount, datePurchase.getTime());
+		operationsDtos.add(checkOp);
+
+		commitBatch(batch, "purchase", operationsDtos.size(), itemCount, fileCount);
+		return operationsDtos;
+	}
+
+	private static int addPaymentAndInvoice(TransactionDto purchase, Date datePurchase, double amount, int invoicePercent,
+											FileGenerator.Attachments attachments) {
 		purchase.addPayment(new PaymentDto(
 				PaymentDto.PaymentDtoType.CARD,
 				"Visa",
 				datePurchase,
 				amount,
-				"EUR",
+				purchase.getCurrencyCode(),
 				null,
 				"1234"
 		));
-		if (randomYes(60)) {
+		if (randomYes(invoicePercent)) {
 			try {
 				purchase.addFile(new FileDto(
 						FileDto.FileDtoType.INVOICE,
 						"Invoice",
 						"application/pdf",
-						FileGenerator.getRandomInvoiceFile()
+						attachments.invoice(purchase.getId())
 				));
+				return 1;
 			} catch (IOException e) {
 				// Ignore
 			}
 		}
-		operationsDtos.add(purchase);
-
-		TransactionDto checkOp = new TransactionDto(
-				UUID.randomUUID().toString(),
-				accountPayment.getUuid(),
-				TransactionDto.TransactionDtoType.PAYMENT,
-				datePurchase,
-				datePurchase,
-				"Purchase of " + purchase.getLabel(),
-				OperationLabelGenerator.generateOperationDetails(15),
-				-amount,
-				"EUR"
-		);
-		accountPayment.setCurrentBalance(accountPayment.getCurrentBalance() - amount);
-		operationsDtos.add(checkOp);
-
-		return operationsDtos;
+		return 0;
 	}
 
 	public List<TransactionDto> generateOperationTransfer() {
+		StubbedEvents.GenerationBatch batch = new StubbedEvents.GenerationBatch();
+		batch.begin();
 		List<TransactionDto> operationsDtos = new ArrayList<>();
-		Date dateOperation = new Date(beginDate.getTime() + (long) (RANDOM.nextDouble() * (endDate.getTime() - beginDate.getTime())));
-		double amount = randomPrice();
-		TransactionDto checkingOp = new TransactionDto(
-				UUID.randomUUID().toString(),
+		long dateOperation = randomMillis();
+		long amountCents = Cents.randomPrice(RANDOM);
+		double amount = Cents.toDouble(amountCents);
+		TransactionDto checkingOp = newTransaction(
+				GenerationRandom.uuid(),
 				accountPayment.getUuid(),
 				TransactionDto.TransactionDtoType.TRANSFER,
 				dateOperation,
@@ -358,34 +1292,85 @@ public class StubbedCollector extends AbstractCollectorPlugin {
 				"Transfer to " + accountSaving.getLabel(),
 				OperationLabelGenerator.generateOperationDetails(15),
 				-amount,
-				"EUR"
+				currencyOf(accountPayment)
 		);
-		accountPayment.setCurrentBalance(accountPayment.getCurrentBalance() - amount);
+		ledger.addCents(accountPayment, -amountCents, dateOperation);
 		operationsDtos.add(checkingOp);
 
-		TransactionDto savingOp = new TransactionDto(
-				UUID.randomUUID().toString(),
+		// Cross-currency when the accounts do not share the same currency
+		double savingAmount = fxRates().convert(amount, currencyOf(accountPayment), currencyOf(accountSaving), dateOperation);
+		TransactionDto savingOp = newTransaction(
+				GenerationRandom.uuid(),
 				accountSaving.getUuid(),
 				TransactionDto.TransactionDtoType.TRANSFER,
 				dateOperation,
 				dateOperation,
 				"Transfer from " + accountPayment.getLabel(),
 				OperationLabelGenerator.generateOperationDetails(15),
-				amount,
-				"EUR"
+				savingAmount,
+				currencyOf(accountSaving)
 		);
-		accountSaving.setCurrentBalance(accountSaving.getCurrentBalance() + amount);
+		ledger.add(accountSaving, savingAmount, dateOperation);
 		operationsDtos.add(savingOp);
 
+		commitBatch(batch, "transfer", operationsDtos.size(), 0, 0);
+		return operationsDtos;
+	}
+
+	/**
+	 * Transfer between two accounts of the topology, following an edge of its transfer graph.
+	 */
+	public List<TransactionDto> generateNetworkTransfer() {
+		StubbedEvents.GenerationBatch batch = new StubbedEvents.GenerationBatch();
+		batch.begin();
+		List<TransactionDto> operationsDtos = new ArrayList<>();
+		long dateOperation = randomMillis();
+		int source = RANDOM.nextInt(topology.size());
+		int target = topology.target(source, RANDOM.nextInt(topology.fanOut()));
+		AccountDto from = topology.account(source);
+		AccountDto to = topology.account(target);
+		long amountCents = Cents.randomPrice(RANDOM);
+		double amount = Cents.toDouble(amountCents);
+
+		operationsDtos.add(newTransaction(
+				GenerationRandom.uuid(),
+				from.getUuid(),
+				TransactionDto.TransactionDtoType.TRANSFER,
+				dateOperation,
+				dateOperation,
+				"Transfer to " + to.getLabel(),
+				OperationLabelGenerator.generateOperationDetails(15),
+				-amount,
+				currencyOf(from)
+		));
+		topology.addCents(source, -amountCents, dateOperation);
+
+		operationsDtos.add(newTransaction(
+				GenerationRandom.uuid(),
+				to.getUuid(),
+				TransactionDto.TransactionDtoType.TRANSFER,
+				dateOperation,
+				dateOperation,
+				"Transfer from " + from.getLabel(),
+				OperationLabelGenerator.generateOperationDetails(15),
+				amount,
+				currencyOf(to)
+		));
+		topology.addCents(target, amountCents, dateOperation);
+
+		commitBatch(batch, "network-transfer", operationsDtos.size(), 0, 0);
 		return operationsDtos;
 	}
 
 	public List<TransactionDto> generateOperationInterne() {
+		StubbedEvents.GenerationBatch batch = new StubbedEvents.GenerationBatch();
+		batch.begin();
 		List<TransactionDto> operationsDtos = new ArrayList<>();
-		Date dateOperation = new Date(beginDate.getTime() + (long) (RANDOM.nextDouble() * (endDate.getTime() - beginDate.getTime())));
-		double amount = randomPrice();
-		TransactionDto savingOp = new TransactionDto(
-				UUID.randomUUID().toString(),
+		long dateOperation = randomMillis();
+		long amountCents = Cents.randomPrice(RANDOM);
+		double amount = Cents.toDouble(amountCents);
+		TransactionDto savingOp = newTransaction(
+				GenerationRandom.uuid(),
 				accountSaving.getUuid(),
 				TransactionDto.TransactionDtoType.INTERNAL,
 				dateOperation,
@@ -393,44 +1378,44 @@ public class StubbedCollector extends AbstractCollectorPlugin {
 				"Interest 2%",
 				OperationLabelGenerator.generateOperationDetails(15),
 				amount,
-				"EUR"
+				currencyOf(accountSaving)
 		);
-		accountSaving.setCurrentBalance(accountSaving.getCurrentBalance() + amount);
+		ledger.addCents(accountSaving, amountCents, dateOperation);
 		operationsDtos.add(savingOp);
 
+		commitBatch(batch, "interne", operationsDtos.size(), 0, 0);
 		return operationsDtos;
 	}
 
 	public List<TransactionDto> generateRecurringTransactions(RecurringPaymentConfig config) {
-		LocalDate globalBegin = beginDate.toInstant().atZone(ZoneId.of("Europe/Paris")).toLocalDate();
-		LocalDate globalEnd = endDate.toInstant().atZone(ZoneId.of("Europe/Paris")).toLocalDate();
-		List<TransactionDto> result = new ArrayList<>();
+		StubbedEvents.GenerationBatch batch = new StubbedEvents.GenerationBatch();
+		batch.begin();
+		LocalDate globalBegin = Instant.ofEpochMilli(windowBegin).atZone(ZONE).toLocalDate();
+		LocalDate globalEnd = Instant.ofEpochMilli(windowEnd).atZone(ZONE).toLocalDate();
+		RecurringPaymentDto recurringPayment = recurringPaymentFor(config);
+		if (!ownsSeries(config.seed)) {
+			return new ArrayList<>();
+		}
+		// Amounts of a series do not depend on the other series
+		List<TransactionDto> result = seeded(RecurringSeries.hash(config.seed),
+				() -> recurringOccurrences(config, recurringPayment, globalBegin, globalEnd));
 
-		RecurringPaymentDto recurringPayment = recurringPayments.computeIfAbsent(
-				config.seed,
-				k -> new RecurringPaymentDto(
-						config.seed,
-						UUID.randomUUID().toString(),
-						accountPayment.getUuid(),
-						config.label,
-						config.amount,
-						config.ratio,
-						toDate(config.start),
-						config.end == null ? null : toDate(config.end),
-						config.interval,
-						config.unit,
-						RecurringPaymentDto.State.ACTIVE,
-						null
-				)
-		);
+		// No string built per call, the seed has its own field
+		batch.series = config.seed;
+		commitBatch(batch, "recurring", result.size(), 0, 0);
+		return result;
+	}
 
+	private List<TransactionDto> recurringOccurrences(RecurringPaymentConfig config, RecurringPaymentDto recurringPayment,
+													  LocalDate globalBegin, LocalDate globalEnd) {
+		List<TransactionDto> result = new ArrayList<>();
 		LocalDate date =config.start;
 		// Skip occurrences before globalBegin
 		while (date.isBefore(globalBegin)) {
 			date = increment(date, config);
 		}
 		LocalDate end = config.end == null ? globalEnd : min(globalEnd, config.end);
-		LocalDate today = LocalDate.now(ZoneId.systemDefault());
+		LocalDate today = LocalDate.now(clock);
 
 		while (!date.isAfter(end)) {
 
@@ -453,15 +1438,12 @@ public class StubbedCollector extends AbstractCollectorPlugin {
 				if (effectiveRatio == 0.0) {
 					amount = base;
 				} else {
-					amount = ThreadLocalRandom.current().nextDouble(
-							base * (1.0 - effectiveRatio),
-							base * (1.0 + effectiveRatio)
-					);
+					amount = base * (1.0 - effectiveRatio) + RANDOM.nextDouble() * 2.0 * base * effectiveRatio;
 				}
 				amount = Math.round(amount * 100.0) / 100.0;
 				amount *= sign;
 
-				TransactionDto dto = new TransactionDto(
+				TransactionDto dto = newTransaction(
 						id,
 						accountPayment.getUuid(),
 						TransactionDto.TransactionDtoType.PAYMENT,
@@ -470,7 +1452,7 @@ public class StubbedCollector extends AbstractCollectorPlugin {
 						config.label,
 						config.label + " " + date,
 						amount,
-						"EUR"
+						currencyOf(accountPayment)
 				);
 
 				dto.setRecurrentPaymentUuid(recurringPayment.getUuid());
@@ -479,15 +1461,101 @@ public class StubbedCollector extends AbstractCollectorPlugin {
 				}
 				else {
 					dto.setState(TransactionDto.TransactionDtoState.COMPLETED);
+					ledger.add(accountPayment, amount, dto.getDateTransaction().getTime());
 				}
 				result.add(dto);
 			}
 
 			date = increment(date, config);
 		}
+		return result;
+	}
+	/**
+	 * Batch version of {@link #generateRecurringTransactions(RecurringPaymentConfig)} for large catalogues.
+	 * Each series is computed in primitive arrays by {@link RecurringSeries}: amounts vary
+	 * deterministically instead of randomly, and identifiers come from a cheap hash instead of MD5.
+	 * Both are stable across runs, but differ from the ones of the per-config method.
+	 *
+	 * @param catalogue the recurring payments to generate
+	 * @return the occurrences of every recurring payment within the collector date range
+	 */
+	public List<TransactionDto> generateRecurringCatalogue(List<RecurringPaymentConfig> catalogue) {
+		StubbedEvents.GenerationBatch batch = new StubbedEvents.GenerationBatch();
+		batch.begin();
+		LocalDate globalBegin = Instant.ofEpochMilli(windowBegin).atZone(ZONE).toLocalDate();
+		LocalDate globalEnd = Instant.ofEpochMilli(windowEnd).atZone(ZONE).toLocalDate();
+		long today = LocalDate.now(clock).toEpochDay();
+
+		List<RecurringSeries> seriesList = new ArrayList<>(catalogue.size());
+		int total = 0;
+		for (RecurringPaymentConfig config : catalogue) {
+			if (!ownsSeries(config.seed)) {
+				recurringPaymentFor(config);
+				continue;
+			}
+			RecurringSeries series = RecurringSeries.compute(config, globalBegin, globalEnd);
+			seriesList.add(series);
+			total += series.size;
+		}
 
+		List<TransactionDto> result = new ArrayList<>(total);
+		for (RecurringSeries series : seriesList) {
+			RecurringPaymentConfig config = series.config;
+			String recurringPaymentUuid = recurringPaymentFor(config).getUuid();
+			for (int i = 0; i < series.size; i++) {
+				LocalDate date = LocalDate.ofEpochDay(series.epochDays[i]);
+				Date day = toDate(date);
+				TransactionDto dto = newTransaction(
+						series.id(i),
+						accountPayment.getUuid(),
+						TransactionDto.TransactionDtoType.PAYMENT,
+						day,
+						day,
+						config.label,
+						config.label + " " + date,
+						series.amounts[i],
+						currencyOf(accountPayment)
+				);
+				dto.setRecurrentPaymentUuid(recurringPaymentUuid);
+				if (series.epochDays[i] > today) {
+					dto.setState(TransactionDto.TransactionDtoState.PENDING);
+				}
+				else {
+					dto.setState(TransactionDto.TransactionDtoState.COMPLETED);
+					ledger.add(accountPayment, series.amounts[i], day.getTime());
+				}
+				result.add(dto);
+			}
+		}
+
+		commitBatch(batch, "recurring-catalogue", result.size(), 0, 0);
 		return result;
 	}
+
+	private RecurringPaymentDto recurringPaymentFor(RecurringPaymentConfig config) {
+		// The inherited map is not concurrent and generators may run on several threads
+		synchronized (recurringPayments) {
+			return recurringPayments.computeIfAbsent(
+					config.seed,
+					k -> new RecurringPaymentDto(
+							config.seed,
+							// Whatever shard creates it first, not the stream of the occurrences
+							seeded(~RecurringSeries.hash(config.seed), GenerationRandom::uuid),
+							accountPayment.getUuid(),
+							config.label,
+							config.amount,
+							config.ratio,
+							toDate(config.start),
+							config.end == null ? null : toDate(config.end),
+							config.interval,
+							config.unit,
+							RecurringPaymentDto.State.ACTIVE,
+							null
+					)
+			);
+		}
+	}
+
 	private static LocalDate increment(LocalDate date, RecurringPaymentConfig config) {
 		if (config.unit == RecurringPaymentDto.RecurrenceUnit.WEEK) {
 			return date.plusWeeks(config.interval);
@@ -525,24 +1593,57 @@ public class StubbedCollector extends AbstractCollectorPlugin {
 	}
 
 
+	private TransactionDto newTransaction(String id, String accountUuid, TransactionDto.TransactionDtoType type, Date dateTransaction, Date dateValue,
+										  String label, String details, double amount, String currencyCode) {
+		TransactionPool pool = this.pool;
+		if (pool == null) {
+			return new TransactionDto(id, accountUuid, type, dateTransaction, dateValue, label, details, amount, currencyCode);
+		}
+		return pool.acquire(id, accountUuid, type, dateTransaction, dateValue, label, details, amount, currencyCode);
+	}
+
+	private TransactionDto newTransaction(String id, String accountUuid, TransactionDto.TransactionDtoType type, long dateTransaction, long dateValue,
+										  String label, String details, double amount, String currencyCode) {
+		TransactionPool pool = this.pool;
+		if (pool == null) {
+			return new TransactionDto(id, accountUuid, type, new Date(dateTransaction), new Date(dateValue), label, details, amount, currencyCode);
+		}
+		return pool.acquire(id, accountUuid, type, dateTransaction, dateValue, label, details, amount, currencyCode);
+	}
+
 	TransactionDto generateOperation() {
-		long dateValue = beginDate.getTime() + (long) (RANDOM.nextDouble() * (endDate.getTime() - beginDate.getTime()));
-		long dateOperation = dateValue + (long) (RANDOM.nextDouble() * (endDate.getTime() - dateValue));
-		TransactionDto.TransactionDtoType type = getTransactionDtoType(dateOperation);
-		return new TransactionDto(
-				UUID.randomUUID().toString(),
+		return generateOperation(mix.sample(RANDOM));
+	}
+
+	private TransactionDto generateOperation(TransactionDto.TransactionDtoType type) {
+		long dateValue = windowBegin + (long) (RANDOM.nextDouble() * (windowEnd - windowBegin));
+		long dateOperation = dateValue + (long) (RANDOM.nextDouble() * (windowEnd - dateValue));
+		return newTransaction(
+				GenerationRandom.uuid(),
 				accountPayment.getUuid(),
                 type,
-                new Date(dateOperation),
-                new Date(dateValue),
+                dateOperation,
+                dateValue,
 				OperationLabelGenerator.generateOperationLabel(),
 				OperationLabelGenerator.generateOperationDetails(15),
-                RANDOM.nextDouble() * 1000 - 500,
-				"EUR"
+                Cents.toDouble(RANDOM.nextInt(100000) - 50000),
+				currencyOf(accountPayment)
         );
 	}
 
+	/**
+	 * @return an item whose image, if any, is a new temporary file owned by the caller, see
+	 * {@link FileGenerator#getRandomImageFile()}
+	 */
 	public static ItemDto generateItem() {
+		return generateItem(ScenarioPlan.DEFAULT.imagePercent, null, null);
+	}
+
+	/**
+	 * @param attachments files of the collector, null for an image owned by the caller
+	 * @param owner       id of the purchase of the item, null if none
+	 */
+	private static ItemDto generateItem(int imagePercent, FileGenerator.Attachments attachments, String owner) {
 		ItemDto dto = new ItemDto(
 				ItemLabelGenerator.generateProductName(),
 				randomPrice(),
@@ -556,18 +1657,14 @@ public class StubbedCollector extends AbstractCollectorPlugin {
 			dto.setReference(ItemDto.ProductReferenceType.SKU, "ABC-1234-XY");
 		}
 		if (randomYes(80)) {
-            try {
-                dto.setUrl(new URL("https://tibu.com"));
-            } catch (MalformedURLException e) {
-                // Ignore
-            }
-        }
-		if (randomYes(50)) {
+			dto.setUrl(ITEM_URL);
+		}
+		if (randomYes(imagePercent)) {
             try {
                 dto.addFile(new FileDto(
                         FileDto.FileDtoType.IMAGE,
                         "Cover of the image",
-                        FileGenerator.getRandomImageFile()
+                        attachments == null ? FileGenerator.getRandomImageFile() : attachments.randomImage(owner)
                 ));
             } catch (IOException e) {
                 // Ignore
@@ -576,18 +1673,84 @@ public class StubbedCollector extends AbstractCollectorPlugin {
 		return dto;
 	}
 
-	private static TransactionDto.TransactionDtoType getTransactionDtoType(long dateOperation) {
-		TransactionDto.TransactionDtoType type = TransactionDto.TransactionDtoType.PAYMENT;
-		if (dateOperation % 11 == 0) {
-			type = TransactionDto.TransactionDtoType.PURCHASE;
+	private Date randomDate() {
+		return new Date(randomMillis());
+	}
+
+	/**
+	 * Same as {@link #randomDate()}, for the transactions that may take their dates from a pool
+	 */
+	private long randomMillis() {
+		return windowBegin + (long) (RANDOM.nextDouble() * (windowEnd - windowBegin));
+	}
+
+	private static String currencyOf(AccountDto account) {
+		String currency = account.getCurrencyCode();
+		return currency == null ? FxRateTable.BASE : currency;
+	}
+
+	/**
+	 * @return the rate table of the collect date range, built on first use
+	 */
+	FxRateTable fxRates() {
+		FxRateTable rates = fxRates;
+		if (rates == null) {
+			synchronized (this) {
+				rates = fxRates;
+				if (rates == null) {
+					rates = new FxRateTable(
+							fxSeed,
+							Math.floorDiv(rangeBegin, MILLIS_PER_DAY),
+							Math.floorDiv(rangeEnd, MILLIS_PER_DAY),
+							currencyOf(accountPayment), currencyOf(accountSaving), currencyOf(accountShopping)
+					);
+					fxRates = rates;
+				}
+			}
 		}
-		else if (dateOperation % 7 == 0) {
-			type = TransactionDto.TransactionDtoType.INTERNAL;
+		return rates;
+	}
+
+	private static URL itemUrl() {
+		try {
+			return new URL("https://tibu.com");
+		} catch (MalformedURLException e) {
+			throw new IllegalStateException(e);
 		}
-		else if (dateOperation % 5 == 0) {
-			type = TransactionDto.TransactionDtoType.TRANSFER;
+	}
+
+	/**
+	 * Builds the items, payment and files of a purchase generated with {@code lazyItems}.
+	 * Does nothing for other transactions, for the purchases of a previous collect, or if the purchase has
+	 * already been materialized.
+	 *
+	 * @param transaction a transaction returned by this collector
+	 * @return the same transaction
+	 */
+	public TransactionDto materialize(TransactionDto transaction) {
+		PurchaseDescriptor descriptor = transaction instanceof StoredPurchase
+				? ((StoredPurchase) transaction).takeDescriptor()
+				: lazyPurchases.remove(transaction.getId());
+		if (descriptor != null) {
+			descriptor.materializeInto(transaction, attachments);
 		}
-		return type;
+		return transaction;
+	}
+
+	/**
+	 * @param transactionId id of a transaction of the last collect
+	 * @return the files attached to the transaction so far: the images of its items, then its invoice.
+	 * Empty for a lazy purchase not materialized yet
+	 */
+	List<Path> attachmentsOf(String transactionId) {
+		return attachments.of(transactionId);
+	}
+
+	/**
+	 * @return the number of transactions by page, 0 if paging is off
+	 */
+	int getPageSize() {
+		return pageSize;
 	}
 
 	void addError(TransactionDto dto) {
@@ -644,7 +1807,7 @@ public class StubbedCollector extends AbstractCollectorPlugin {
 	}
 
 	public static double randomPrice() {
-		return 1 + (RANDOM.nextDouble() * 499);
+		return Cents.toDouble(Cents.randomPrice(RANDOM));
 	}
 
 	public static int randomQuantity() {
@@ -659,22 +1822,32 @@ public class StubbedCollector extends AbstractCollectorPlugin {
 	}
 
 	public static int randomItemQuantity() {
-		int randInt = RANDOM.nextInt(100);
-		if (randInt < 70) {
-			return 1;
-		} else if (randInt < 80) {
-			return 2 + RANDOM.nextInt(5);
-		} else if (randInt < 95) {
-			return 5 + RANDOM.nextInt(10);
-		} else {
-			return 10 + RANDOM.nextInt(50);
-		}
+		return ScenarioPlan.DEFAULT.randomItemQuantity(RANDOM);
 	}
 
 	public void setType(Type type) {
 		this.type = type;
 	}
 
+	/**
+	 * @param errorMix weights of the ways each attempt fails, for example
+	 *                 {@code ERR_CollectError=40,ERR_TemporaryUnavailable=60}, null to use the type
+	 */
+	public void setErrorMix(String errorMix) {
+		this.errorMix = errorMix;
+	}
+
+	public void setErrorStackTraces(boolean errorStackTraces) {
+		this.errorStackTraces = errorStackTraces;
+	}
+
+	/**
+	 * @return the counters of the error-storm mode, null unless an error mix has been validated
+	 */
+	public ErrorStorm getErrorStorm() {
+		return storm;
+	}
+
 	public void setCorrectOpCount(int correctOpCount) {
 		this.correctOpCount = correctOpCount;
 	}
@@ -691,6 +1864,25 @@ public class StubbedCollector extends AbstractCollectorPlugin {
 		this.endDate = endDate;
 	}
 
+	/**
+	 * @return the clock the delays of the collector are measured with
+	 */
+	Clock getClock() {
+		return clock;
+	}
+
+	/**
+	 * Source of "now" for the default period, the recurring payments and the delays. With a
+	 * {@link SimulatedClock} a long schedule of collects plays out in minutes: delays are shortened and
+	 * the default period follows the simulated time at each {@link #validate()}.
+	 */
+	public void setClock(Clock clock) {
+		this.clock = clock;
+		if (datesFromClock()) {
+			resetDates();
+		}
+	}
+
 	public void setParameterErrorField(String parameterErrorField) {
 		this.parameterErrorField = parameterErrorField;
 	}
@@ -711,6 +1903,63 @@ public class StubbedCollector extends AbstractCollectorPlugin {
 		this.delayInSeconds = delayInSeconds;
 	}
 
+	public void setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	public void setPageDelayMillis(long pageDelayMillis) {
+		this.pageDelayMillis = pageDelayMillis;
+	}
+
+	public void setLazyItems(boolean lazyItems) {
+		this.lazyItems = lazyItems;
+	}
+
+	public void setMultiCurrency(boolean multiCurrency) {
+		this.multiCurrency = multiCurrency;
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public void setShard(int shardIndex, int shardCount) {
+		this.shardIndex = shardIndex;
+		this.shardCount = shardCount;
+	}
+
+	public void setBalanceHistory(boolean balanceHistory) {
+		this.balanceHistory = balanceHistory;
+	}
+
+	public void setOffHeap(boolean offHeap) {
+		this.offHeap = offHeap;
+	}
+
+	public void setMemoryBudgetMb(int memoryBudgetMb) {
+		this.memoryBudgetMb = memoryBudgetMb;
+	}
+
+	public void setTypeMix(String typeMix) {
+		this.typeMix = typeMix;
+	}
+
+	public void setScenario(String scenario) {
+		this.scenario = scenario;
+	}
+
+	public void setAccountCount(int accountCount) {
+		this.accountCount = accountCount;
+	}
+
+	public void setTransferFanOut(int transferFanOut) {
+		this.transferFanOut = transferFanOut;
+	}
+
+	public void setTopologyShape(AccountTopology.Shape topologyShape) {
+		this.topologyShape = topologyShape;
+	}
+
 	public boolean isAskForCode() {
 		return askForCode;
 	}
@@ -718,4 +1967,12 @@ public class StubbedCollector extends AbstractCollectorPlugin {
 	public void setAskForCode(boolean askForCode) {
 		this.askForCode = askForCode;
 	}
+
+	/**
+	 * Use a simulated OTP provider instead of the one given by the host.
+	 * {@link #setAskForCode(boolean)} must also be enabled for the code to be requested.
+	 */
+	public void setSimulatedOtpProvider(SimulatedOtpProvider simulatedOtpProvider) {
+		this.otpProvider = simulatedOtpProvider;
+	}
 }
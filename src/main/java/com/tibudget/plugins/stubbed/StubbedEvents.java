@@ -0,0 +1,126 @@
+package com.tibudget.plugins.stubbed;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events emitted by the stubbed collector.
+ * <p>
+ * Events are only committed when a recording has them enabled, so the cost when JFR is off
+ * is a single {@code shouldCommit()} check. Callers fill the fields only after that check.
+ */
+public final class StubbedEvents {
+
+    private static final String CATEGORY = "Tibudget";
+    private static final String SUB_CATEGORY = "Stubbed collector";
+
+    private StubbedEvents() {
+    }
+
+    @Name("com.tibudget.stubbed.CollectPhase")
+    @Label("Collect Phase")
+    @Description("One phase of StubbedCollector.collect()")
+    @Category({CATEGORY, SUB_CATEGORY})
+    @StackTrace(false)
+    public static class CollectPhase extends Event {
+
+        @Label("Phase")
+        public String phase;
+
+        @Label("Collector Type")
+        public String collectorType;
+
+        @Label("Transaction Count")
+        @Description("Transactions held by the collector at the end of the phase")
+        public int transactionCount;
+    }
+
+    @Name("com.tibudget.stubbed.GenerationBatch")
+    @Label("Generation Batch")
+    @Description("One call to a transaction generator")
+    @Category({CATEGORY, SUB_CATEGORY})
+    @StackTrace(false)
+    public static class GenerationBatch extends Event {
+
+        @Label("Generator")
+        public String generator;
+
+        @Label("Recurring Series")
+        @Description("Seed of the recurring payment, recurring generator only")
+        public String series;
+
+        @Label("Transaction Count")
+        public int transactionCount;
+
+        @Label("Item Count")
+        public int itemCount;
+
+        @Label("File Count")
+        public int fileCount;
+    }
+
+    @Name("com.tibudget.stubbed.FileExtraction")
+    @Label("Sample File Extraction")
+    @Description("Copy of a sample resource to a temporary file")
+    @Category({CATEGORY, SUB_CATEGORY})
+    @StackTrace(false)
+    public static class FileExtraction extends Event {
+
+        @Label("Resource")
+        public String resource;
+
+        @Label("Bytes")
+        @DataAmount
+        public long bytes;
+    }
+
+    @Name("com.tibudget.stubbed.OtpWait")
+    @Label("OTP Wait")
+    @Description("Time spent waiting for the OTP provider to return a code")
+    @Category({CATEGORY, SUB_CATEGORY})
+    @StackTrace(false)
+    public static class OtpWait extends Event {
+
+        @Label("Channel")
+        public String channel;
+
+        @Label("Answered")
+        public boolean answered;
+    }
+
+    @Name("com.tibudget.stubbed.LedgerFlush")
+    @Label("Ledger Flush")
+    @Description("Balances of the generated operations written to the accounts")
+    @Category({CATEGORY, SUB_CATEGORY})
+    @StackTrace(false)
+    public static class LedgerFlush extends Event {
+
+        @Label("Account Count")
+        public int accountCount;
+
+        @Label("Residual Account Count")
+        @Description("Accounts whose balance has a part not representable in cents")
+        public int residualAccountCount;
+    }
+
+    @Name("com.tibudget.stubbed.InjectedDelay")
+    @Label("Injected Delay")
+    @Description("Artificial delay injected to simulate a slow bank")
+    @Category({CATEGORY, SUB_CATEGORY})
+    @StackTrace(false)
+    public static class InjectedDelay extends Event {
+
+        @Label("Reason")
+        public String reason;
+
+        @Label("Requested")
+        @Timespan(Timespan.MILLISECONDS)
+        public long requestedMillis;
+    }
+}
@@ -0,0 +1,35 @@
+package com.tibudget.plugins.stubbed;
+
+import com.tibudget.dto.TransactionDto;
+
+import java.util.List;
+
+/**
+ * One page of transactions returned by {@link StubbedCollector#getTransactionPage(String)}.
+ */
+public class TransactionPage {
+
+	private final List<TransactionDto> transactions;
+
+	private final String nextCursor;
+
+	public TransactionPage(List<TransactionDto> transactions, String nextCursor) {
+		this.transactions = transactions;
+		this.nextCursor = nextCursor;
+	}
+
+	public List<TransactionDto> getTransactions() {
+		return transactions;
+	}
+
+	/**
+	 * @return the opaque cursor of the next page, or null if this page is the last one
+	 */
+	public String getNextCursor() {
+		return nextCursor;
+	}
+
+	public boolean isLast() {
+		return nextCursor == null;
+	}
+}
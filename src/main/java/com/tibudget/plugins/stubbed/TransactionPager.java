@@ -0,0 +1,170 @@
+package com.tibudget.plugins.stubbed;
+
+import com.tibudget.dto.TransactionDto;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Serves generated transactions page by page, like a paginated bank API.
+ * <p>
+ * Transactions are pulled from a lazy source of generation chunks only when a page is requested,
+ * and a page is dropped as soon as the next one is requested. Only the last page can be requested
+ * again (retry); any other cursor is rejected. Cursors are opaque and bound to one pager instance,
+ * so a cursor from a previous collect cannot be replayed.
+ */
+class TransactionPager {
+
+	private final String runId = UUID.randomUUID().toString();
+
+	private final int pageSize;
+
+	private final long pageDelayMillis;
+
+	private final Clock clock;
+
+	private final Iterator<List<TransactionDto>> source;
+
+	/**
+	 * Generated transactions not served yet: the tail of the last chunk that did not fit in a page
+	 */
+	private final Deque<TransactionDto> pending = new ArrayDeque<>();
+
+	private int nextPageIndex = 0;
+
+	private TransactionPage lastPage;
+
+	/**
+	 * @param clock the page delay is measured with this clock, see {@link SimulatedClock}
+	 */
+	TransactionPager(int pageSize, long pageDelayMillis, Clock clock, Iterator<List<TransactionDto>> source) {
+		if (pageSize <= 0) {
+			throw new IllegalArgumentException("pageSize must be positive: " + pageSize);
+		}
+		this.pageSize = pageSize;
+		this.pageDelayMillis = pageDelayMillis;
+		this.clock = clock;
+		this.source = source;
+	}
+
+	/**
+	 * The page delay is waited before taking the lock of the pager, so concurrent requests wait together
+	 * and {@link #betweenPages(Runnable)} is never held up by a sleeping request.
+	 *
+	 * @param cursor null for the first page, otherwise the cursor returned with the previous page
+	 * @return the requested page
+	 * @throws IllegalArgumentException if the cursor is unknown or expired
+	 */
+	TransactionPage getPage(String cursor) {
+		int pageIndex = cursor == null ? 0 : decode(cursor);
+		TransactionPage retried = retry(pageIndex);
+		if (retried != null) {
+			return retried;
+		}
+		delay();
+		return nextPage(pageIndex, cursor);
+	}
+
+	private synchronized TransactionPage retry(int pageIndex) {
+		if (lastPage != null && pageIndex == nextPageIndex - 1) {
+			// Retry of the page just served
+			return lastPage;
+		}
+		return null;
+	}
+
+	private synchronized TransactionPage nextPage(int pageIndex, String cursor) {
+		TransactionPage retried = retry(pageIndex);
+		if (retried != null) {
+			// Served by a concurrent request with the same cursor
+			return retried;
+		}
+		if (pageIndex != nextPageIndex) {
+			throw new IllegalArgumentException("Unknown or expired cursor: " + cursor);
+		}
+
+		List<TransactionDto> page = new ArrayList<>(pageSize);
+		while (page.size() < pageSize) {
+			if (pending.isEmpty()) {
+				if (!source.hasNext()) {
+					break;
+				}
+				pending.addAll(source.next());
+				continue;
+			}
+			page.add(pending.poll());
+		}
+		nextPageIndex++;
+		boolean hasMore = !pending.isEmpty() || source.hasNext();
+		lastPage = new TransactionPage(page, hasMore ? encode(nextPageIndex) : null);
+		return lastPage;
+	}
+
+	/**
+	 * Runs an action while no page is being generated, for the actions that must not see a page half done
+	 */
+	synchronized void betweenPages(Runnable action) {
+		action.run();
+	}
+
+	/**
+	 * Hands every transaction not served yet, chunk by chunk, for hosts that do not page.
+	 */
+	synchronized void drain(Consumer<List<TransactionDto>> sink) {
+		if (!pending.isEmpty()) {
+			sink.accept(new ArrayList<>(pending));
+			pending.clear();
+		}
+		source.forEachRemaining(sink);
+	}
+
+	private void delay() {
+		if (pageDelayMillis <= 0) {
+			return;
+		}
+		StubbedEvents.InjectedDelay event = new StubbedEvents.InjectedDelay();
+		event.begin();
+		try {
+			SimulatedClock.sleep(clock, pageDelayMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while serving a page", e);
+		}
+		event.end();
+		if (event.shouldCommit()) {
+			event.reason = "page";
+			event.requestedMillis = pageDelayMillis;
+			event.commit();
+		}
+	}
+
+	private String encode(int pageIndex) {
+		String raw = runId + ":" + pageIndex;
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return the page index, or -1 if the cursor was not issued by this pager
+	 */
+	private int decode(String cursor) {
+		try {
+			String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+			int sep = raw.lastIndexOf(':');
+			if (sep < 0 || !runId.equals(raw.substring(0, sep))) {
+				return -1;
+			}
+			return Integer.parseInt(raw.substring(sep + 1));
+		} catch (IllegalArgumentException e) {
+			// Invalid Base64 or page number
+			return -1;
+		}
+	}
+}
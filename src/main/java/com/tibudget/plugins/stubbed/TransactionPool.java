@@ -0,0 +1,404 @@
+package com.tibudget.plugins.stubbed;
+
+import com.tibudget.dto.FileDto;
+import com.tibudget.dto.ItemDto;
+import com.tibudget.dto.PaymentDto;
+import com.tibudget.dto.TransactionDto;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Recycles the transactions of {@link StubbedCollector#publishTransactions(TransactionPool)}, for hosts that
+ * process each transaction and drop it.
+ * <p>
+ * Ownership: a transaction received by {@code onNext} belongs to the subscriber until the subscriber gives it
+ * back with {@link #release(TransactionDto)} or {@link #release(Collection)}, typically once a batch has been
+ * acknowledged. After that the pool hands the same instance, and its dates, to a later transaction: the
+ * subscriber must not keep a reference to it or to its dates. Purchases, which carry items, payments and
+ * files, are never recycled, releasing them does nothing.
+ * <p>
+ * The API has no setter for the id, type and currency of a transaction, the pool resets them through
+ * reflection, so that a recycled instance is in every way the transaction it now holds: getters,
+ * {@code equals}, {@code hashCode}, {@code toString} and serialization. If they cannot be reset, the pool
+ * never recycles (see {@link #isRecycling()}).
+ * <p>
+ * In debug mode every getter of a released transaction and of its dates throws an
+ * {@link IllegalStateException}, so that a use after release fails where it happens instead of reading the
+ * fields of another transaction. Releasing a transaction twice always fails.
+ */
+public final class TransactionPool {
+
+	/**
+	 * Fields of {@link TransactionDto} without setter, null if they cannot be reset
+	 */
+	private static final Field[] CONSTRUCTOR_ONLY_FIELDS = constructorOnlyFields();
+
+	private final ArrayBlockingQueue<PooledTransaction> idle;
+
+	private final boolean debug;
+
+	private final LongAdder created = new LongAdder();
+
+	private final LongAdder reused = new LongAdder();
+
+	/**
+	 * @param maxIdle maximum number of released transactions kept for reuse
+	 * @param debug   true to detect the uses of released transactions, at the cost of a check in every getter
+	 */
+	public TransactionPool(int maxIdle, boolean debug) {
+		if (maxIdle <= 0) {
+			throw new IllegalArgumentException("maxIdle must be positive: " + maxIdle);
+		}
+		this.idle = new ArrayBlockingQueue<>(maxIdle);
+		this.debug = debug;
+	}
+
+	TransactionDto acquire(String id, String accountUuid, TransactionDto.TransactionDtoType type, Date dateTransaction, Date dateValue,
+						   String label, String details, double amount, String currencyCode) {
+		return acquire(id, accountUuid, type, dateTransaction.getTime(), dateValue.getTime(), label, details, amount, currencyCode);
+	}
+
+	TransactionDto acquire(String id, String accountUuid, TransactionDto.TransactionDtoType type, long dateTransaction, long dateValue,
+						   String label, String details, double amount, String currencyCode) {
+		PooledTransaction transaction = idle.poll();
+		if (transaction == null) {
+			created.increment();
+			return new PooledTransaction(this, id, accountUuid, type, new PooledDate(this, dateTransaction), new PooledDate(this, dateValue),
+					label, details, amount, currencyCode);
+		}
+		reused.increment();
+		transaction.reuse(id, accountUuid, type, dateTransaction, dateValue, label, details, amount, currencyCode);
+		return transaction;
+	}
+
+	/**
+	 * Gives a transaction back to the pool, see the ownership rules of the class.
+	 *
+	 * @throws IllegalStateException    if the transaction has already been released
+	 * @throws IllegalArgumentException if the transaction comes from another pool
+	 */
+	public void release(TransactionDto transaction) {
+		if (!(transaction instanceof PooledTransaction)) {
+			return;
+		}
+		PooledTransaction pooled = (PooledTransaction) transaction;
+		if (pooled.pool != this) {
+			throw new IllegalArgumentException("Transaction " + pooled.id() + " comes from another pool");
+		}
+		if (pooled.released) {
+			throw new IllegalStateException("Transaction " + pooled.id() + " released twice");
+		}
+		pooled.released = true;
+		pooled.dateTransaction.released = true;
+		pooled.dateValue.released = true;
+		// Over maxIdle, or if a field could not be reset, the instance is left to the GC
+		if (isRecycling() && pooled.isResettable()) {
+			idle.offer(pooled);
+		}
+	}
+
+	/**
+	 * Gives back a batch of transactions, see {@link #release(TransactionDto)}.
+	 */
+	public void release(Collection<? extends TransactionDto> transactions) {
+		for (TransactionDto transaction : transactions) {
+			release(transaction);
+		}
+	}
+
+	/**
+	 * @return false if released transactions are left to the GC, because the fields of a transaction
+	 * without setter cannot be reset
+	 */
+	public static boolean isRecycling() {
+		return CONSTRUCTOR_ONLY_FIELDS != null;
+	}
+
+	private static Field[] constructorOnlyFields() {
+		try {
+			Field[] fields = {
+					TransactionDto.class.getDeclaredField("id"),
+					TransactionDto.class.getDeclaredField("type"),
+					TransactionDto.class.getDeclaredField("currencyCode")
+			};
+			Class<?>[] types = {String.class, TransactionDto.TransactionDtoType.class, String.class};
+			for (int i = 0; i < fields.length; i++) {
+				if (fields[i].getType() != types[i] || Modifier.isStatic(fields[i].getModifiers())) {
+					return null;
+				}
+				fields[i].setAccessible(true);
+			}
+			return fields;
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return the number of transactions allocated by the pool
+	 */
+	public long getCreated() {
+		return created.sum();
+	}
+
+	/**
+	 * @return the number of transactions served from released instances
+	 */
+	public long getReused() {
+		return reused.sum();
+	}
+
+	private void checkReleased(boolean released) {
+		if (released && debug) {
+			throw new IllegalStateException("Pooled transaction used after its release");
+		}
+	}
+
+	/**
+	 * Transaction whose fields are all reset on reuse, see {@link #isRecycling()}.
+	 */
+	private static final class PooledTransaction extends TransactionDto {
+
+		private final transient TransactionPool pool;
+
+		private final transient PooledDate dateTransaction;
+
+		private final transient PooledDate dateValue;
+
+		private final transient TransactionDtoState initialState;
+
+		private transient volatile boolean released;
+
+		PooledTransaction(TransactionPool pool, String id, String accountUuid, TransactionDtoType type, PooledDate dateTransaction, PooledDate dateValue,
+						  String label, String details, double amount, String currencyCode) {
+			super(id, accountUuid, type, dateTransaction, dateValue, label, details, amount, currencyCode);
+			this.pool = pool;
+			this.dateTransaction = dateTransaction;
+			this.dateValue = dateValue;
+			this.initialState = super.getState();
+		}
+
+		void reuse(String id, String accountUuid, TransactionDtoType type, long dateTransaction, long dateValue,
+				   String label, String details, double amount, String currencyCode) {
+			try {
+				CONSTRUCTOR_ONLY_FIELDS[0].set(this, id);
+				CONSTRUCTOR_ONLY_FIELDS[1].set(this, type);
+				CONSTRUCTOR_ONLY_FIELDS[2].set(this, currencyCode);
+			} catch (IllegalAccessException e) {
+				// Checked by constructorOnlyFields()
+				throw new IllegalStateException(e);
+			}
+			this.dateTransaction.reuse(dateTransaction);
+			this.dateValue.reuse(dateValue);
+			setAccountUuid(accountUuid);
+			setDateTransaction(this.dateTransaction);
+			setDateValue(this.dateValue);
+			setLabel(label);
+			setDetails(details);
+			setAmount(amount);
+			setRecurrentPaymentUuid(null);
+			setState(initialState);
+			released = false;
+		}
+
+		/**
+		 * @return false if the subscriber added content the pool cannot remove, or replaced the dates
+		 */
+		boolean isResettable() {
+			return isEmpty(super.getItems()) && isEmpty(super.getPayments()) && isEmpty(super.getFiles())
+					&& super.getDateTransaction() == dateTransaction && super.getDateValue() == dateValue;
+		}
+
+		private static boolean isEmpty(List<?> list) {
+			return list == null || list.isEmpty();
+		}
+
+		/**
+		 * Serialized as a plain transaction, a deserialized copy does not belong to the pool
+		 */
+		private Object writeReplace() {
+			TransactionDto copy = new TransactionDto(super.getId(), super.getAccountUuid(), super.getType(),
+					copy(super.getDateTransaction()), copy(super.getDateValue()), super.getLabel(), super.getDetails(),
+					super.getAmount(), super.getCurrencyCode());
+			copy.setRecurrentPaymentUuid(super.getRecurrentPaymentUuid());
+			copy.setState(super.getState());
+			if (super.getItems() != null) {
+				super.getItems().forEach(copy::addItem);
+			}
+			if (super.getPayments() != null) {
+				super.getPayments().forEach(copy::addPayment);
+			}
+			if (super.getFiles() != null) {
+				super.getFiles().forEach(copy::addFile);
+			}
+			return copy;
+		}
+
+		/**
+		 * @return the id, without the check of the debug mode
+		 */
+		String id() {
+			return super.getId();
+		}
+
+		private static Date copy(Date date) {
+			return date == null ? null : new Date(date.getTime());
+		}
+
+		@Override
+		public String getId() {
+			pool.checkReleased(released);
+			return super.getId();
+		}
+
+		@Override
+		public TransactionDtoType getType() {
+			pool.checkReleased(released);
+			return super.getType();
+		}
+
+		@Override
+		public String getCurrencyCode() {
+			pool.checkReleased(released);
+			return super.getCurrencyCode();
+		}
+
+		@Override
+		public String getAccountUuid() {
+			pool.checkReleased(released);
+			return super.getAccountUuid();
+		}
+
+		@Override
+		public Date getDateTransaction() {
+			pool.checkReleased(released);
+			return super.getDateTransaction();
+		}
+
+		@Override
+		public Date getDateValue() {
+			pool.checkReleased(released);
+			return super.getDateValue();
+		}
+
+		@Override
+		public String getLabel() {
+			pool.checkReleased(released);
+			return super.getLabel();
+		}
+
+		@Override
+		public String getDetails() {
+			pool.checkReleased(released);
+			return super.getDetails();
+		}
+
+		@Override
+		public double getAmount() {
+			pool.checkReleased(released);
+			return super.getAmount();
+		}
+
+		@Override
+		public String getRecurrentPaymentUuid() {
+			pool.checkReleased(released);
+			return super.getRecurrentPaymentUuid();
+		}
+
+		@Override
+		public TransactionDtoState getState() {
+			pool.checkReleased(released);
+			return super.getState();
+		}
+
+		@Override
+		public List<ItemDto> getItems() {
+			pool.checkReleased(released);
+			return super.getItems();
+		}
+
+		@Override
+		public List<PaymentDto> getPayments() {
+			pool.checkReleased(released);
+			return super.getPayments();
+		}
+
+		@Override
+		public List<FileDto> getFiles() {
+			pool.checkReleased(released);
+			return super.getFiles();
+		}
+	}
+
+	/**
+	 * Date recycled with its transaction.
+	 */
+	private static final class PooledDate extends Date {
+
+		private static final long serialVersionUID = 1L;
+
+		private final transient TransactionPool pool;
+
+		private volatile boolean released;
+
+		PooledDate(TransactionPool pool, long time) {
+			super(time);
+			this.pool = pool;
+		}
+
+		void reuse(long time) {
+			super.setTime(time);
+			released = false;
+		}
+
+		@Override
+		public long getTime() {
+			pool.checkReleased(released);
+			return super.getTime();
+		}
+
+		@Override
+		public Instant toInstant() {
+			return Instant.ofEpochMilli(getTime());
+		}
+
+		@Override
+		public boolean before(Date when) {
+			return getTime() < when.getTime();
+		}
+
+		@Override
+		public boolean after(Date when) {
+			return getTime() > when.getTime();
+		}
+
+		@Override
+		public int compareTo(Date other) {
+			return Long.compare(getTime(), other.getTime());
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Date && getTime() == ((Date) obj).getTime();
+		}
+
+		@Override
+		public int hashCode() {
+			long time = getTime();
+			return (int) time ^ (int) (time >> 32);
+		}
+
+		@Override
+		public String toString() {
+			pool.checkReleased(released);
+			return super.toString();
+		}
+	}
+}
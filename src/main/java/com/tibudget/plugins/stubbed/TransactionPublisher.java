@@ -0,0 +1,227 @@
+package com.tibudget.plugins.stubbed;
+
+import com.tibudget.dto.TransactionDto;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes generated transactions as subscribers request them.
+ * <p>
+ * Chunks are generated only when the subscriber has unfulfilled demand, so a slow subscriber slows
+ * down generation, and a cancelled subscription stops it. Generation and signals run on a scheduler thread
+ * owned by the subscription, one task at a time. Delays are scheduled, no thread ever sleeps. The scheduler
+ * is shut down once the subscription completes, fails or is cancelled, and its thread also ends while
+ * the subscriber requests nothing, so a host unloading the plugin is left with no thread of it.
+ * <p>
+ * Generation is not repeatable, so the publisher accepts a single subscriber.
+ */
+final class TransactionPublisher implements Flow.Publisher<TransactionDto> {
+
+	private final Iterator<List<TransactionDto>> chunks;
+
+	private final AtomicLong pendingDelay;
+
+	private final Runnable onComplete;
+
+	private final Throwable failure;
+
+	private final AtomicBoolean subscribed = new AtomicBoolean();
+
+	/**
+	 * @param chunks       lazy source of the transactions
+	 * @param pendingDelay milliseconds to wait before emitting the next chunk, the generators add their
+	 *                     delays to it instead of sleeping
+	 * @param onComplete   called once all the chunks have been generated, before {@code onComplete}
+	 */
+	TransactionPublisher(Iterator<List<TransactionDto>> chunks, AtomicLong pendingDelay, Runnable onComplete) {
+		this(chunks, pendingDelay, onComplete, null);
+	}
+
+	private TransactionPublisher(Iterator<List<TransactionDto>> chunks, AtomicLong pendingDelay, Runnable onComplete, Throwable failure) {
+		this.chunks = chunks;
+		this.pendingDelay = pendingDelay;
+		this.onComplete = onComplete;
+		this.failure = failure;
+	}
+
+	/**
+	 * @return a publisher signalling the error to its subscriber, without waiting for any request
+	 */
+	static TransactionPublisher failed(Throwable failure) {
+		return new TransactionPublisher(Collections.emptyIterator(), new AtomicLong(), () -> { }, failure);
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super TransactionDto> subscriber) {
+		Objects.requireNonNull(subscriber, "subscriber");
+		if (!subscribed.compareAndSet(false, true)) {
+			subscriber.onSubscribe(new Flow.Subscription() {
+				@Override
+				public void request(long n) {
+				}
+
+				@Override
+				public void cancel() {
+				}
+			});
+			subscriber.onError(new IllegalStateException("Generated transactions can be published only once"));
+			return;
+		}
+		subscriber.onSubscribe(new GenerationSubscription(subscriber));
+	}
+
+	private final class GenerationSubscription implements Flow.Subscription, Runnable {
+
+		private final Flow.Subscriber<? super TransactionDto> subscriber;
+
+		private final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, task -> {
+			Thread thread = new Thread(task, "stubbed-collector-publisher");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		private final AtomicLong demand = new AtomicLong();
+
+		/**
+		 * Number of pending drain requests, the drain loop runs while it is not zero
+		 */
+		private final AtomicInteger wip = new AtomicInteger();
+
+		private volatile boolean cancelled;
+
+		private volatile long invalidRequest;
+
+		/**
+		 * Only accessed by the drain loop
+		 */
+		private boolean done;
+
+		private List<TransactionDto> chunk = Collections.emptyList();
+
+		private int index;
+
+		GenerationSubscription(Flow.Subscriber<? super TransactionDto> subscriber) {
+			this.subscriber = subscriber;
+			executor.setKeepAliveTime(1, TimeUnit.SECONDS);
+			executor.allowCoreThreadTimeOut(true);
+			executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				invalidRequest = n;
+			}
+			else {
+				long current;
+				do {
+					current = demand.get();
+				} while (current != Long.MAX_VALUE && !demand.compareAndSet(current, Long.MAX_VALUE - current < n ? Long.MAX_VALUE : current + n));
+			}
+			drain();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			drain();
+		}
+
+		private void drain() {
+			if (wip.getAndIncrement() == 0) {
+				try {
+					executor.execute(this);
+				} catch (RejectedExecutionException e) {
+					// Terminated, nothing left to signal
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			int missed = 1;
+			do {
+				if (cancelled || done) {
+					chunk = Collections.emptyList();
+					executor.shutdown();
+				}
+				else if (failure != null) {
+					fail(failure);
+				}
+				else if (invalidRequest != 0) {
+					fail(new IllegalArgumentException("Requested " + invalidRequest + " transactions, the request must be positive"));
+				}
+				else {
+					long requested = demand.get();
+					long emitted = 0;
+					while (emitted != requested && !cancelled && !done) {
+						if (index < chunk.size()) {
+							subscriber.onNext(chunk.get(index++));
+							emitted++;
+							continue;
+						}
+						long delay = pendingDelay.getAndSet(0);
+						if (delay > 0) {
+							consume(requested, emitted);
+							// wip stays positive, so no other drain starts before this one resumes
+							executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+							return;
+						}
+						try {
+							if (!chunks.hasNext()) {
+								complete();
+								break;
+							}
+							chunk = chunks.next();
+							index = 0;
+						} catch (RuntimeException e) {
+							fail(e);
+						}
+					}
+					if (emitted == requested && !cancelled && !done && index == chunk.size()) {
+						// The last transaction may consume the remaining demand, completion needs none
+						try {
+							if (!chunks.hasNext()) {
+								complete();
+							}
+						} catch (RuntimeException e) {
+							fail(e);
+						}
+					}
+					consume(requested, emitted);
+				}
+				missed = wip.addAndGet(-missed);
+			} while (missed != 0);
+		}
+
+		private void consume(long requested, long emitted) {
+			if (requested != Long.MAX_VALUE && emitted > 0) {
+				demand.addAndGet(-emitted);
+			}
+		}
+
+		private void complete() {
+			done = true;
+			executor.shutdown();
+			onComplete.run();
+			subscriber.onComplete();
+		}
+
+		private void fail(Throwable error) {
+			done = true;
+			executor.shutdown();
+			chunk = Collections.emptyList();
+			subscriber.onError(error);
+		}
+	}
+}
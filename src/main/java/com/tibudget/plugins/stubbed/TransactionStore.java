@@ -0,0 +1,63 @@
+package com.tibudget.plugins.stubbed;
+
+import com.tibudget.dto.TransactionDto;
+
+import java.io.Closeable;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Generated transactions kept outside of the heap until the host reads them.
+ * <p>
+ * A stored transaction is its header plus, for a purchase, its {@link PurchaseDescriptor}: reading it
+ * creates a new {@link TransactionDto} each time, a {@link StoredPurchase} for a purchase, whose items,
+ * payment and files are built again from the descriptor. Transactions with content and no descriptor cannot be stored.
+ */
+interface TransactionStore extends Closeable {
+
+	/**
+	 * @param transactions transactions to store
+	 * @param descriptors  removes and returns the descriptor of a purchase, null if it has none
+	 * @return the transactions that cannot be stored, with content and no descriptor
+	 */
+	List<TransactionDto> append(List<TransactionDto> transactions, Function<String, PurchaseDescriptor> descriptors);
+
+	int size();
+
+	/**
+	 * @param restored called with each purchase read back
+	 */
+	TransactionDto get(int index, Consumer<StoredPurchase> restored);
+
+	/**
+	 * Releases the stored transactions
+	 */
+	@Override
+	void close();
+
+	/**
+	 * @return a view of the transactions kept in the heap followed by the stored ones
+	 */
+	default List<TransactionDto> concat(List<TransactionDto> inMemory, Consumer<StoredPurchase> restored) {
+		int stored = size();
+		return new AbstractList<TransactionDto>() {
+			@Override
+			public TransactionDto get(int index) {
+				return index < inMemory.size() ? inMemory.get(index) : TransactionStore.this.get(index - inMemory.size(), restored);
+			}
+
+			@Override
+			public int size() {
+				return inMemory.size() + stored;
+			}
+		};
+	}
+
+	static boolean hasContent(TransactionDto transaction) {
+		return transaction.getItems() != null && !transaction.getItems().isEmpty()
+				|| transaction.getPayments() != null && !transaction.getPayments().isEmpty()
+				|| transaction.getFiles() != null && !transaction.getFiles().isEmpty();
+	}
+}
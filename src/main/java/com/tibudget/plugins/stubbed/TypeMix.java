@@ -0,0 +1,144 @@
+package com.tibudget.plugins.stubbed;
+
+import com.tibudget.dto.TransactionDto.TransactionDtoType;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+
+/**
+ * Weighted distribution of the {@link TransactionDtoType}s of generated operations.
+ * <p>
+ * Sampling uses Vose's alias method: one uniform index and one uniform double, whatever the number of
+ * types, so it is O(1) and independent of the date of the operation.
+ */
+public final class TypeMix {
+
+	private static final TransactionDtoType[] TYPES = TransactionDtoType.values();
+
+	/**
+	 * Historical proportions: 1/11 purchases, then 1/7 of the rest internal, 1/5 of the rest transfers,
+	 * payments otherwise
+	 */
+	public static final TypeMix DEFAULT = new TypeMix(defaultWeights());
+
+	private final double[] weights;
+
+	private final double[] probabilities;
+
+	private final int[] aliases;
+
+	/**
+	 * @param weights non-negative weight of each type, indexed by ordinal, at least one positive
+	 */
+	public TypeMix(double[] weights) {
+		if (weights.length != TYPES.length) {
+			throw new IllegalArgumentException("Expected " + TYPES.length + " weights, got " + weights.length);
+		}
+		double total = 0;
+		for (double weight : weights) {
+			if (!(weight >= 0) || Double.isInfinite(weight)) {
+				throw new IllegalArgumentException("Weights must be finite and not negative: " + weight);
+			}
+			total += weight;
+		}
+		if (total <= 0) {
+			throw new IllegalArgumentException("At least one weight must be positive");
+		}
+		this.weights = weights.clone();
+		this.probabilities = new double[TYPES.length];
+		this.aliases = new int[TYPES.length];
+
+		int n = TYPES.length;
+		double[] scaled = new double[n];
+		Deque<Integer> small = new ArrayDeque<>();
+		Deque<Integer> large = new ArrayDeque<>();
+		for (int i = 0; i < n; i++) {
+			scaled[i] = weights[i] * n / total;
+			if (scaled[i] < 1.0) {
+				small.push(i);
+			}
+			else {
+				large.push(i);
+			}
+		}
+		while (!small.isEmpty() && !large.isEmpty()) {
+			int less = small.pop();
+			int more = large.pop();
+			probabilities[less] = scaled[less];
+			aliases[less] = more;
+			scaled[more] = scaled[more] + scaled[less] - 1.0;
+			if (scaled[more] < 1.0) {
+				small.push(more);
+			}
+			else {
+				large.push(more);
+			}
+		}
+		// Left overs are 1 up to rounding errors
+		while (!large.isEmpty()) {
+			int i = large.pop();
+			probabilities[i] = 1.0;
+			aliases[i] = i;
+		}
+		while (!small.isEmpty()) {
+			int i = small.pop();
+			probabilities[i] = 1.0;
+			aliases[i] = i;
+		}
+	}
+
+	/**
+	 * Parses a mix such as {@code PURCHASE=50,TRANSFER=30,PAYMENT=20}, missing types have a weight of 0.
+	 *
+	 * @throws IllegalArgumentException if the mix is invalid
+	 */
+	public static TypeMix parse(String mix) {
+		double[] weights = new double[TYPES.length];
+		for (String part : mix.split(",")) {
+			if (part.trim().isEmpty()) {
+				continue;
+			}
+			int equals = part.indexOf('=');
+			if (equals < 0) {
+				throw new IllegalArgumentException("Expected TYPE=weight: " + part.trim());
+			}
+			TransactionDtoType type;
+			try {
+				type = TransactionDtoType.valueOf(part.substring(0, equals).trim());
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Unknown transaction type: " + part.substring(0, equals).trim(), e);
+			}
+			try {
+				weights[type.ordinal()] = Double.parseDouble(part.substring(equals + 1).trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid weight: " + part.trim(), e);
+			}
+		}
+		return new TypeMix(weights);
+	}
+
+	public TransactionDtoType sample(Random random) {
+		int i = random.nextInt(TYPES.length);
+		return random.nextDouble() < probabilities[i] ? TYPES[i] : TYPES[aliases[i]];
+	}
+
+	/**
+	 * @return the weight of the type, as configured
+	 */
+	public double weight(TransactionDtoType type) {
+		return weights[type.ordinal()];
+	}
+
+	private static double[] defaultWeights() {
+		double[] weights = new double[TYPES.length];
+		double purchase = 1.0 / 11;
+		double internal = (1 - purchase) / 7;
+		double transfer = (1 - purchase - internal) / 5;
+		weights[TransactionDtoType.PURCHASE.ordinal()] = purchase;
+		weights[TransactionDtoType.INTERNAL.ordinal()] = internal;
+		weights[TransactionDtoType.TRANSFER.ordinal()] = transfer;
+		weights[TransactionDtoType.PAYMENT.ordinal()] = 1 - purchase - internal - transfer;
+		return weights;
+	}
+}
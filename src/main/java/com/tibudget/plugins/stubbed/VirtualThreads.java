@@ -0,0 +1,25 @@
+package com.tibudget.plugins.stubbed;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Executor factory used by {@link CollectorHarness}.
+ * <p>
+ * This is the Java 11 version: it falls back to one platform thread per task. The multi-release
+ * JAR built with the {@code jdk21} profile replaces it with a virtual-thread implementation
+ * (see {@code src/main/java21}).
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    static boolean isSupported() {
+        return false;
+    }
+
+    static ExecutorService newPerTaskExecutor() {
+        return Executors.newCachedThreadPool();
+    }
+}
@@ -0,0 +1,50 @@
+package com.tibudget.plugins.stubbed;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Moves the cold part of the first collect off the critical path.
+ * <p>
+ * Started by the first {@link StubbedCollector} instance (created by the {@code ServiceLoader} of the
+ * host), it initialises the classes with large static tables and reads the sample resources from the JAR
+ * in memory, on a daemon thread, while the host is still busy with other plugins and with the form.
+ * Tools that only use the classes of the plugin do not start it.
+ */
+final class Warmup {
+
+	private static final Logger LOG = Logger.getLogger(Warmup.class.getName());
+
+	private static final AtomicBoolean STARTED = new AtomicBoolean();
+
+	private Warmup() {
+	}
+
+	/**
+	 * Starts the warm-up once, returns immediately.
+	 */
+	static void start() {
+		if (STARTED.compareAndSet(false, true)) {
+			Thread thread = new Thread(Warmup::run, "stubbed-collector-warmup");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			thread.start();
+		}
+	}
+
+	static void run() {
+		long start = System.nanoTime();
+		try {
+			ItemLabelGenerator.productCount();
+			OperationLabelGenerator.generateOperationLabel();
+			Cents.randomPrice(new SplittableRandom());
+			FileGenerator.preload();
+		} catch (RuntimeException e) {
+			// Only an optimisation: whatever failed here is done again, and reported, on first use
+			LOG.log(Level.FINE, "Warm-up failed", e);
+		}
+		LOG.log(Level.FINE, "Warm-up done in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+	}
+}
@@ -0,0 +1,174 @@
+package com.tibudget.plugins.stubbed;
+
+import com.tibudget.api.exceptions.MessagesException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BankSimulatorTest {
+
+	private static final Pattern NEXT = Pattern.compile("\"next\":\"([^\"]+)\"");
+
+	private static final Pattern ID = Pattern.compile("\\{\"id\":\"([^\"]+)\",\"accountUuid\"");
+
+	private static final Pattern FILE = Pattern.compile("\"(/transactions/[^\"]+/files/\\d+)\"");
+
+	private static StubbedCollector pagedCollector() throws MessagesException {
+		StubbedCollector collector = new StubbedCollector();
+		collector.setDelayInSeconds(0);
+		collector.setCorrectOpCount(20);
+		collector.setPageSize(7);
+		assertEquals(0, collector.validate().size());
+		collector.collect();
+		return collector;
+	}
+
+	@Test
+	void testServesGeneratedData() throws Exception {
+		StubbedCollector collector = pagedCollector();
+		HttpClient client = HttpClient.newHttpClient();
+		try (BankSimulator simulator = new BankSimulator(collector, 0, BankSimulator.Profile.NONE)) {
+			URI base = simulator.getBaseUri();
+
+			HttpResponse<String> accounts = client.send(HttpRequest.newBuilder(base.resolve("accounts")).build(), HttpResponse.BodyHandlers.ofString());
+			assertEquals(200, accounts.statusCode());
+			assertTrue(accounts.body().contains("\"STUBBED_PAYMENT\""));
+
+			// Walk all the pages over one kept-alive connection
+			int pages = 0;
+			String cursor = null;
+			do {
+				String target = cursor == null ? "transactions" : "transactions?cursor=" + URLEncoder.encode(cursor, StandardCharsets.UTF_8);
+				HttpResponse<String> page = client.send(HttpRequest.newBuilder(base.resolve(target)).build(), HttpResponse.BodyHandlers.ofString());
+				assertEquals(200, page.statusCode(), page.body());
+				Matcher next = NEXT.matcher(page.body());
+				cursor = next.find() ? next.group(1) : null;
+				pages++;
+			} while (cursor != null);
+			assertTrue(pages > 1);
+
+			HttpResponse<byte[]> invoice = client.send(HttpRequest.newBuilder(base.resolve("files/invoice.pdf")).build(), HttpResponse.BodyHandlers.ofByteArray());
+			assertEquals(200, invoice.statusCode());
+			assertEquals("application/pdf", invoice.headers().firstValue("Content-Type").orElse(null));
+			try (InputStream resource = getClass().getClassLoader().getResourceAsStream("samples/invoice.pdf")) {
+				assertArrayEquals(resource.readAllBytes(), invoice.body());
+			}
+
+			HttpResponse<String> unknown = client.send(HttpRequest.newBuilder(base.resolve("files/../../etc/passwd")).build(), HttpResponse.BodyHandlers.ofString());
+			assertEquals(404, unknown.statusCode());
+		}
+	}
+
+	/**
+	 * @return the bodies of all the pages, read from the first one
+	 */
+	private static List<String> walk(HttpClient client, URI base) throws IOException, InterruptedException {
+		List<String> pages = new ArrayList<>();
+		String cursor = null;
+		do {
+			String target = cursor == null ? "transactions" : "transactions?cursor=" + URLEncoder.encode(cursor, StandardCharsets.UTF_8);
+			HttpResponse<String> page = client.send(HttpRequest.newBuilder(base.resolve(target)).build(), HttpResponse.BodyHandlers.ofString());
+			assertEquals(200, page.statusCode(), page.body());
+			pages.add(page.body());
+			Matcher next = NEXT.matcher(page.body());
+			cursor = next.find() ? next.group(1) : null;
+		} while (cursor != null);
+		return pages;
+	}
+
+	private static List<String> all(Pattern pattern, List<String> pages) {
+		List<String> found = new ArrayList<>();
+		for (String page : pages) {
+			Matcher matcher = pattern.matcher(page);
+			while (matcher.find()) {
+				found.add(matcher.group(1));
+			}
+		}
+		return found;
+	}
+
+	@Test
+	void testIndependentReaders() throws Exception {
+		StubbedCollector collector = new StubbedCollector();
+		collector.setDelayInSeconds(0);
+		collector.setCorrectOpCount(40);
+		collector.setPageSize(7);
+		collector.setPageDelayMillis(20);
+		collector.setLazyItems(true);
+		assertEquals(0, collector.validate().size());
+		collector.collect();
+		HttpClient client = HttpClient.newHttpClient();
+		try (BankSimulator simulator = new BankSimulator(collector, 0, BankSimulator.Profile.NONE)) {
+			URI base = simulator.getBaseUri();
+
+			// Concurrent readers each get every transaction, from the first page
+			ExecutorService readers = Executors.newFixedThreadPool(3);
+			List<Future<List<String>>> walks = new ArrayList<>();
+			for (int i = 0; i < 3; i++) {
+				walks.add(readers.submit(() -> walk(client, base)));
+			}
+			List<String> expected = null;
+			for (Future<List<String>> walk : walks) {
+				List<String> ids = all(ID, walk.get(30, TimeUnit.SECONDS));
+				if (expected == null) {
+					expected = ids;
+				}
+				assertEquals(expected, ids);
+			}
+			readers.shutdown();
+			assertFalse(expected.isEmpty());
+			assertEquals(expected.size(), new HashSet<>(expected).size());
+
+			// A late reader starts over without asking the collector again
+			List<String> pages = walk(client, base);
+			assertEquals(expected, all(ID, pages));
+
+			// Files of the transactions, materialized when fetched
+			for (String link : all(FILE, pages)) {
+				HttpResponse<byte[]> file = client.send(HttpRequest.newBuilder(base.resolve(link.substring(1))).build(), HttpResponse.BodyHandlers.ofByteArray());
+				assertEquals(200, file.statusCode(), link);
+				assertTrue(file.body().length > 0, link);
+			}
+			HttpResponse<String> unknown = client.send(HttpRequest.newBuilder(base.resolve("transactions/unknown/files/0")).build(), HttpResponse.BodyHandlers.ofString());
+			assertEquals(404, unknown.statusCode());
+
+			HttpResponse<String> invalid = client.send(HttpRequest.newBuilder(base.resolve("transactions?cursor=1000")).build(), HttpResponse.BodyHandlers.ofString());
+			assertEquals(400, invalid.statusCode());
+		}
+	}
+
+	@Test
+	void testFaultProfile() throws Exception {
+		StubbedCollector collector = pagedCollector();
+		HttpClient client = HttpClient.newHttpClient();
+		try (BankSimulator simulator = new BankSimulator(collector, 0, new BankSimulator.Profile(5, 20, 100))) {
+			HttpResponse<String> response = client.send(HttpRequest.newBuilder(simulator.getBaseUri().resolve("accounts")).build(), HttpResponse.BodyHandlers.ofString());
+			assertEquals(503, response.statusCode());
+			assertTrue(response.headers().firstValue("Retry-After").isPresent());
+		}
+	}
+
+	@Test
+	void testInvalidProfile() {
+		assertThrows(IllegalArgumentException.class, () -> new BankSimulator.Profile(10, 5, 0));
+		assertThrows(IllegalArgumentException.class, () -> new BankSimulator.Profile(0, 0, 101));
+	}
+}
@@ -0,0 +1,33 @@
+package com.tibudget.plugins.stubbed;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Run by the failsafe plugin of the {@code jdk21} profile, on the multi-release JAR and with a scheduler
+ * of two carrier threads.
+ */
+public class CollectorHarnessIT {
+
+	@Test
+	void testDelaysDoNotPinCarrierThreads() throws InterruptedException {
+		assertTrue(VirtualThreads.isSupported(), "Java 21 classes of the multi-release JAR not loaded");
+
+		CollectorHarness.Report report = new CollectorHarness(200, () -> {
+			StubbedCollector collector = new StubbedCollector();
+			collector.setCorrectOpCount(1);
+			collector.setDelayInSeconds(1);
+			return collector;
+		}).run();
+
+		assertTrue(report.failures.isEmpty(), report.toString());
+		assertTrue(report.virtualThreads, report.toString());
+		// Blocked in their delay together: about one delay, pinned carriers would need 200 / 2 delays
+		assertTrue(report.maxConcurrentCollectors > 2, report.toString());
+		assertTrue(report.elapsedNanos < TimeUnit.SECONDS.toNanos(10), report.toString());
+		assertTrue(report.extraPlatformThreads() < report.collectorCount / 4, report.toString());
+	}
+}
@@ -0,0 +1,38 @@
+package com.tibudget.plugins.stubbed;
+
+import com.tibudget.api.exceptions.CollectError;
+import com.tibudget.plugins.stubbed.StubbedCollector.Type;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CollectorHarnessTest {
+
+	@Test
+	void testConcurrentCollectors() throws InterruptedException {
+		CollectorHarness.Report report = new CollectorHarness(20, () -> {
+			StubbedCollector collector = new StubbedCollector();
+			collector.setCorrectOpCount(2);
+			collector.setDelayInSeconds(0);
+			return collector;
+		}).run();
+
+		assertEquals(20, report.collectorCount);
+		assertTrue(report.failures.isEmpty(), report.toString());
+		assertTrue(report.transactionCount >= 20 * (2 * 4 + 1));
+		assertTrue(report.latencyMillis(50) <= report.latencyMillis(99));
+		assertTrue(report.latencyMillis(99) <= report.latencyMillis(100));
+	}
+
+	@Test
+	void testFailuresAreReported() throws InterruptedException {
+		CollectorHarness.Report report = new CollectorHarness(5, () -> {
+			StubbedCollector collector = new StubbedCollector();
+			collector.setType(Type.ERR_CollectError);
+			return collector;
+		}).run();
+
+		assertEquals(5, report.failures.size());
+		report.failures.forEach(f -> assertTrue(f.error instanceof CollectError));
+	}
+}
@@ -1,18 +1,33 @@
 package com.tibudget.plugins.stubbed;
 
+import com.tibudget.api.OTPProvider;
 import com.tibudget.api.exceptions.*;
 import com.tibudget.dto.AccountDto;
 import com.tibudget.dto.ItemDto;
+import com.tibudget.dto.PaymentDto;
 import com.tibudget.dto.RecurringPaymentDto;
 import com.tibudget.dto.TransactionDto;
 import com.tibudget.plugins.stubbed.StubbedCollector.Type;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDate;
 import java.time.Month;
 import java.time.ZoneId;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -47,6 +62,82 @@ public class StubbedCollectorTest {
 		transactionDtos.forEach(Assertions::assertNotNull);
 	}
 
+	@Test
+	void testGenerationEventsRecorded() throws IOException {
+		StubbedCollector collector = new StubbedCollector();
+		collector.validate();
+
+		Path dump = Files.createTempFile("stubbed_", ".jfr");
+		try (Recording recording = new Recording()) {
+			recording.enable("com.tibudget.stubbed.GenerationBatch");
+			recording.start();
+			collector.generateOperationPurchase();
+			recording.stop();
+			recording.dump(dump);
+		}
+
+		List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+		Files.deleteIfExists(dump);
+		assertTrue(events.stream().anyMatch(e -> "purchase".equals(e.getString("generator"))
+				&& e.getInt("transactionCount") == 2));
+	}
+
+	@Test
+	void testLazyOperationPurchase() {
+		StubbedCollector collector = new StubbedCollector();
+		collector.setLazyItems(true);
+		collector.validate();
+
+		List<TransactionDto> transactionDtos = collector.generateOperationPurchase();
+		assertEquals(2, transactionDtos.size());
+		TransactionDto purchase = transactionDtos.get(0);
+		assertEquals(TransactionDto.TransactionDtoType.PURCHASE, purchase.getType());
+		assertEquals(-purchase.getAmount(), transactionDtos.get(1).getAmount(), 0.0001);
+
+		assertSame(purchase, collector.materialize(purchase));
+		double itemTotal = purchase.getItems().stream().mapToDouble(ItemDto::getPrice).sum();
+		assertEquals(purchase.getAmount(), itemTotal, 0.0001);
+		assertEquals(1, purchase.getPayments().size());
+
+		// Materializing twice does not duplicate the content
+		int itemCount = purchase.getItems().size();
+		collector.materialize(purchase);
+		assertEquals(itemCount, purchase.getItems().size());
+	}
+
+	@Test
+	void testLazyPurchasesNotRetained() throws Exception {
+		StubbedCollector collector = new StubbedCollector();
+		collector.setDelayInSeconds(0);
+		collector.setCorrectOpCount(20);
+		collector.setLazyItems(true);
+		assertEquals(0, collector.validate().size());
+
+		// A host reading headers only
+		for (int i = 0; i < 3; i++) {
+			collector.collect();
+			collector.getTransactions();
+			assertEquals(20, collector.retainedSizes().get("lazyPurchases").intValue());
+		}
+
+		collector.setOffHeap(true);
+		assertEquals(0, collector.validate().size());
+		collector.collect();
+		assertEquals(0, collector.retainedSizes().get("lazyPurchases").intValue());
+		for (int i = 0; i < 3; i++) {
+			collector.getTransactions().forEach(TransactionDto::getId);
+		}
+		assertEquals(0, collector.retainedSizes().get("lazyPurchases").intValue());
+
+		// Views still carry their content
+		TransactionDto purchase = collector.getTransactions().stream()
+				.filter(dto -> dto.getType() == TransactionDto.TransactionDtoType.PURCHASE)
+				.findFirst().orElseThrow();
+		assertFalse(TransactionStore.hasContent(purchase));
+		collector.materialize(purchase);
+		assertEquals(purchase.getAmount(), purchase.getItems().stream().mapToDouble(ItemDto::getPrice).sum(), 0.0001);
+	}
+
 	@Test
 	void testOperationTransfer() {
 		StubbedCollector collector = new StubbedCollector();
@@ -59,6 +150,61 @@ public class StubbedCollectorTest {
 		transactionDtos.forEach(Assertions::assertNotNull);
 	}
 
+	@Test
+	void testOperationTransferMultiCurrency() {
+		StubbedCollector collector = new StubbedCollector();
+		collector.setMultiCurrency(true);
+		collector.validate();
+
+		List<TransactionDto> transactionDtos = collector.generateOperationTransfer();
+		assertEquals(2, transactionDtos.size());
+
+		TransactionDto debit = transactionDtos.get(0);
+		TransactionDto credit = transactionDtos.get(1);
+		assertEquals("EUR", debit.getCurrencyCode());
+		assertEquals("USD", credit.getCurrencyCode());
+		assertTrue(debit.getAmount() < 0);
+		assertTrue(credit.getAmount() > 0);
+		// Synthetic EUR/USD rates stay in a realistic band
+		double rate = credit.getAmount() / -debit.getAmount();
+		assertTrue(rate > 0.8 && rate < 1.4, "rate " + rate);
+	}
+
+	@Test
+	void testConcurrentGenerationBalances() throws InterruptedException {
+		StubbedCollector collector = new StubbedCollector();
+		collector.validate();
+		AccountDto payment = collector.getAccounts().stream()
+				.filter(a -> a.getType() == AccountDto.AccountDtoType.PAYMENT)
+				.findFirst()
+				.orElseThrow();
+		double initialBalance = payment.getCurrentBalance();
+
+		List<TransactionDto> generated = Collections.synchronizedList(new ArrayList<>());
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < 8; t++) {
+			Thread thread = new Thread(() -> {
+				for (int i = 0; i < 500; i++) {
+					generated.addAll(collector.generateOperationTransfer());
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		long expectedCents = 0;
+		for (TransactionDto dto : generated) {
+			if (payment.getUuid().equals(dto.getAccountUuid())) {
+				expectedCents += Math.round(dto.getAmount() * 100.0);
+			}
+		}
+		collector.getAccounts();
+		assertEquals(initialBalance + expectedCents / 100.0, payment.getCurrentBalance(), 0.000001);
+	}
+
 	@Test
 	void testOperationInterne() {
 		StubbedCollector collector = new StubbedCollector();
@@ -138,6 +284,54 @@ public class StubbedCollectorTest {
 		);
 	}
 
+	@Test
+	void testTransactionRecurringCatalogue() {
+		StubbedCollector collector = new StubbedCollector();
+		collector.setBeginDate(new Date(2025 - 1900, Calendar.JANUARY, 1));
+		collector.setEndDate(new Date(2025 - 1900, Calendar.DECEMBER, 31));
+		collector.validate();
+
+		List<RecurringPaymentConfig> catalogue = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			catalogue.add(new RecurringPaymentConfig(
+					"SUB_" + i,
+					"Subscription " + i,
+					UUID.randomUUID().toString(),
+					-10.0 - i,
+					i % 2 == 0 ? null : 0.10,
+					i % 3 == 0 ? RecurringPaymentDto.RecurrenceUnit.WEEK : RecurringPaymentDto.RecurrenceUnit.MONTH,
+					1,
+					LocalDate.of(2020, 1 + i % 12, 1 + i % 28),
+					null,
+					null,
+					null
+			));
+		}
+
+		List<TransactionDto> first = collector.generateRecurringCatalogue(catalogue);
+		List<TransactionDto> second = collector.generateRecurringCatalogue(catalogue);
+		assertEquals(first.size(), second.size());
+
+		Set<String> ids = new HashSet<>();
+		for (int i = 0; i < first.size(); i++) {
+			TransactionDto dto = first.get(i);
+			// Stable identifiers and amounts
+			assertEquals(dto.getId(), second.get(i).getId());
+			assertEquals(dto.getAmount(), second.get(i).getAmount(), 0.0);
+			assertTrue(ids.add(dto.getId()));
+			assertTrue(dto.getAmount() < 0);
+			assertNotNull(dto.getRecurrentPaymentUuid());
+		}
+
+		// Same occurrence dates as the per-config path
+		RecurringPaymentConfig weekly = catalogue.get(3);
+		List<Date> expected = new ArrayList<>();
+		collector.generateRecurringTransactions(weekly).forEach(t -> expected.add(t.getDateValue()));
+		List<Date> actual = new ArrayList<>();
+		collector.generateRecurringCatalogue(List.of(weekly)).forEach(t -> actual.add(t.getDateValue()));
+		assertEquals(expected, actual);
+	}
+
 	@Test
 	void testTransactionRecurringWithDefaultVariation() {
 		StubbedCollector collector = new StubbedCollector();
@@ -322,6 +516,78 @@ public class StubbedCollectorTest {
 		assertEquals(100, collector.getProgress());
 	}
 
+	@Test
+	void testPagedTransactions() throws MessagesException {
+		StubbedCollector collector = new StubbedCollector();
+		collector.setCorrectOpCount(10);
+		collector.setDelayInSeconds(0);
+		collector.setPageSize(7);
+		assertEquals(0, collector.validate().size());
+
+		collector.collect();
+
+		Set<String> ids = new HashSet<>();
+		int pageCount = 0;
+		String cursor = null;
+		do {
+			TransactionPage page = collector.getTransactionPage(cursor);
+			assertTrue(page.getTransactions().size() <= 7);
+			if (!page.isLast()) {
+				assertEquals(7, page.getTransactions().size());
+				// Retry of the same cursor returns the same page
+				assertSame(page, collector.getTransactionPage(cursor));
+			}
+			page.getTransactions().forEach(t -> ids.add(t.getId()));
+			cursor = page.getNextCursor();
+			pageCount++;
+		} while (cursor != null);
+
+		assertTrue(pageCount > 1);
+		assertTrue(ids.size() >= 10 * 4 + 1);
+		assertThrows(IllegalArgumentException.class, () -> collector.getTransactionPage("not-a-cursor"));
+	}
+
+	@Test
+	void testLedgerBalanceNotRepresentableInCents() {
+		AccountDto account = new AccountDto(AccountDto.AccountDtoType.PAYMENT, "Overflow", "counterparty", "EUR", "Europe/Paris", Double.MAX_VALUE / 1000);
+		BalanceLedger ledger = new BalanceLedger();
+		int ordinal = ledger.register(account);
+		ledger.add(account, 12.34, 0);
+		assertEquals(1234, ledger.balanceCents(ordinal));
+
+		assertEquals(1, ledger.flush());
+		assertEquals(1, ledger.getResidualAccountCount());
+		assertEquals(Double.MAX_VALUE / 1000, account.getCurrentBalance(), Math.ulp(Double.MAX_VALUE / 1000));
+
+		StubbedCollector collector = new StubbedCollector();
+		assertEquals(0, collector.validate().size());
+		assertEquals(0, collector.getResidualAccountCount());
+	}
+
+	@Test
+	void testBalancesReconcileExactly() throws MessagesException {
+		StubbedCollector collector = new StubbedCollector();
+		collector.setDelayInSeconds(0);
+		collector.setCorrectOpCount(2000);
+		assertEquals(0, collector.validate().size());
+		Map<String, Long> expected = new HashMap<>();
+		collector.getAccounts().forEach(a -> expected.put(a.getUuid(), Math.round(a.getCurrentBalance() * 100.0)));
+
+		collector.collect();
+
+		for (TransactionDto dto : collector.getTransactions()) {
+			// Purchases on the shopping account only describe what the payment paid for
+			boolean pendingRecurring = dto.getRecurrentPaymentUuid() != null
+					&& dto.getState() == TransactionDto.TransactionDtoState.PENDING;
+			if (dto.getType() != TransactionDto.TransactionDtoType.PURCHASE && !pendingRecurring) {
+				expected.merge(dto.getAccountUuid(), Math.round(dto.getAmount() * 100.0), Long::sum);
+			}
+		}
+		for (AccountDto account : collector.getAccounts()) {
+			assertEquals(expected.get(account.getUuid()).longValue(), Math.round(account.getCurrentBalance() * 100.0), account.getId());
+		}
+	}
+
 	@Test
 	void testDefaultAccount() throws MessagesException {
 		StubbedCollector collector = new StubbedCollector();
@@ -347,6 +613,921 @@ public class StubbedCollectorTest {
 		assertTrue(shoppingAccount.isPresent());
 	}
 
+	@Test
+	void testAccountTopology() throws MessagesException {
+		StubbedCollector collector = new StubbedCollector();
+		collector.setDelayInSeconds(0);
+		collector.setCorrectOpCount(200);
+		collector.setAccountCount(300);
+		collector.setTransferFanOut(4);
+		assertEquals(0, collector.validate().size());
+
+		List<AccountDto> before = collector.getAccounts();
+		assertEquals(4 + 300, before.size());
+		double networkBefore = before.stream()
+				.filter(a -> a.getId().startsWith("STUBBED_NET_"))
+				.mapToDouble(AccountDto::getCurrentBalance)
+				.sum();
+
+		collector.collect();
+
+		List<AccountDto> after = collector.getAccounts();
+		Set<AccountDto.AccountDtoType> types = new HashSet<>();
+		after.forEach(a -> types.add(a.getType()));
+		assertEquals(AccountDto.AccountDtoType.values().length, types.size());
+
+		// Network transfers move money between network accounts only
+		double networkAfter = after.stream()
+				.filter(a -> a.getId().startsWith("STUBBED_NET_"))
+				.mapToDouble(AccountDto::getCurrentBalance)
+				.sum();
+		assertEquals(networkBefore, networkAfter, 0.001);
+	}
+
+	@Test
+	void testAccountTopologyChanges() throws MessagesException {
+		StubbedCollector collector = new StubbedCollector();
+		collector.setDelayInSeconds(0);
+		collector.setAccountCount(10);
+		assertEquals(0, collector.validate().size());
+		assertEquals(4 + 10, collector.getAccounts().size());
+
+		collector.setAccountCount(5);
+		assertEquals(0, collector.validate().size());
+		assertEquals(4 + 5, collector.getAccounts().size());
+
+		collector.setTopologyShape(AccountTopology.Shape.RING);
+		collector.setTransferFanOut(1);
+		assertEquals(0, collector.validate().size());
+		assertEquals(4 + 5, collector.getAccounts().size());
+
+		collector.setAccountCount(0);
+		assertEquals(0, collector.validate().size());
+		assertEquals(4, collector.getAccounts().size());
+		collector.collect();
+		Set<String> accountUuids = new HashSet<>();
+		collector.getAccounts().forEach(a -> accountUuids.add(a.getUuid()));
+		collector.getTransactions().forEach(t -> assertTrue(accountUuids.contains(t.getAccountUuid()), t.getAccountUuid()));
+	}
+
+	@Test
+	void testAccountTopologyDistinctTargets() {
+		for (AccountTopology.Shape shape : AccountTopology.Shape.values()) {
+			AccountTopology topology = new AccountTopology(20, 19, shape, 7, "EUR", "counterparty", "Europe/Paris");
+			for (int source = 0; source < topology.size(); source++) {
+				if (shape == AccountTopology.Shape.STAR && source > 0) {
+					continue;
+				}
+				Set<Integer> targets = new HashSet<>();
+				for (int k = 0; k < topology.fanOut(); k++) {
+					int target = topology.target(source, k);
+					assertNotEquals(source, target);
+					assertTrue(target >= 0 && target < topology.size());
+					assertTrue(targets.add(target), shape + " account " + source + " draws " + target + " twice");
+				}
+			}
+		}
+	}
+
+	@Test
+	void testAccountTopologyInvalid() {
+		StubbedCollector collector = new StubbedCollector();
+		collector.setAccountCount(3);
+		collector.setTransferFanOut(3);
+		assertFalse(collector.validate().isEmpty());
+	}
+
+	@Test
+	void testScenario() throws MessagesException {
+		StubbedCollector collector = new StubbedCollector();
+		collector.setDelayInSeconds(0);
+		collector.setBeginDate(new Date(2025 - 1900, Calendar.JANUARY, 1));
+		collector.setEndDate(new Date(2025 - 1900, Calendar.DECEMBER, 31));
+		collector.setScenario("steady-state-daily");
+		assertEquals(0, collector.validate().size());
+
+		collector.collect();
+		// 12 operations of the last two days, purchases and transfers produce one or two transactions
+		long twoDaysBefore = new Date(2025 - 1900, Calendar.DECEMBER, 29).getTime();
+		long operations = collector.getTransactions().stream()
+				.filter(dto -> dto.getRecurrentPaymentUuid() == null)
+				.peek(dto -> assertFalse(dto.getDateTransaction().getTime() < twoDaysBefore, "Outside of the scenario phase: " + dto.getDateTransaction()))
+				.count();
+		assertTrue(operations >= 12);
+	}
+
+	@Test
+	void testScenarioInvalid() {
+		StubbedCollector collector = new StubbedCollector();
+		collector.setScenario("no-such-scenario");
+		assertFalse(collector.validate().isEmpty());
+
+		Properties properties = new Properties();
+		properties.setProperty("items", "1:50,2-3:40");
+		assertThrows(IllegalArgumentException.class, () -> ScenarioPlan.parse(properties));
+
+		// Only errors thrown by collect() can be faults
+		Properties fault = new Properties();
+		fault.setProperty("fault.type", "ERR_RuntimeAccount");
+		assertThrows(IllegalArgumentException.class, () -> ScenarioPlan.parse(fault));
+		fault.setProperty("fault.type", "OPERATIONS");
+		assertThrows(IllegalArgumentException.class, () -> ScenarioPlan.parse(fault));
+
+		Properties mix = new Properties();
+		mix.setProperty("mix.network", "10");
+		assertThrows(IllegalArgumentException.class, () -> ScenarioPlan.parse(mix));
+
+		// The scenario mix and the type mix cannot be both used
+		collector.setScenario("steady-state-daily");
+		collector.setTypeMix("PAYMENT=1");
+		assertEquals(1, collector.validate().size());
+		collector.setTypeMix(null);
+		assertEquals(0, collector.validate().size());
+	}
+
+	@Test
+	void testScenarioTypeMix() {
+		Properties properties = new Properties();
+		properties.setProperty("phases", "all");
+		properties.setProperty("phase.all.beginDaysAgo", "10");
+		properties.setProperty("phase.all.operations", "50");
+		properties.setProperty("mix.payment", "1");
+		ScenarioPlan plan = ScenarioPlan.parse(properties);
+		assertEquals(1.0, plan.mix.weight(TransactionDto.TransactionDtoType.PAYMENT));
+		assertEquals(0.0, plan.mix.weight(TransactionDto.TransactionDtoType.PURCHASE));
+		assertNull(ScenarioPlan.DEFAULT.mix);
+	}
+
+	@Test
+	void testWarmupPreloadsSamples() throws IOException {
+		Warmup.run();
+		for (int i = 0; i < FileGenerator.IMAGE_FILES.length; i++) {
+			java.io.File image = FileGenerator.getImageFile(i);
+			assertTrue(image.length() > 0, FileGenerator.IMAGE_FILES[i]);
+		}
+		assertTrue(FileGenerator.getRandomInvoiceFile().length() > 0);
+	}
+
+	@Test
+	void testAttachmentFiles() throws IOException {
+		FileGenerator.Attachments attachments = new FileGenerator.Attachments();
+		java.io.File first = attachments.image("a", 0);
+		java.io.File second = attachments.image("b", 0);
+		java.io.File invoice = attachments.invoice("b");
+		assertNotEquals(first, second);
+		assertEquals(3, attachments.size());
+		assertEquals(Arrays.asList(second.toPath(), invoice.toPath()), attachments.of("b"));
+		assertTrue(attachments.of("c").isEmpty());
+
+		// Each transaction owns its file, the host may delete it
+		assertTrue(first.delete());
+		assertTrue(second.length() > 0);
+
+		attachments.clear();
+		assertEquals(0, attachments.size());
+		assertFalse(second.exists());
+		assertFalse(invoice.exists());
+		assertTrue(attachments.of("b").isEmpty());
+
+		// The next attachments reuse the freed files, nothing more is registered for deletion on exit
+		int deleteOnExit = FileGenerator.deleteOnExitCount();
+		for (int i = 0; i < 3; i++) {
+			attachments.image("a", 0);
+			attachments.image("b", 0);
+			attachments.invoice("b");
+			attachments.clear();
+		}
+		assertEquals(deleteOnExit, FileGenerator.deleteOnExitCount());
+	}
+
+	@Test
+	void testPublicFilesAreOwnedByTheCaller() throws IOException {
+		java.io.File image = FileGenerator.getRandomImageFile();
+		java.io.File other = FileGenerator.getRandomImageFile();
+		java.io.File invoice = FileGenerator.getRandomInvoiceFile();
+		assertNotEquals(image, other);
+		assertNotEquals(invoice, FileGenerator.getRandomInvoiceFile());
+
+		// Deleting a copy does not break the next ones
+		assertTrue(image.delete());
+		assertTrue(invoice.delete());
+		assertTrue(FileGenerator.getRandomInvoiceFile().length() > 0);
+		assertTrue(other.length() > 0);
+	}
+
+	@Test
+	void testPublishTransactions() throws InterruptedException {
+		StubbedCollector collector = new StubbedCollector();
+		collector.setDelayInSeconds(0);
+		assertEquals(0, collector.validate().size());
+
+		List<TransactionDto> received = Collections.synchronizedList(new ArrayList<>());
+		CountDownLatch firstBatch = new CountDownLatch(5);
+		CountDownLatch completed = new CountDownLatch(1);
+		AtomicReference<Flow.Subscription> subscription = new AtomicReference<>();
+		collector.publishTransactions().subscribe(new Flow.Subscriber<TransactionDto>() {
+			@Override
+			public void onSubscribe(Flow.Subscription s) {
+				subscription.set(s);
+				s.request(5);
+			}
+
+			@Override
+			public void onNext(TransactionDto item) {
+				received.add(item);
+				firstBatch.countDown();
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				fail(throwable);
+			}
+
+			@Override
+			public void onComplete() {
+				completed.countDown();
+			}
+		});
+
+		assertTrue(firstBatch.await(10, TimeUnit.SECONDS));
+		Thread.sleep(100);
+		// Nothing is pushed beyond the demand
+		assertEquals(5, received.size());
+
+		subscription.get().request(Long.MAX_VALUE);
+		assertTrue(completed.await(30, TimeUnit.SECONDS));
+		assertTrue(received.size() > 5);
+	}
+
+	@Test
+	void testPublishTransactionsExactDemand() throws Exception {
+		Date end = new Date();
+		Date begin = new Date(end.getTime() - TimeUnit.DAYS.toMillis(90));
+		StubbedCollector reference = shardedCollector(begin, end, 0, 1);
+		reference.collect();
+		int count = reference.getTransactions().size();
+		assertTrue(count > 0);
+
+		AtomicInteger received = new AtomicInteger();
+		CountDownLatch completed = new CountDownLatch(1);
+		shardedCollector(begin, end, 0, 1).publishTransactions().subscribe(new Flow.Subscriber<TransactionDto>() {
+			@Override
+			public void onSubscribe(Flow.Subscription s) {
+				s.request(count);
+			}
+
+			@Override
+			public void onNext(TransactionDto item) {
+				received.incrementAndGet();
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				fail(throwable);
+			}
+
+			@Override
+			public void onComplete() {
+				completed.countDown();
+			}
+		});
+
+		// Completed without any further request
+		assertTrue(completed.await(10, TimeUnit.SECONDS));
+		assertEquals(count, received.get());
+
+		// The thread of the subscription ends with it
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (Thread.getAllStackTraces().keySet().stream().anyMatch(t -> t.getName().equals("stubbed-collector-publisher"))) {
+			assertTrue(System.nanoTime() < deadline, "Publisher thread still alive");
+			Thread.sleep(50);
+		}
+	}
+
+	@Test
+	void testPublishTransactionsCancel() throws InterruptedException {
+		StubbedCollector collector = new StubbedCollector();
+		collector.setDelayInSeconds(0);
+		assertEquals(0, collector.validate().size());
+
+		AtomicInteger received = new AtomicInteger();
+		CountDownLatch cancelled = new CountDownLatch(1);
+		collector.publishTransactions().subscribe(new Flow.Subscriber<TransactionDto>() {
+			private Flow.Subscription subscription;
+
+			@Override
+			public void onSubscribe(Flow.Subscription s) {
+				subscription = s;
+				s.request(Long.MAX_VALUE);
+			}
+
+			@Override
+			public void onNext(TransactionDto item) {
+				if (received.incrementAndGet() == 3) {
+					subscription.cancel();
+					cancelled.countDown();
+				}
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				fail(throwable);
+			}
+
+			@Override
+			public void onComplete() {
+				fail("Completed after cancel");
+			}
+		});
+
+		assertTrue(cancelled.await(10, TimeUnit.SECONDS));
+		Thread.sleep(100);
+		assertEquals(3, received.get());
+	}
+
+	@Test
+	void testTypeMix() throws MessagesException {
+		StubbedCollector collector = new StubbedCollector();
+		collector.setDelayInSeconds(0);
+		collector.setCorrectOpCount(200);
+		collector.setTypeMix("PAYMENT=3,TRANSFER=1");
+		assertEquals(0, collector.validate().size());
+
+		collector.collect();
+		Map<TransactionDto.TransactionDtoType, Integer> counts = new EnumMap<>(TransactionDto.TransactionDtoType.class);
+		for (TransactionDto dto : collector.getTransactions()) {
+			counts.merge(dto.getType(), 1, Integer::sum);
+		}
+		assertFalse(counts.containsKey(TransactionDto.TransactionDtoType.PURCHASE));
+		assertTrue(counts.get(TransactionDto.TransactionDtoType.PAYMENT) > counts.get(TransactionDto.TransactionDtoType.TRANSFER));
+	}
+
+	@Test
+	void testTypeMixSampling() {
+		TypeMix mix = TypeMix.parse("PURCHASE=1,PAYMENT=3");
+		Random random = new Random(42);
+		int purchases = 0;
+		for (int i = 0; i < 100000; i++) {
+			TransactionDto.TransactionDtoType sampled = mix.sample(random);
+			assertTrue(sampled == TransactionDto.TransactionDtoType.PURCHASE || sampled == TransactionDto.TransactionDtoType.PAYMENT);
+			if (sampled == TransactionDto.TransactionDtoType.PURCHASE) {
+				purchases++;
+			}
+		}
+		assertEquals(25000, purchases, 1000);
+
+		assertThrows(IllegalArgumentException.class, () -> TypeMix.parse("PURCHASE=-1"));
+		assertThrows(IllegalArgumentException.class, () -> TypeMix.parse("NOT_A_TYPE=1"));
+	}
+
+	@Test
+	void testShardedGeneration() throws MessagesException {
+		Date begin = new Date(2025 - 1900, Calendar.JANUARY, 1);
+		Date end = new Date(2025 - 1900, Calendar.DECEMBER, 31);
+
+		StubbedCollector whole = shardedCollector(begin, end, 0, 1);
+		whole.collect();
+		Set<String> wholeIds = new HashSet<>();
+		Map<String, String> wholeRecurring = new HashMap<>();
+		for (TransactionDto dto : whole.getTransactions()) {
+			wholeIds.add(dto.getId());
+			if (dto.getRecurrentPaymentUuid() != null) {
+				wholeRecurring.put(dto.getId(), dto.getRecurrentPaymentUuid());
+			}
+		}
+		assertFalse(wholeRecurring.isEmpty());
+		Map<String, Double> wholeBalances = StubbedCollector.mergeShardBalances(Collections.singletonList(whole.getAccounts()));
+
+		Set<String> shardIds = new HashSet<>();
+		Map<String, String> shardRecurring = new HashMap<>();
+		List<List<AccountDto>> shardAccounts = new ArrayList<>();
+		List<StubbedCollector> shards = new ArrayList<>();
+		for (int shard = 0; shard < 3; shard++) {
+			StubbedCollector collector = shardedCollector(begin, end, shard, 3);
+			shards.add(collector);
+			collector.collect();
+			for (TransactionDto dto : collector.getTransactions()) {
+				assertTrue(shardIds.add(dto.getId()), "Generated by two shards: " + dto.getId());
+				if (dto.getRecurrentPaymentUuid() != null) {
+					shardRecurring.put(dto.getId(), dto.getRecurrentPaymentUuid());
+				}
+			}
+			shardAccounts.add(collector.getAccounts());
+		}
+
+		assertEquals(wholeIds, shardIds);
+		// Occurrences of a series link to the same recurring payment, whatever the shard generating them
+		assertEquals(wholeRecurring, shardRecurring);
+		assertEquals(wholeBalances, StubbedCollector.mergeShardBalances(shardAccounts));
+
+		// Balances keep adding up over the next collects
+		assertEquals(0, whole.validate().size());
+		whole.collect();
+		shardAccounts.clear();
+		for (StubbedCollector collector : shards) {
+			assertEquals(0, collector.validate().size());
+			collector.collect();
+			shardAccounts.add(collector.getAccounts());
+		}
+		assertEquals(StubbedCollector.mergeShardBalances(Collections.singletonList(whole.getAccounts())),
+				StubbedCollector.mergeShardBalances(shardAccounts));
+
+		// A period following the clock differs from one shard to the other
+		StubbedCollector clockPeriod = new StubbedCollector();
+		clockPeriod.setSeed(42);
+		clockPeriod.setShard(1, 3);
+		assertEquals(1, clockPeriod.validate().size());
+		clockPeriod.setBeginDate(begin);
+		clockPeriod.setEndDate(end);
+		assertEquals(0, clockPeriod.validate().size());
+	}
+
+	@Test
+	void testSimulatedClock() throws Exception {
+		Instant origin = LocalDate.of(2021, Month.JANUARY, 15).atStartOfDay(ZoneId.systemDefault()).toInstant();
+		SimulatedClock clock = SimulatedClock.stopped(origin, ZoneId.systemDefault());
+		StubbedCollector collector = new StubbedCollector();
+		collector.setClock(clock);
+		collector.setDelayInSeconds(60);
+		assertEquals(0, collector.validate().size());
+
+		long start = System.nanoTime();
+		collector.collect();
+		assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 30, "Delays must follow the simulated clock");
+		assertEquals(origin.plusSeconds(60), clock.instant());
+		for (TransactionDto dto : collector.getTransactions()) {
+			assertFalse(dto.getDateTransaction().toInstant().isAfter(origin), "dateOp=" + dto.getDateTransaction());
+		}
+
+		// The next day, the default period follows the clock
+		clock.advance(Duration.ofDays(1));
+		collector.validate();
+		collector.collect();
+		assertTrue(collector.getTransactions().stream().allMatch(dto -> !dto.getDateTransaction().toInstant().isAfter(clock.instant())));
+
+		SimulatedClock accelerated = SimulatedClock.accelerated(3600);
+		assertEquals(2, SimulatedClock.realDelay(accelerated, 7_200_000));
+		assertThrows(IllegalArgumentException.class, () -> SimulatedClock.accelerated(-1));
+	}
+
+	@Test
+	void testSimulatedClockKeepsHostDates() throws Exception {
+		Instant origin = LocalDate.of(2021, Month.JANUARY, 15).atStartOfDay(ZoneId.systemDefault()).toInstant();
+		SimulatedClock clock = SimulatedClock.stopped(origin, ZoneId.systemDefault());
+		StubbedCollector collector = new StubbedCollector();
+		collector.setClock(clock);
+		collector.setDelayInSeconds(0);
+
+		// The host sets the inputs directly, not through the setters
+		Date begin = new Date(2020 - 1900, Calendar.MARCH, 1);
+		Date end = new Date(2020 - 1900, Calendar.JUNE, 30);
+		setInput(collector, "beginDate", begin);
+		setInput(collector, "endDate", end);
+		assertEquals(0, collector.validate().size());
+		collector.collect();
+		// Recurring occurrences fall on days of the collector zone, the other operations within the period
+		for (TransactionDto dto : nonRecurring(collector)) {
+			assertFalse(dto.getDateTransaction().before(begin), "dateOp=" + dto.getDateTransaction());
+			assertFalse(dto.getDateTransaction().after(end), "dateOp=" + dto.getDateTransaction());
+		}
+
+		// Without a begin date, the past 7 days on the clock
+		setInput(collector, "beginDate", null);
+		assertEquals(0, collector.validate().size());
+		collector.collect();
+		Instant weekAgo = clock.instant().minus(Duration.ofDays(7));
+		for (TransactionDto dto : nonRecurring(collector)) {
+			assertFalse(dto.getDateTransaction().toInstant().isBefore(weekAgo), "dateOp=" + dto.getDateTransaction());
+			assertFalse(dto.getDateTransaction().toInstant().isAfter(clock.instant()), "dateOp=" + dto.getDateTransaction());
+		}
+	}
+
+	private static List<TransactionDto> nonRecurring(StubbedCollector collector) {
+		List<TransactionDto> transactions = new ArrayList<>();
+		collector.getTransactions().forEach(dto -> {
+			if (dto.getRecurrentPaymentUuid() == null) {
+				transactions.add(dto);
+			}
+		});
+		assertFalse(transactions.isEmpty());
+		return transactions;
+	}
+
+	private static void setInput(StubbedCollector collector, String name, Object value) throws ReflectiveOperationException {
+		Field field = StubbedCollector.class.getDeclaredField(name);
+		field.setAccessible(true);
+		field.set(collector, value);
+	}
+
+	@Test
+	void testSoak() {
+		StubbedCollector collector = new StubbedCollector();
+		collector.setDelayInSeconds(0);
+		collector.setCorrectOpCount(20);
+		SoakRunner.Report report = new SoakRunner(collector, Duration.ofMinutes(5), 80, 10).run();
+		assertEquals(80, report.getCycles(), report.toString());
+		assertEquals(0, report.getFailedCollects());
+		for (String metric : Arrays.asList(SoakRunner.DELETE_ON_EXIT, SoakRunner.TEMP_FILES, "transactions", "recurringPayments", "settings")) {
+			assertFalse(report.getGrowingMetrics().contains(metric), report.toString());
+		}
+
+		// The content of lazy purchases is built on each read
+		StubbedCollector lazy = new StubbedCollector();
+		lazy.setDelayInSeconds(0);
+		lazy.setCorrectOpCount(20);
+		lazy.setLazyItems(true);
+		report = new SoakRunner(lazy, Duration.ofMinutes(5), 80, 10).run();
+		assertEquals(0, report.getFailedCollects());
+		for (String metric : Arrays.asList(SoakRunner.DELETE_ON_EXIT, SoakRunner.TEMP_FILES, "lazyPurchases", "attachments")) {
+			assertFalse(report.getGrowingMetrics().contains(metric), report.toString());
+		}
+
+		assertTrue(SoakRunner.isGrowing(new long[]{5, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11}, 0));
+		assertFalse(SoakRunner.isGrowing(new long[]{5, 1, 9, 3, 8, 2, 9, 3, 8, 2, 9, 3}, 0));
+		assertFalse(SoakRunner.isGrowing(new long[]{1, 2, 3}, 0));
+	}
+
+	@Test
+	void testTransactionPool() throws InterruptedException {
+		TransactionPool pool = new TransactionPool(16, true);
+		StubbedCollector collector = new StubbedCollector();
+		collector.setDelayInSeconds(0);
+		collector.setCorrectOpCount(500);
+		assertEquals(0, collector.validate().size());
+
+		Set<String> ids = ConcurrentHashMap.newKeySet();
+		AtomicInteger duplicates = new AtomicInteger();
+		CountDownLatch completed = new CountDownLatch(1);
+		collector.publishTransactions(pool).subscribe(new Flow.Subscriber<TransactionDto>() {
+			private final List<TransactionDto> batch = new ArrayList<>();
+			private Flow.Subscription subscription;
+
+			@Override
+			public void onSubscribe(Flow.Subscription s) {
+				subscription = s;
+				s.request(10);
+			}
+
+			@Override
+			public void onNext(TransactionDto dto) {
+				if (!ids.add(dto.getId())) {
+					duplicates.incrementAndGet();
+				}
+				batch.add(dto);
+				if (batch.size() == 10) {
+					pool.release(batch);
+					batch.clear();
+					subscription.request(10);
+				}
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				completed.countDown();
+			}
+
+			@Override
+			public void onComplete() {
+				completed.countDown();
+			}
+		});
+		assertTrue(completed.await(30, TimeUnit.SECONDS));
+		assertEquals(0, duplicates.get());
+		assertTrue(pool.getReused() > 0);
+		assertTrue(pool.getCreated() < ids.size());
+
+		TransactionDto dto = pool.acquire("id", "account", TransactionDto.TransactionDtoType.TRANSFER, 1000L, 2000L, "label", "details", 1.5, "EUR");
+		pool.release(dto);
+		assertThrows(IllegalStateException.class, dto::getLabel);
+		assertThrows(IllegalStateException.class, () -> pool.release(dto));
+		assertThrows(IllegalArgumentException.class, () -> new TransactionPool(4, false).release(dto));
+		TransactionDto reused = pool.acquire("id2", "account", TransactionDto.TransactionDtoType.INTERNAL, 3000L, 3000L, "label2", "details", 2.5, "USD");
+		assertSame(dto, reused);
+		assertEquals("id2", reused.getId());
+		assertEquals(TransactionDto.TransactionDtoType.INTERNAL, reused.getType());
+		assertEquals("USD", reused.getCurrencyCode());
+	}
+
+	@Test
+	void testTransactionPoolRecycledInstance() throws Exception {
+		assertTrue(TransactionPool.isRecycling());
+		TransactionPool pool = new TransactionPool(1, false);
+		TransactionDto first = pool.acquire("id1", "account1", TransactionDto.TransactionDtoType.TRANSFER, 1000L, 2000L, "label1", "details1", 1.5, "EUR");
+		pool.release(first);
+		TransactionDto recycled = pool.acquire("id2", "account2", TransactionDto.TransactionDtoType.INTERNAL, 3000L, 4000L, "label2", "details2", 2.5, "USD");
+		assertSame(first, recycled);
+
+		// Nothing of the previous transaction is left, whatever reads the instance
+		TransactionDto fresh = new TransactionPool(1, false).acquire("id2", "account2", TransactionDto.TransactionDtoType.INTERNAL, 3000L, 4000L, "label2", "details2", 2.5, "USD");
+		if (TransactionDto.class.getMethod("equals", Object.class).getDeclaringClass() != Object.class) {
+			assertEquals(fresh, recycled);
+			assertEquals(fresh.hashCode(), recycled.hashCode());
+		}
+		assertFalse(recycled.toString().contains("id1"), recycled.toString());
+		assertFalse(recycled.toString().contains("EUR"), recycled.toString());
+
+		if (recycled instanceof java.io.Serializable) {
+			java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+			try (java.io.ObjectOutputStream out = new java.io.ObjectOutputStream(bytes)) {
+				out.writeObject(recycled);
+			}
+			TransactionDto read;
+			try (java.io.ObjectInputStream in = new java.io.ObjectInputStream(new java.io.ByteArrayInputStream(bytes.toByteArray()))) {
+				read = (TransactionDto) in.readObject();
+			}
+			assertEquals(TransactionDto.class, read.getClass());
+			assertEquals("id2", read.getId());
+			assertEquals(TransactionDto.TransactionDtoType.INTERNAL, read.getType());
+			assertEquals("USD", read.getCurrencyCode());
+			assertEquals(3000L, read.getDateTransaction().getTime());
+			assertEquals(4000L, read.getDateValue().getTime());
+		}
+
+		// Content added by the subscriber cannot be removed, such a transaction is not recycled
+		recycled.addPayment(new PaymentDto(PaymentDto.PaymentDtoType.CARD, "Visa", recycled.getDateTransaction(), 2.5, "USD", null, "1234"));
+		pool.release(recycled);
+		assertNotSame(recycled, pool.acquire("id3", "account3", TransactionDto.TransactionDtoType.INTERNAL, 5000L, 5000L, "label3", "details3", 3.5, "EUR"));
+	}
+
+	@Test
+	void testErrorStorm() {
+		StubbedCollector collector = new StubbedCollector();
+		collector.setDelayInSeconds(0);
+		collector.setErrorMix("ERR_CollectError=2,ERR_TemporaryUnavailable=1,ERR_RuntimeValidate=1");
+		collector.setErrorStackTraces(false);
+		Exception first = null;
+		for (int i = 0; i < 200; i++) {
+			try {
+				collector.validate();
+				collector.collect();
+				fail("Every attempt must fail");
+			} catch (Exception e) {
+				if (!(e instanceof CollectError) && !(e instanceof TemporaryUnavailable) && !(e instanceof RuntimeException)) {
+					fail("Not in the mix: " + e);
+				}
+				// Without stack traces each attempt still gets its own error
+				assertEquals(0, e.getStackTrace().length);
+				assertNotSame(first, e);
+				first = e;
+			}
+		}
+		ErrorStorm storm = collector.getErrorStorm();
+		assertEquals(200, storm.getAttempts());
+		assertEquals(200, storm.getAttempts(Type.ERR_CollectError) + storm.getAttempts(Type.ERR_TemporaryUnavailable) + storm.getAttempts(Type.ERR_RuntimeValidate));
+		assertTrue(storm.getAttempts(Type.ERR_CollectError) > storm.getAttempts(Type.ERR_RuntimeValidate));
+		assertEquals(0, storm.getAttempts(Type.OPERATIONS));
+		assertTrue(storm.getAttemptsPerSecond() > 0);
+		long before = storm.getAttempts();
+		assertTrue(ErrorStormRunner.run(collector, Duration.ofMillis(200)).getAttempts() > before);
+
+		collector.setErrorMix("ERR_Unknown=1");
+		assertEquals(1, collector.validate().size());
+		collector.setErrorMix(null);
+		assertEquals(0, collector.validate().size());
+		assertNull(collector.getErrorStorm());
+	}
+
+	@Test
+	void testBalanceHistory() throws Exception {
+		StubbedCollector collector = new StubbedCollector();
+		collector.setDelayInSeconds(0);
+		collector.setCorrectOpCount(500);
+		collector.setErrorOpCount(20);
+		collector.setAccountCount(10);
+		collector.setMultiCurrency(true);
+		collector.setBalanceHistory(true);
+		assertEquals(0, collector.validate().size());
+		collector.collect();
+		BalanceHistory history = collector.getBalanceHistory();
+		assertNotNull(history);
+		assertTrue(history.getCurrencies().size() > 1);
+
+		// The last day of each curve is the balance of the account
+		Map<String, Double> balances = new HashMap<>();
+		for (AccountDto account : collector.getAccounts()) {
+			balances.put(account.getId(), account.getCurrentBalance());
+		}
+		assertEquals(3 + 10, history.getAccountIds().size());
+		for (String accountId : history.getAccountIds()) {
+			double[] daily = history.getDailyBalances(accountId);
+			assertEquals(history.getDayCount(), daily.length);
+			assertEquals(balances.get(accountId), daily[daily.length - 1], 0.001, accountId);
+			assertEquals(daily[0], history.getBalance(accountId, history.getFirstDay()));
+		}
+
+		// Type totals add up to the dated transactions, currency by currency
+		long count = 0;
+		Map<String, Long> cents = new HashMap<>();
+		for (LocalDate day = history.getFirstDay(); !day.isAfter(history.getLastDay()); day = day.plusDays(1)) {
+			for (TransactionDto.TransactionDtoType type : TransactionDto.TransactionDtoType.values()) {
+				count += history.getCount(day, type);
+				for (String currency : history.getCurrencies()) {
+					cents.merge(currency, history.getTotalCents(day, type, currency), Long::sum);
+				}
+			}
+		}
+		long expectedCount = 0;
+		Map<String, Long> expectedCents = new HashMap<>();
+		for (String currency : history.getCurrencies()) {
+			expectedCents.put(currency, 0L);
+		}
+		for (TransactionDto transaction : collector.getTransactions()) {
+			if (transaction.getDateTransaction() != null) {
+				expectedCount++;
+				if (Math.abs(transaction.getAmount()) < 1e12) {
+					expectedCents.merge(transaction.getCurrencyCode(), Math.round(transaction.getAmount() * 100.0), Long::sum);
+				}
+			}
+		}
+		assertEquals(expectedCount, count);
+		assertEquals(expectedCents, cents);
+		assertThrows(IllegalArgumentException.class, () -> history.getTotalCents(history.getFirstDay(), TransactionDto.TransactionDtoType.PAYMENT, "XXX"));
+		assertThrows(IllegalArgumentException.class, () -> history.getBalance("unknown", history.getFirstDay()));
+
+		collector.setBalanceHistory(false);
+		collector.collect();
+		assertNull(collector.getBalanceHistory());
+	}
+
+	@Test
+	void testBalanceHistoryReadDuringGeneration() throws Exception {
+		StubbedCollector collector = new StubbedCollector();
+		collector.setDelayInSeconds(0);
+		collector.setCorrectOpCount(50);
+		collector.setPageSize(7);
+		collector.setBalanceHistory(true);
+		assertEquals(0, collector.validate().size());
+		collector.collect();
+
+		TransactionPage page = collector.getTransactionPage(null);
+		assertFalse(page.isLast());
+		BalanceHistory history = collector.getBalanceHistory();
+		String accountId = history.getAccountIds().get(0);
+		LocalDate day = history.getFirstDay();
+		// Partial values are not readable, and reading does not stop generation
+		assertFalse(history.isComplete());
+		assertThrows(IllegalStateException.class, () -> history.getBalance(accountId, day));
+		assertThrows(IllegalStateException.class, () -> history.getBalanceCents(accountId, day));
+		assertThrows(IllegalStateException.class, () -> history.getDailyBalances(accountId));
+		assertThrows(IllegalStateException.class, () -> history.getCount(day, TransactionDto.TransactionDtoType.PAYMENT));
+		String currency = history.getCurrencies().get(0);
+		assertThrows(IllegalStateException.class, () -> history.getTotalCents(day, TransactionDto.TransactionDtoType.PAYMENT, currency));
+		assertThrows(IllegalStateException.class, () -> history.getOverflowCount(day, TransactionDto.TransactionDtoType.PAYMENT, currency));
+
+		while (page.getNextCursor() != null) {
+			page = collector.getTransactionPage(page.getNextCursor());
+		}
+		assertTrue(history.isComplete());
+		Map<String, Double> balances = new HashMap<>();
+		for (AccountDto account : collector.getAccounts()) {
+			balances.put(account.getId(), account.getCurrentBalance());
+		}
+		double[] daily = history.getDailyBalances(accountId);
+		assertEquals(balances.get(accountId), daily[daily.length - 1], 0.001);
+	}
+
+	@Test
+	void testInvariantChecker() throws Exception {
+		StubbedCollector collector = new StubbedCollector();
+		collector.setDelayInSeconds(0);
+		collector.setCorrectOpCount(2000);
+		collector.setErrorOpCount(50);
+		collector.setAccountCount(10);
+		assertEquals(0, collector.validate().size());
+		InvariantChecker checker = new InvariantChecker(4);
+		InvariantChecker.Report report = checker.check(collector);
+		assertTrue(report.isConsistent(), report.toString());
+		assertEquals(50, report.getInjected());
+		assertTrue(report.getChecked() > 2 * 2000);
+
+		// Recurring ids are checked against the previous collect, and the same holds when streamed
+		assertTrue(checker.check(collector).isConsistent());
+		assertTrue(checker.checkPublished(collector).isConsistent());
+
+		// A lone transfer leg and a wrong balance are found
+		checker.open(collector.getAccounts(), Collections.emptyMap());
+		AccountDto account = collector.getAccounts().get(0);
+		checker.accept(new TransactionDto("lone", account.getUuid(), TransactionDto.TransactionDtoType.TRANSFER,
+				new Date(), new Date(), "Transfer", "Details", -10.0, account.getCurrencyCode()));
+		report = checker.close(collector.getAccounts());
+		assertEquals(1, report.getViolations(InvariantChecker.Invariant.TRANSFER_NET));
+		assertEquals(1, report.getViolations(InvariantChecker.Invariant.BALANCE));
+		assertThrows(IllegalStateException.class, report::assertConsistent);
+	}
+
+	@Test
+	void testMemoryBudgetSpillsToDisk() throws Exception {
+		StubbedCollector collector = new StubbedCollector();
+		collector.setDelayInSeconds(0);
+		collector.setCorrectOpCount(5000);
+		collector.setMemoryBudgetMb(1);
+		assertEquals(0, collector.validate().size());
+		collector.collect();
+
+		int spilled = collector.retainedSizes().get("storedTransactions");
+		assertTrue(spilled > 0);
+		List<TransactionDto> transactions = collector.getTransactions();
+		assertEquals(collector.retainedSizes().get("transactions") + spilled, transactions.size());
+		Set<String> ids = new HashSet<>();
+		for (TransactionDto dto : transactions) {
+			assertTrue(ids.add(dto.getId()));
+			assertNotNull(dto.getAccountUuid());
+			if (dto.getType() == TransactionDto.TransactionDtoType.PURCHASE) {
+				assertFalse(dto.getItems().isEmpty(), "Purchase read back without its items");
+				assertEquals(1, dto.getPayments().size());
+			}
+		}
+		TransactionDto last = transactions.get(transactions.size() - 1);
+		assertEquals(last.getId(), collector.getTransactions().get(transactions.size() - 1).getId());
+
+		collector.setMemoryBudgetMb(-1);
+		assertEquals(1, collector.validate().size());
+		collector.setMemoryBudgetMb(0);
+		assertEquals(0, collector.validate().size());
+		collector.collect();
+		assertEquals(0, collector.retainedSizes().get("storedTransactions").intValue());
+	}
+
+	@Test
+	void testSpilledPurchasesKeepTheirFiles() throws Exception {
+		StubbedCollector collector = new StubbedCollector();
+		collector.setDelayInSeconds(0);
+		collector.setCorrectOpCount(5000);
+		collector.setMemoryBudgetMb(1);
+		assertEquals(0, collector.validate().size());
+		collector.collect();
+		assertTrue(collector.retainedSizes().get("storedTransactions") > 0);
+
+		List<TransactionDto> transactions = collector.getTransactions();
+		transactions.forEach(TransactionDto::getFiles);
+		int attachments = collector.retainedSizes().get("attachments");
+		assertTrue(attachments > 0);
+
+		// Reading the spilled purchases again builds them again, with the same files
+		transactions.forEach(TransactionDto::getFiles);
+		collector.getTransactions().forEach(TransactionDto::getFiles);
+		assertEquals(attachments, collector.retainedSizes().get("attachments").intValue());
+	}
+
+	@Test
+	void testOffHeapStore() throws Exception {
+		StubbedCollector collector = new StubbedCollector();
+		collector.setDelayInSeconds(0);
+		collector.setCorrectOpCount(2000);
+		collector.setErrorOpCount(50);
+		collector.setOffHeap(true);
+		assertEquals(0, collector.validate().size());
+		collector.collect();
+		assertEquals(0, collector.retainedSizes().get("transactions").intValue());
+		List<TransactionDto> views = collector.getTransactions();
+		assertEquals(collector.retainedSizes().get("storedTransactions").intValue(), views.size());
+
+		// The views read back what was generated, in the same order
+		OffHeapTransactionStore store = new OffHeapTransactionStore();
+		List<TransactionDto> copies = new ArrayList<>();
+		for (TransactionDto view : views) {
+			copies.add(view);
+		}
+		assertTrue(store.append(copies, id -> null).stream().allMatch(dto -> dto.getType() == TransactionDto.TransactionDtoType.PURCHASE));
+		long estimatedHeap = 0;
+		int index = 0;
+		for (TransactionDto view : views) {
+			if (!TransactionStore.hasContent(view)) {
+				estimatedHeap += SpillStore.estimateRetainedBytes(view);
+				TransactionDto copy = store.get(index++, purchase -> fail("No descriptor was stored"));
+				assertEquals(view.getId(), copy.getId());
+				assertEquals(view.getAccountUuid(), copy.getAccountUuid());
+				assertEquals(view.getType(), copy.getType());
+				assertEquals(view.getDateTransaction(), copy.getDateTransaction());
+				assertEquals(view.getDateValue(), copy.getDateValue());
+				assertEquals(view.getLabel(), copy.getLabel());
+				assertEquals(view.getDetails(), copy.getDetails());
+				assertEquals(view.getAmount(), copy.getAmount());
+				assertEquals(view.getCurrencyCode(), copy.getCurrencyCode());
+				assertEquals(view.getRecurrentPaymentUuid(), copy.getRecurrentPaymentUuid());
+				assertEquals(view.getState(), copy.getState());
+			}
+		}
+		assertEquals(index, store.size());
+		// Direct memory and heap of the store together, against the heap of the same DTOs
+		long bytesPerRow = (store.offHeapBytes() + store.heapBytes()) / store.size();
+		long estimatedPerDto = estimatedHeap / store.size();
+		assertTrue(bytesPerRow < estimatedPerDto, "store=" + bytesPerRow + " bytes per row, estimated DTO heap=" + estimatedPerDto);
+		store.close();
+	}
+
+	private static StubbedCollector shardedCollector(Date begin, Date end, int shardIndex, int shardCount) {
+		StubbedCollector collector = new StubbedCollector();
+		collector.setDelayInSeconds(0);
+		collector.setCorrectOpCount(30);
+		collector.setBeginDate(begin);
+		collector.setEndDate(end);
+		collector.setSeed(42);
+		collector.setShard(shardIndex, shardCount);
+		assertEquals(0, collector.validate().size());
+		return collector;
+	}
+
 	@Test
 	void testAccessDeny() {
 		StubbedCollector collector = new StubbedCollector();
@@ -356,6 +1537,62 @@ public class StubbedCollectorTest {
 		assertThrows(AccessDeny.class, collector::collect);
 	}
 
+	@Test
+	void testSimulatedOtp() throws MessagesException {
+		StubbedCollector collector = new StubbedCollector();
+		collector.setDelayInSeconds(0);
+		collector.setAskForCode(true);
+		collector.setSimulatedOtpProvider(new SimulatedOtpProvider());
+		assertEquals(0, collector.validate().size());
+
+		collector.collect();
+		assertFalse(collector.getTransactions().isEmpty());
+	}
+
+	@Test
+	void testSimulatedOtpWrongCode() {
+		StubbedCollector collector = new StubbedCollector();
+		collector.setDelayInSeconds(0);
+		collector.setAskForCode(true);
+		collector.setSimulatedOtpProvider(new SimulatedOtpProvider(0, 0, 1000, 100, 0, 1));
+		assertEquals(0, collector.validate().size());
+
+		assertThrows(AccessDeny.class, collector::collect);
+	}
+
+	@Test
+	void testSimulatedOtpTimeout() {
+		SimulatedOtpProvider provider = new SimulatedOtpProvider(500, 500, 50, 0, 0, 1);
+		StubbedCollector collector = new StubbedCollector();
+		collector.setDelayInSeconds(0);
+		collector.setAskForCode(true);
+		collector.setSimulatedOtpProvider(provider);
+		assertEquals(0, collector.validate().size());
+
+		assertThrows(AccessDeny.class, collector::collect);
+		assertEquals(1, provider.getTimeouts());
+		assertEquals(0, provider.getWaiting());
+	}
+
+	@Test
+	void testSimulatedOtpOnStoppedClock() {
+		SimulatedClock clock = SimulatedClock.stopped(Instant.parse("2025-01-01T00:00:00Z"), ZoneId.of("UTC"));
+		long hour = TimeUnit.HOURS.toMillis(1);
+		long start = System.nanoTime();
+
+		SimulatedOtpProvider answering = new SimulatedOtpProvider(hour, hour, 2 * hour, 0, 0, 1, clock);
+		assertEquals(SimulatedOtpProvider.EXPECTED_CODE, answering.getCode(OTPProvider.Channel.SMS, "keyword", OTPProvider.PATTERN_6_DIGIT, "message"));
+		assertEquals(Instant.parse("2025-01-01T01:00:00Z"), clock.instant());
+
+		SimulatedOtpProvider late = new SimulatedOtpProvider(2 * hour, 2 * hour, hour, 0, 0, 1, clock);
+		assertNull(late.getCode(OTPProvider.Channel.SMS, "keyword", OTPProvider.PATTERN_6_DIGIT, "message"));
+		assertEquals(1, late.getTimeouts());
+		assertEquals(Instant.parse("2025-01-01T02:00:00Z"), clock.instant());
+
+		// Hours on the clock, no real wait
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+	}
+
 	@Test
 	void testCollectError() {
 		StubbedCollector collector = new StubbedCollector();
@@ -0,0 +1,879 @@
+package com.tibudget.plugins.stubbed;
+
+import com.tibudget.dto.AccountDto;
+import com.tibudget.dto.ItemDto;
+import com.tibudget.dto.PaymentDto;
+import com.tibudget.dto.TransactionDto;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A local HTTP/1.1 server exposing what a {@link StubbedCollector} generates, as a real bank would,
+ * to exercise HTTP collectors and connection pools.
+ * <p>
+ * Endpoints, all {@code GET}:
+ * <ul>
+ * <li>{@code /accounts}: the accounts, in JSON</li>
+ * <li>{@code /transactions?cursor=...}: a page of transactions in JSON, with their items, payments
+ * and the links to their files, and the cursor of the next page</li>
+ * <li>{@code /transactions/<id>/files/<n>}: the bytes of the n-th file of a transaction</li>
+ * <li>{@code /files}: the names of the sample files, in JSON</li>
+ * <li>{@code /files/<name>}: the bytes of a sample file</li>
+ * </ul>
+ * Transactions are fetched from {@link StubbedCollector#getTransactionPage(String)} once, on demand, and
+ * kept by the simulator: any number of clients can each read them from the first page, concurrently,
+ * and a page already fetched is served without waiting for the collector. This keeps every transaction
+ * served in the heap, unlike a host paging the collector directly. Lazy purchases are materialized when
+ * fetched, so their items and files are part of the page.
+ * <p>
+ * One selector thread does all the I/O: requests are answered by worker threads, latency is measured
+ * with the clock of the collector (see {@link SimulatedClock}) and scheduled, never slept, and files are sent with {@link FileChannel#transferTo}, without copying
+ * them through the heap. The server only listens on the loopback address.
+ */
+public final class BankSimulator implements Closeable {
+
+	private static final Logger LOG = Logger.getLogger(BankSimulator.class.getName());
+
+	private static final int MAX_HEADER_SIZE = 16 * 1024;
+
+	/**
+	 * Latency and faults of the responses
+	 */
+	public static final class Profile {
+
+		/**
+		 * Immediate and reliable responses
+		 */
+		public static final Profile NONE = new Profile(0, 0, 0);
+
+		final long latencyMinMillis;
+
+		final long latencyMaxMillis;
+
+		final int faultPercent;
+
+		/**
+		 * @param latencyMinMillis minimum delay before a response, on the clock of the collector
+		 * @param latencyMaxMillis maximum delay before a response, on the clock of the collector
+		 * @param faultPercent     percentage of requests answered with a {@code 503 Service Unavailable}
+		 */
+		public Profile(long latencyMinMillis, long latencyMaxMillis, int faultPercent) {
+			if (latencyMinMillis < 0 || latencyMaxMillis < latencyMinMillis) {
+				throw new IllegalArgumentException("Invalid latency range: " + latencyMinMillis + "-" + latencyMaxMillis);
+			}
+			if (faultPercent < 0 || faultPercent > 100) {
+				throw new IllegalArgumentException("faultPercent must be a percentage: " + faultPercent);
+			}
+			this.latencyMinMillis = latencyMinMillis;
+			this.latencyMaxMillis = latencyMaxMillis;
+			this.faultPercent = faultPercent;
+		}
+	}
+
+	private final StubbedCollector collector;
+
+	/**
+	 * Transactions fetched from the collector so far, in order. Guards {@link #collectorCursor} and
+	 * {@link #exhausted} too
+	 */
+	private final List<TransactionDto> fetched = new ArrayList<>();
+
+	private String collectorCursor;
+
+	private boolean exhausted;
+
+	/**
+	 * Held by the single client fetching the next page of the collector
+	 */
+	private final Object fetchLock = new Object();
+
+	private final Profile profile;
+
+	private final ServerSocketChannel server;
+
+	private final Selector selector;
+
+	private final ExecutorService workers = VirtualThreads.newPerTaskExecutor();
+
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+		Thread thread = new Thread(task, "stubbed-bank-simulator-timer");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * Connections with a response ready to be written, handed over to the selector thread
+	 */
+	private final Queue<Connection> responded = new ConcurrentLinkedQueue<>();
+
+	private final Thread loop;
+
+	private volatile boolean running = true;
+
+	/**
+	 * Starts the server.
+	 *
+	 * @param collector validated and collected, with a positive page size so transactions are served by page
+	 * @param port      port to listen to, 0 for any free port
+	 * @param profile   latency and faults of the responses
+	 */
+	public BankSimulator(StubbedCollector collector, int port, Profile profile) throws IOException {
+		this.collector = collector;
+		this.profile = profile;
+		this.selector = Selector.open();
+		this.server = ServerSocketChannel.open();
+		try {
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+			server.configureBlocking(false);
+			server.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			server.close();
+			selector.close();
+			throw e;
+		}
+		this.loop = new Thread(this::run, "stubbed-bank-simulator");
+		this.loop.setDaemon(true);
+		this.loop.start();
+	}
+
+	public int getPort() {
+		try {
+			return ((InetSocketAddress) server.getLocalAddress()).getPort();
+		} catch (IOException e) {
+			throw new IllegalStateException("Server is closed", e);
+		}
+	}
+
+	public URI getBaseUri() {
+		return URI.create("http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + getPort() + "/");
+	}
+
+	@Override
+	public void close() throws IOException {
+		running = false;
+		selector.wakeup();
+		try {
+			loop.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		workers.shutdownNow();
+		timer.shutdownNow();
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() instanceof Connection) {
+				((Connection) key.attachment()).close();
+			}
+		}
+		server.close();
+		selector.close();
+	}
+
+	private void run() {
+		while (running) {
+			try {
+				selector.select();
+				Connection connection;
+				while ((connection = responded.poll()) != null) {
+					connection.startWriting();
+				}
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					}
+					else {
+						Connection c = (Connection) key.attachment();
+						try {
+							if (key.isReadable()) {
+								c.read();
+							}
+							else if (key.isWritable()) {
+								c.write();
+							}
+						} catch (IOException e) {
+							LOG.log(Level.FINE, "Connection closed on error", e);
+							c.close();
+						}
+					}
+				}
+			} catch (IOException e) {
+				LOG.log(Level.WARNING, "Bank simulator I/O error", e);
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = server.accept();
+		if (channel != null) {
+			channel.configureBlocking(false);
+			Connection connection = new Connection(channel);
+			connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+		}
+	}
+
+	/**
+	 * Answers a request on a worker thread, then hands the response back to the selector thread.
+	 */
+	private void respond(Connection connection, String method, String target) {
+		Response response;
+		if (profile.faultPercent > 0 && ThreadLocalRandom.current().nextInt(100) < profile.faultPercent) {
+			response = Response.json(503, "{\"error\":\"Service temporarily unavailable\"}").retryAfter(1);
+		}
+		else {
+			response = route(method, target);
+		}
+		Runnable ready = () -> {
+			connection.response = response;
+			responded.add(connection);
+			selector.wakeup();
+		};
+		long latency = profile.latencyMaxMillis == 0 ? 0
+				: SimulatedClock.realDelay(collector.getClock(),
+						ThreadLocalRandom.current().nextLong(profile.latencyMinMillis, profile.latencyMaxMillis + 1));
+		if (latency > 0) {
+			timer.schedule(ready, latency, TimeUnit.MILLISECONDS);
+		}
+		else {
+			ready.run();
+		}
+	}
+
+	private Response route(String method, String target) {
+		if (!"GET".equals(method)) {
+			return Response.json(405, "{\"error\":\"Only GET is supported\"}");
+		}
+		int question = target.indexOf('?');
+		String path = question < 0 ? target : target.substring(0, question);
+		String query = question < 0 ? "" : target.substring(question + 1);
+		try {
+			if ("/accounts".equals(path)) {
+				return Response.json(200, accountsJson(collector.getAccounts()));
+			}
+			if ("/transactions".equals(path)) {
+				return Response.json(200, pageJson(transactionPage(parameter(query, "cursor")), collector::attachmentsOf));
+			}
+			if (path.startsWith("/transactions/")) {
+				return transactionFile(path);
+			}
+			if ("/files".equals(path)) {
+				StringBuilder json = new StringBuilder("[");
+				for (String name : FileGenerator.sampleNames()) {
+					if (json.length() > 1) {
+						json.append(',');
+					}
+					string(json, name);
+				}
+				return Response.json(200, json.append(']').toString());
+			}
+			if (path.startsWith("/files/")) {
+				String name = path.substring("/files/".length());
+				if (!FileGenerator.sampleNames().contains(name)) {
+					return Response.json(404, "{\"error\":\"Unknown file\"}");
+				}
+				return Response.file(FileGenerator.sampleFile(name), contentType(name));
+			}
+			return Response.json(404, "{\"error\":\"Unknown endpoint\"}");
+		} catch (IllegalArgumentException e) {
+			return Response.json(400, error(e));
+		} catch (IllegalStateException e) {
+			return Response.json(409, error(e));
+		} catch (IOException | RuntimeException e) {
+			LOG.log(Level.WARNING, "Error while answering " + target, e);
+			return Response.json(500, error(e));
+		}
+	}
+
+	/**
+	 * @param cursor null for the first page, otherwise the offset returned with the previous page
+	 */
+	private TransactionPage transactionPage(String cursor) {
+		int offset;
+		try {
+			offset = cursor == null ? 0 : Integer.parseInt(cursor);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Unknown cursor: " + cursor);
+		}
+		int pageSize = Math.max(1, collector.getPageSize());
+		fetchUntil(offset + pageSize);
+		synchronized (fetched) {
+			if (offset < 0 || offset > fetched.size()) {
+				throw new IllegalArgumentException("Unknown cursor: " + cursor);
+			}
+			int end = Math.min(fetched.size(), offset + pageSize);
+			boolean hasMore = end < fetched.size() || !exhausted;
+			return new TransactionPage(new ArrayList<>(fetched.subList(offset, end)), hasMore ? Integer.toString(end) : null);
+		}
+	}
+
+	/**
+	 * Fetches pages from the collector until there are enough transactions or the collector has no more.
+	 * Clients asking for pages already fetched do not wait for the one fetching.
+	 */
+	private void fetchUntil(int count) {
+		synchronized (fetched) {
+			if (fetched.size() >= count || exhausted) {
+				return;
+			}
+		}
+		synchronized (fetchLock) {
+			while (true) {
+				String cursor;
+				synchronized (fetched) {
+					if (fetched.size() >= count || exhausted) {
+						return;
+					}
+					cursor = collectorCursor;
+				}
+				TransactionPage page = collector.getTransactionPage(cursor);
+				for (TransactionDto transaction : page.getTransactions()) {
+					collector.materialize(transaction);
+				}
+				synchronized (fetched) {
+					fetched.addAll(page.getTransactions());
+					collectorCursor = page.getNextCursor();
+					exhausted = page.isLast();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param path {@code /transactions/<id>/files/<n>}
+	 */
+	private Response transactionFile(String path) throws IOException {
+		int files = path.lastIndexOf("/files/");
+		if (files <= "/transactions/".length()) {
+			return Response.json(404, "{\"error\":\"Unknown endpoint\"}");
+		}
+		String id = URLDecoder.decode(path.substring("/transactions/".length(), files), StandardCharsets.UTF_8.name());
+		List<Path> attached = collector.attachmentsOf(id);
+		int index;
+		try {
+			index = Integer.parseInt(path.substring(files + "/files/".length()));
+		} catch (NumberFormatException e) {
+			return Response.json(404, "{\"error\":\"Unknown file\"}");
+		}
+		if (index < 0 || index >= attached.size() || !Files.isRegularFile(attached.get(index))) {
+			// Unknown, or moved or deleted by the host
+			return Response.json(404, "{\"error\":\"Unknown file\"}");
+		}
+		Path file = attached.get(index);
+		return Response.file(file, contentType(file.getFileName().toString()));
+	}
+
+	private static String parameter(String query, String name) {
+		for (String pair : query.split("&")) {
+			int equals = pair.indexOf('=');
+			if (equals > 0 && pair.substring(0, equals).equals(name)) {
+				try {
+					String value = URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8.name());
+					return value.isEmpty() ? null : value;
+				} catch (UnsupportedEncodingException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		}
+		return null;
+	}
+
+	private static String contentType(String name) {
+		String lower = name.toLowerCase();
+		if (lower.endsWith(".pdf")) {
+			return "application/pdf";
+		}
+		if (lower.endsWith(".jpg") || lower.endsWith(".jpeg")) {
+			return "image/jpeg";
+		}
+		if (lower.endsWith(".png")) {
+			return "image/png";
+		}
+		if (lower.endsWith(".webp")) {
+			return "image/webp";
+		}
+		if (lower.endsWith(".avif")) {
+			return "image/avif";
+		}
+		return "application/octet-stream";
+	}
+
+	private static String error(Exception e) {
+		StringBuilder json = new StringBuilder("{\"error\":");
+		string(json, e.getMessage());
+		return json.append('}').toString();
+	}
+
+	static String accountsJson(List<AccountDto> accounts) {
+		StringBuilder json = new StringBuilder("[");
+		for (AccountDto account : accounts) {
+			if (json.length() > 1) {
+				json.append(',');
+			}
+			json.append("{\"id\":");
+			string(json, account.getId());
+			json.append(",\"uuid\":");
+			string(json, account.getUuid());
+			json.append(",\"type\":");
+			string(json, account.getType() == null ? null : account.getType().name());
+			json.append(",\"label\":");
+			string(json, account.getLabel());
+			json.append(",\"currency\":");
+			string(json, account.getCurrencyCode());
+			json.append(",\"balance\":").append(account.getCurrentBalance()).append('}');
+		}
+		return json.append(']').toString();
+	}
+
+	/**
+	 * @param files files attached to a transaction, by transaction id
+	 */
+	static String pageJson(TransactionPage page, Function<String, List<Path>> files) {
+		StringBuilder json = new StringBuilder("{\"transactions\":[");
+		boolean first = true;
+		for (TransactionDto dto : page.getTransactions()) {
+			if (!first) {
+				json.append(',');
+			}
+			first = false;
+			json.append("{\"id\":");
+			string(json, dto.getId());
+			json.append(",\"accountUuid\":");
+			string(json, dto.getAccountUuid());
+			json.append(",\"type\":");
+			string(json, dto.getType() == null ? null : dto.getType().name());
+			json.append(",\"dateTransaction\":");
+			date(json, dto.getDateTransaction());
+			json.append(",\"dateValue\":");
+			date(json, dto.getDateValue());
+			json.append(",\"label\":");
+			string(json, dto.getLabel());
+			json.append(",\"details\":");
+			string(json, dto.getDetails());
+			json.append(",\"amount\":");
+			number(json, dto.getAmount());
+			json.append(",\"currency\":");
+			string(json, dto.getCurrencyCode());
+			json.append(",\"recurringPaymentUuid\":");
+			string(json, dto.getRecurrentPaymentUuid());
+			json.append(",\"items\":[");
+			if (dto.getItems() != null) {
+				boolean firstItem = true;
+				for (ItemDto item : dto.getItems()) {
+					if (!firstItem) {
+						json.append(',');
+					}
+					firstItem = false;
+					json.append("{\"label\":");
+					string(json, item.getLabel());
+					json.append(",\"price\":");
+					number(json, item.getPrice());
+					json.append('}');
+				}
+			}
+			json.append("],\"payments\":[");
+			if (dto.getPayments() != null) {
+				boolean firstPayment = true;
+				for (PaymentDto payment : dto.getPayments()) {
+					if (!firstPayment) {
+						json.append(',');
+					}
+					firstPayment = false;
+					json.append("{\"amount\":");
+					number(json, payment.getAmount());
+					json.append('}');
+				}
+			}
+			json.append("],\"files\":[");
+			if (dto.getId() != null) {
+				List<Path> attached = files.apply(dto.getId());
+				for (int i = 0; i < attached.size(); i++) {
+					if (i > 0) {
+						json.append(',');
+					}
+					string(json, "/transactions/" + encode(dto.getId()) + "/files/" + i);
+				}
+			}
+			json.append("]}");
+		}
+		json.append("],\"next\":");
+		string(json, page.getNextCursor());
+		return json.append('}').toString();
+	}
+
+	private static void number(StringBuilder json, double value) {
+		// JSON has no NaN nor infinity
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			json.append("null");
+		}
+		else {
+			json.append(value);
+		}
+	}
+
+	private static String encode(String value) {
+		try {
+			return URLEncoder.encode(value, StandardCharsets.UTF_8.name()).replace("+", "%20");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void date(StringBuilder json, Date date) {
+		if (date == null) {
+			json.append("null");
+		}
+		else {
+			json.append(date.getTime());
+		}
+	}
+
+	private static void string(StringBuilder json, String value) {
+		if (value == null) {
+			json.append("null");
+			return;
+		}
+		json.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case '"':
+					json.append("\\\"");
+					break;
+				case '\\':
+					json.append("\\\\");
+					break;
+				case '\n':
+					json.append("\\n");
+					break;
+				case '\r':
+					json.append("\\r");
+					break;
+				case '\t':
+					json.append("\\t");
+					break;
+				default:
+					if (c < 0x20) {
+						json.append(String.format("\\u%04x", (int) c));
+					}
+					else {
+						json.append(c);
+					}
+			}
+		}
+		json.append('"');
+	}
+
+	private static final class Response {
+
+		final int status;
+
+		final String contentType;
+
+		final byte[] body;
+
+		final Path file;
+
+		int retryAfterSeconds;
+
+		private Response(int status, String contentType, byte[] body, Path file) {
+			this.status = status;
+			this.contentType = contentType;
+			this.body = body;
+			this.file = file;
+		}
+
+		static Response json(int status, String json) {
+			return new Response(status, "application/json; charset=utf-8", json.getBytes(StandardCharsets.UTF_8), null);
+		}
+
+		static Response file(Path file, String contentType) {
+			return new Response(200, contentType, null, file);
+		}
+
+		Response retryAfter(int seconds) {
+			this.retryAfterSeconds = seconds;
+			return this;
+		}
+	}
+
+	private final class Connection {
+
+		private final SocketChannel channel;
+
+		private SelectionKey key;
+
+		private final ByteBuffer in = ByteBuffer.allocate(MAX_HEADER_SIZE);
+
+		private boolean keepAlive;
+
+		/**
+		 * Bytes of the body of the last request still to be skipped
+		 */
+		private long toDiscard;
+
+		/**
+		 * Set by the worker, read by the selector thread after the hand over through {@link #responded}
+		 */
+		private volatile Response response;
+
+		private ByteBuffer header;
+
+		private ByteBuffer body;
+
+		private FileChannel file;
+
+		private long filePosition;
+
+		private long fileSize;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		void read() throws IOException {
+			if (channel.read(in) < 0) {
+				close();
+				return;
+			}
+			parse();
+		}
+
+		/**
+		 * Starts answering if a whole request has been received. One request at a time: reading stops
+		 * until the response has been written.
+		 */
+		private void parse() {
+			if (toDiscard > 0) {
+				int skipped = (int) Math.min(toDiscard, in.position());
+				in.flip();
+				in.position(skipped);
+				in.compact();
+				toDiscard -= skipped;
+				if (toDiscard > 0) {
+					return;
+				}
+			}
+			int end = headerEnd();
+			if (end < 0) {
+				if (!in.hasRemaining()) {
+					response = Response.json(431, "{\"error\":\"Request header too large\"}");
+					keepAlive = false;
+					startWriting();
+				}
+				return;
+			}
+			String request = new String(in.array(), 0, end, StandardCharsets.ISO_8859_1);
+			// Drop the header, keep what follows: a body to skip or the next request (pipelining)
+			in.flip();
+			in.position(end + 4);
+			in.compact();
+
+			String[] lines = request.split("\r\n");
+			String[] requestLine = lines[0].split(" ");
+			if (requestLine.length != 3) {
+				response = Response.json(400, "{\"error\":\"Malformed request line\"}");
+				keepAlive = false;
+				startWriting();
+				return;
+			}
+			keepAlive = !"HTTP/1.0".equals(requestLine[2]);
+			for (int i = 1; i < lines.length; i++) {
+				String line = lines[i].toLowerCase();
+				if (line.startsWith("connection:")) {
+					keepAlive = line.contains("keep-alive") || (keepAlive && !line.contains("close"));
+				}
+				else if (line.startsWith("content-length:")) {
+					try {
+						toDiscard = Long.parseLong(line.substring("content-length:".length()).trim());
+					} catch (NumberFormatException e) {
+						keepAlive = false;
+					}
+				}
+			}
+			key.interestOps(0);
+			String method = requestLine[0];
+			String target = requestLine[1];
+			workers.execute(() -> respond(this, method, target));
+		}
+
+		private int headerEnd() {
+			byte[] bytes = in.array();
+			for (int i = 0; i + 3 < in.position(); i++) {
+				if (bytes[i] == '\r' && bytes[i + 1] == '\n' && bytes[i + 2] == '\r' && bytes[i + 3] == '\n') {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * Called on the selector thread once the response is ready
+		 */
+		void startWriting() {
+			if (!key.isValid()) {
+				return;
+			}
+			Response r = response;
+			long length;
+			try {
+				if (r.file != null) {
+					file = FileChannel.open(r.file, StandardOpenOption.READ);
+					filePosition = 0;
+					fileSize = file.size();
+					length = fileSize;
+				}
+				else {
+					body = ByteBuffer.wrap(r.body);
+					length = r.body.length;
+				}
+			} catch (IOException e) {
+				LOG.log(Level.WARNING, "Cannot open " + r.file, e);
+				r = Response.json(500, error(e));
+				body = ByteBuffer.wrap(r.body);
+				length = r.body.length;
+			}
+			StringBuilder head = new StringBuilder()
+					.append("HTTP/1.1 ").append(r.status).append(' ').append(reason(r.status)).append("\r\n")
+					.append("Content-Type: ").append(r.contentType).append("\r\n")
+					.append("Content-Length: ").append(length).append("\r\n")
+					.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+			if (r.retryAfterSeconds > 0) {
+				head.append("Retry-After: ").append(r.retryAfterSeconds).append("\r\n");
+			}
+			header = ByteBuffer.wrap(head.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1));
+			key.interestOps(SelectionKey.OP_WRITE);
+		}
+
+		void write() throws IOException {
+			if (header.hasRemaining()) {
+				channel.write(header);
+				if (header.hasRemaining()) {
+					return;
+				}
+			}
+			if (body != null && body.hasRemaining()) {
+				channel.write(body);
+				if (body.hasRemaining()) {
+					return;
+				}
+			}
+			if (file != null && filePosition < fileSize) {
+				// Zero-copy: the kernel sends the file to the socket directly
+				filePosition += file.transferTo(filePosition, fileSize - filePosition, channel);
+				if (filePosition < fileSize) {
+					return;
+				}
+			}
+			finishResponse();
+		}
+
+		private void finishResponse() throws IOException {
+			if (file != null) {
+				file.close();
+				file = null;
+			}
+			body = null;
+			header = null;
+			response = null;
+			if (!keepAlive) {
+				close();
+				return;
+			}
+			key.interestOps(SelectionKey.OP_READ);
+			if (in.position() > 0) {
+				parse();
+			}
+		}
+
+		void close() {
+			try {
+				if (file != null) {
+					file.close();
+				}
+				key.cancel();
+				channel.close();
+			} catch (IOException e) {
+				LOG.log(Level.FINE, "Error while closing connection", e);
+			}
+		}
+	}
+
+	/**
+	 * Runs a simulator until the JVM is stopped.
+	 * Arguments: port, operation count, page size, minimum and maximum latency in milliseconds, fault percentage.
+	 */
+	public static void main(String[] args) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8089;
+		StubbedCollector collector = new StubbedCollector();
+		collector.setDelayInSeconds(0);
+		collector.setCorrectOpCount(args.length > 1 ? Integer.parseInt(args[1]) : 1000);
+		collector.setPageSize(args.length > 2 ? Integer.parseInt(args[2]) : 100);
+		Profile profile = new Profile(
+				args.length > 3 ? Long.parseLong(args[3]) : 0,
+				args.length > 4 ? Long.parseLong(args[4]) : 0,
+				args.length > 5 ? Integer.parseInt(args[5]) : 0);
+		if (!collector.validate().isEmpty()) {
+			throw new IllegalArgumentException("Invalid configuration");
+		}
+		collector.collect();
+		BankSimulator simulator = new BankSimulator(collector, port, profile);
+		System.out.println("Bank simulator listening on " + simulator.getBaseUri());
+		simulator.loop.join();
+	}
+
+	private static String reason(int status) {
+		switch (status) {
+			case 200:
+				return "OK";
+			case 400:
+				return "Bad Request";
+			case 404:
+				return "Not Found";
+			case 405:
+				return "Method Not Allowed";
+			case 409:
+				return "Conflict";
+			case 431:
+				return "Request Header Fields Too Large";
+			case 503:
+				return "Service Unavailable";
+			default:
+				return "Internal Server Error";
+		}
+	}
+}
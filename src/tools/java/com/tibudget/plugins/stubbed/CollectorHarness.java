@@ -0,0 +1,199 @@
+package com.tibudget.plugins.stubbed;
+
+import com.tibudget.dto.MessageDto;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs many {@link StubbedCollector} instances concurrently, one task per collector, to stand in for
+ * a large number of simultaneous bank connections.
+ * <p>
+ * Each task runs the host lifecycle {@code validate() -> collect() -> getAccounts() -> getTransactions()}.
+ * On Java 21+ (multi-release JAR built with the {@code jdk21} profile) tasks run on virtual threads,
+ * otherwise on platform threads. The report includes the peak number of platform threads seen during
+ * the run: with virtual threads it stays far below the number of collectors blocked in their delay,
+ * which shows that the blocking calls do not pin carrier threads.
+ */
+public class CollectorHarness {
+
+    private static final Logger LOG = Logger.getLogger(CollectorHarness.class.getName());
+
+    private final int collectorCount;
+    private final Supplier<StubbedCollector> factory;
+
+    /**
+     * @param collectorCount number of collectors to run concurrently
+     * @param factory        creates a fully configured collector, called once per task
+     */
+    public CollectorHarness(int collectorCount, Supplier<StubbedCollector> factory) {
+        if (collectorCount <= 0) {
+            throw new IllegalArgumentException("collectorCount must be positive: " + collectorCount);
+        }
+        this.collectorCount = collectorCount;
+        this.factory = factory;
+    }
+
+    public Report run() throws InterruptedException {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        int platformThreadsBefore = threads.getThreadCount();
+
+        long[] latencies = new long[collectorCount];
+        List<Failure> failures = Collections.synchronizedList(new ArrayList<>());
+        AtomicLong transactionCount = new AtomicLong();
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(collectorCount);
+
+        long start = System.nanoTime();
+        ExecutorService executor = VirtualThreads.newPerTaskExecutor();
+        try {
+            for (int i = 0; i < collectorCount; i++) {
+                final int index = i;
+                executor.execute(() -> {
+                    maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                    long taskStart = System.nanoTime();
+                    try {
+                        transactionCount.addAndGet(runOne(index));
+                    } catch (Exception | Error e) {
+                        failures.add(new Failure(index, e));
+                    } finally {
+                        latencies[index] = System.nanoTime() - taskStart;
+                        inFlight.decrementAndGet();
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        return new Report(collectorCount, elapsed, latencies, transactionCount.get(), failures,
+                VirtualThreads.isSupported(), platformThreadsBefore, threads.getPeakThreadCount(), maxInFlight.get());
+    }
+
+    private int runOne(int index) throws Exception {
+        StubbedCollector collector = factory.get();
+        List<MessageDto> messages = collector.validate();
+        LOG.log(Level.FINE, "Collector #" + index + " validated with " + messages.size() + " message(s)");
+        collector.collect();
+        collector.getAccounts();
+        return collector.getTransactions().size();
+    }
+
+    public static class Failure {
+
+        public final int collectorIndex;
+        public final Throwable error;
+
+        Failure(int collectorIndex, Throwable error) {
+            this.collectorIndex = collectorIndex;
+            this.error = error;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + collectorIndex + ": " + error;
+        }
+    }
+
+    public static class Report {
+
+        public final int collectorCount;
+        public final long elapsedNanos;
+        public final long transactionCount;
+        public final List<Failure> failures;
+        public final boolean virtualThreads;
+        public final int platformThreadsBefore;
+        public final int peakPlatformThreads;
+        public final int maxConcurrentCollectors;
+        private final long[] sortedLatencies;
+
+        Report(int collectorCount, long elapsedNanos, long[] latencies, long transactionCount, List<Failure> failures,
+               boolean virtualThreads, int platformThreadsBefore, int peakPlatformThreads, int maxConcurrentCollectors) {
+            this.collectorCount = collectorCount;
+            this.elapsedNanos = elapsedNanos;
+            this.transactionCount = transactionCount;
+            this.failures = List.copyOf(failures);
+            this.virtualThreads = virtualThreads;
+            this.platformThreadsBefore = platformThreadsBefore;
+            this.peakPlatformThreads = peakPlatformThreads;
+            this.maxConcurrentCollectors = maxConcurrentCollectors;
+            this.sortedLatencies = latencies.clone();
+            Arrays.sort(this.sortedLatencies);
+        }
+
+        public double collectorsPerSecond() {
+            return collectorCount / (elapsedNanos / 1e9);
+        }
+
+        public double transactionsPerSecond() {
+            return transactionCount / (elapsedNanos / 1e9);
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the latency of one collector lifecycle at this percentile, in milliseconds
+         */
+        public double latencyMillis(double percentile) {
+            int index = (int) Math.ceil(percentile / 100.0 * sortedLatencies.length) - 1;
+            index = Math.max(0, Math.min(sortedLatencies.length - 1, index));
+            return sortedLatencies[index] / 1e6;
+        }
+
+        /**
+         * @return additional platform threads started for the run; with virtual threads this stays
+         * around the number of carrier threads even when every collector is blocked at the same time
+         */
+        public int extraPlatformThreads() {
+            return peakPlatformThreads - platformThreadsBefore;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("collectors=%d virtualThreads=%s elapsed=%.1fms%n", collectorCount, virtualThreads, elapsedNanos / 1e6));
+            sb.append(String.format("throughput=%.1f collectors/s %.1f transactions/s%n", collectorsPerSecond(), transactionsPerSecond()));
+            sb.append(String.format("latency p50=%.1fms p90=%.1fms p99=%.1fms max=%.1fms%n",
+                    latencyMillis(50), latencyMillis(90), latencyMillis(99), latencyMillis(100)));
+            sb.append(String.format("maxConcurrentCollectors=%d extraPlatformThreads=%d%n", maxConcurrentCollectors, extraPlatformThreads()));
+            sb.append("failures=").append(failures.size());
+            for (Failure failure : failures) {
+                sb.append(System.lineSeparator()).append("  ").append(failure);
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Usage: {@code CollectorHarness <collectorCount> [correctOpCount] [delayInSeconds]}
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int correctOpCount = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int delayInSeconds = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        Report report = new CollectorHarness(count, () -> {
+            StubbedCollector collector = new StubbedCollector();
+            collector.setCorrectOpCount(correctOpCount);
+            collector.setDelayInSeconds(delayInSeconds);
+            return collector;
+        }).run();
+        System.out.println(report);
+    }
+}
@@ -0,0 +1,48 @@
+package com.tibudget.plugins.stubbed;
+
+import java.time.Duration;
+
+/**
+ * Plays an {@link ErrorStorm} against a collector, as a host retrying in a loop would:
+ * <pre>
+ * java -cp &lt;classpath&gt; com.tibudget.plugins.stubbed.ErrorStormRunner PT1M ERR_CollectError=1,ERR_AccessDeny=1 false
+ * </pre>
+ */
+public final class ErrorStormRunner {
+
+	private ErrorStormRunner() {
+	}
+
+	/**
+	 * Plays a host retrying at once after each failure, for the given duration.
+	 *
+	 * @return the storm of the collector, with its counters
+	 */
+	public static ErrorStorm run(StubbedCollector collector, Duration duration) {
+		long end = System.nanoTime() + duration.toNanos();
+		while (System.nanoTime() - end < 0) {
+			try {
+				if (collector.validate().isEmpty()) {
+					collector.collect();
+					collector.getAccounts();
+					collector.getTransactions();
+				}
+			} catch (Exception e) {
+				// A host would log and schedule a retry
+			}
+		}
+		return collector.getErrorStorm();
+	}
+
+	public static void main(String[] args) {
+		Duration duration = args.length > 0 ? Duration.parse(args[0]) : Duration.ofSeconds(10);
+		StubbedCollector collector = new StubbedCollector();
+		collector.setDelayInSeconds(0);
+		collector.setCorrectOpCount(0);
+		collector.setErrorMix(args.length > 1 ? args[1]
+				: "ERR_CollectError=20,ERR_AccessDeny=10,ERR_TemporaryUnavailable=30,ERR_ConnectionFailure=20,ERR_ParameterError=5,"
+				+ "ERR_RuntimeCollect=5,ERR_RuntimeValidate=5,ERR_RuntimeAccount=3,ERR_RuntimeOperation=2");
+		collector.setErrorStackTraces(args.length <= 2 || Boolean.parseBoolean(args[2]));
+		System.out.println(run(collector, duration));
+	}
+}
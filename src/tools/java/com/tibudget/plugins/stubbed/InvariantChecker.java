@@ -0,0 +1,654 @@
+package com.tibudget.plugins.stubbed;
+
+import com.tibudget.api.exceptions.AccessDeny;
+import com.tibudget.api.exceptions.CollectError;
+import com.tibudget.api.exceptions.ConnectionFailure;
+import com.tibudget.api.exceptions.ParameterError;
+import com.tibudget.api.exceptions.TemporaryUnavailable;
+import com.tibudget.dto.AccountDto;
+import com.tibudget.dto.ItemDto;
+import com.tibudget.dto.PaymentDto;
+import com.tibudget.dto.TransactionDto;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks in one pass that the output of a collector is consistent, for datasets too large to be read by eye:
+ * <ul>
+ * <li>{@link Invariant#FIELDS}: transactions have an id, dates, a label, an amount in range and a known account</li>
+ * <li>{@link Invariant#PURCHASE_TOTAL}: the items and card payments of a purchase add up to its amount</li>
+ * <li>{@link Invariant#PURCHASE_PAYMENT}: each purchase has its payment operation, of the opposite amount</li>
+ * <li>{@link Invariant#TRANSFER_NET}: each transfer has its other leg, and the two legs net to zero</li>
+ * <li>{@link Invariant#RECURRING_ID}: an occurrence of a recurring payment keeps its id, from a collect to the next</li>
+ * <li>{@link Invariant#BALANCE}: the balance of each account moved by the sum of its completed transactions</li>
+ * </ul>
+ * Transactions broken on purpose by the collector (see {@code errorOpCount}) are not checked, only counted,
+ * and their amount is posted where the collector posted it.
+ * <p>
+ * Transactions are read once, in order, by the caller thread, which pairs purchases and transfer legs within
+ * a window of recent transactions. The rest of the checks run on one thread per partition of the accounts,
+ * fed through bounded queues: memory depends on the window, the number of accounts and the recurring
+ * occurrences, not on the number of transactions. Cross-currency pairs are matched but their amounts are
+ * not compared. Accounts whose balance cannot be expressed in cents are not checked.
+ * <pre>
+ * java -cp &lt;classpath&gt; com.tibudget.plugins.stubbed.InvariantChecker 1000000 100 4
+ * </pre>
+ */
+public final class InvariantChecker {
+
+	public enum Invariant {
+		FIELDS, PURCHASE_TOTAL, PURCHASE_PAYMENT, TRANSFER_NET, RECURRING_ID, BALANCE
+	}
+
+	private static final double MAX_EXACT_CENTS = 9007199254740992.0; // 2^53
+
+	private static final String PAYMENT_PREFIX = "Purchase of ";
+
+	/**
+	 * Number of transactions a purchase or a transfer leg waits for its counterpart
+	 */
+	private static final int WINDOW = 4096;
+
+	private static final int BATCH = 1024;
+
+	private static final int QUEUE_BATCHES = 4;
+
+	private static final int MAX_EXAMPLES = 100;
+
+	private static final long NO_DAY = Long.MIN_VALUE;
+
+	private static final List<Row> END = Collections.emptyList();
+
+	private final Partition[] partitions;
+
+	private final AtomicLongArray counts = new AtomicLongArray(Invariant.values().length);
+
+	private final List<String> examples = new ArrayList<>();
+
+	private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+	/**
+	 * Opening balance in cents of each account by uuid, read only while checking
+	 */
+	private Map<String, Long> openings = Collections.emptyMap();
+
+	private Map<String, String> injectedErrors = Collections.emptyMap();
+
+	/**
+	 * Purchases, payments and transfer legs waiting for their counterpart, oldest first
+	 */
+	private final LinkedHashMap<String, Half> pending = new LinkedHashMap<>();
+
+	private List<Row>[] batches;
+
+	private Thread[] workers;
+
+	private long checked;
+
+	private long injected;
+
+	/**
+	 * @param partitions number of threads checking accounts and recurring payments
+	 */
+	public InvariantChecker(int partitions) {
+		if (partitions <= 0) {
+			throw new IllegalArgumentException("partitions must be positive: " + partitions);
+		}
+		this.partitions = new Partition[partitions];
+		for (int i = 0; i < partitions; i++) {
+			this.partitions[i] = new Partition();
+		}
+	}
+
+	/**
+	 * Starts checking the output of a collect. Recurring occurrences seen by the previous checks are kept, so
+	 * that a checker used for several collects of the same collector also checks that their ids are stable.
+	 *
+	 * @param accounts       accounts before the collect, for their opening balances
+	 * @param injectedErrors ids of the transactions broken on purpose, with the account their amount was posted
+	 *                       to, filled while the collector generates
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized void open(Collection<AccountDto> accounts, Map<String, String> injectedErrors) {
+		if (workers != null) {
+			throw new IllegalStateException("Checker already open");
+		}
+		Map<String, Long> balances = new HashMap<>();
+		for (AccountDto account : accounts) {
+			double cents = account.getCurrentBalance() * 100.0;
+			// Unchecked if out of range, an overflowing error has been posted before
+			balances.put(account.getUuid(), Math.abs(cents) < MAX_EXACT_CENTS ? Math.round(cents) : null);
+		}
+		this.openings = balances;
+		this.injectedErrors = injectedErrors;
+		for (int i = 0; i < counts.length(); i++) {
+			counts.set(i, 0);
+		}
+		synchronized (examples) {
+			examples.clear();
+		}
+		failure.set(null);
+		pending.clear();
+		checked = 0;
+		injected = 0;
+		batches = new List[partitions.length];
+		workers = new Thread[partitions.length];
+		for (int i = 0; i < partitions.length; i++) {
+			batches[i] = new ArrayList<>(BATCH);
+			partitions[i].open();
+			workers[i] = new Thread(partitions[i], "stubbed-invariant-checker-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * Checks the next transaction of the output. Transactions must come in the order of the collector, from
+	 * one thread at a time. The checker keeps no reference to the transaction, pooled ones can be released.
+	 */
+	public void accept(TransactionDto transaction) {
+		if (workers == null) {
+			throw new IllegalStateException("Checker not open");
+		}
+		checked++;
+		String id = transaction.getId();
+		double amountInCents = transaction.getAmount() * 100.0;
+		boolean inRange = Math.abs(amountInCents) < MAX_EXACT_CENTS;
+		long cents = inRange ? Math.round(amountInCents) : 0;
+		String postedTo = id == null ? null : injectedErrors.get(id);
+		if (postedTo != null) {
+			injected++;
+			route(new Row(id, postedTo, null, NO_DAY, cents, inRange, true, true));
+			return;
+		}
+
+		TransactionDto.TransactionDtoType type = transaction.getType();
+		long date = transaction.getDateTransaction() == null ? NO_DAY : transaction.getDateTransaction().getTime();
+		String label = transaction.getLabel();
+		if (id == null) {
+			violation(Invariant.FIELDS, "Transaction without id on " + transaction.getAccountUuid());
+		}
+		if (type == null) {
+			violation(Invariant.FIELDS, id + " has no type");
+		}
+		if (date == NO_DAY || transaction.getDateValue() == null) {
+			violation(Invariant.FIELDS, id + " has no date");
+		}
+		if (label == null || label.trim().isEmpty()) {
+			violation(Invariant.FIELDS, id + " has no label");
+		}
+		if (!inRange) {
+			violation(Invariant.FIELDS, id + " has an amount out of range: " + transaction.getAmount());
+		}
+
+		if (type == TransactionDto.TransactionDtoType.PURCHASE) {
+			checkPurchaseTotal(transaction, cents);
+			if (date != NO_DAY && label != null) {
+				pair("P" + date + '|' + label, new Half(id, Invariant.PURCHASE_PAYMENT, true, cents, transaction.getCurrencyCode()));
+			}
+		}
+		else if (type == TransactionDto.TransactionDtoType.PAYMENT && label != null && label.startsWith(PAYMENT_PREFIX) && date != NO_DAY) {
+			pair("P" + date + '|' + label.substring(PAYMENT_PREFIX.length()), new Half(id, Invariant.PURCHASE_PAYMENT, false, cents, transaction.getCurrencyCode()));
+		}
+		else if (type == TransactionDto.TransactionDtoType.TRANSFER && date != NO_DAY) {
+			pair("T" + date, new Half(id, Invariant.TRANSFER_NET, false, cents, transaction.getCurrencyCode()));
+		}
+
+		String series = transaction.getRecurrentPaymentUuid();
+		long day = series == null || date == NO_DAY ? NO_DAY : LocalDate.ofInstant(Instant.ofEpochMilli(date), StubbedCollector.ZONE).toEpochDay();
+		// Purchases are paid by their payment operation, pending operations are not in the balance yet
+		boolean posted = type != TransactionDto.TransactionDtoType.PURCHASE && transaction.getState() != TransactionDto.TransactionDtoState.PENDING;
+		route(new Row(id, transaction.getAccountUuid(), series, day, cents, inRange, posted, false));
+	}
+
+	/**
+	 * Ends the check of a collect: reports the counterparts never seen and compares the balances.
+	 *
+	 * @param accounts accounts after the collect
+	 * @return the violations found since {@link #open(Collection, Map)}
+	 * @throws IllegalStateException if a partition failed
+	 */
+	public synchronized Report close(Collection<AccountDto> accounts) throws InterruptedException {
+		if (workers == null) {
+			throw new IllegalStateException("Checker not open");
+		}
+		for (Half half : pending.values()) {
+			unmatched(half);
+		}
+		pending.clear();
+		for (int i = 0; i < partitions.length; i++) {
+			if (!batches[i].isEmpty()) {
+				partitions[i].queue.put(batches[i]);
+			}
+			partitions[i].queue.put(END);
+		}
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		workers = null;
+		batches = null;
+		if (failure.get() != null) {
+			throw new IllegalStateException("Invariant check failed", failure.get());
+		}
+
+		Map<String, long[]> posted = new HashMap<>();
+		for (Partition partition : partitions) {
+			partition.posted.forEach((account, sum) -> posted.merge(account, sum, (a, b) -> new long[]{a[0] + b[0], a[1] | b[1]}));
+		}
+		for (AccountDto account : accounts) {
+			Long opening = openings.get(account.getUuid());
+			long[] sum = posted.get(account.getUuid());
+			double balanceInCents = account.getCurrentBalance() * 100.0;
+			if (opening == null || (sum != null && sum[1] != 0) || Math.abs(balanceInCents) >= MAX_EXACT_CENTS) {
+				// Not in cents, nothing exact to compare
+				continue;
+			}
+			long expected = opening + (sum == null ? 0 : sum[0]);
+			if (Math.round(balanceInCents) != expected) {
+				violation(Invariant.BALANCE, "Balance of " + account.getId() + " is " + account.getCurrentBalance()
+						+ ", its transactions give " + Cents.toDouble(expected));
+			}
+		}
+		long[] found = new long[counts.length()];
+		for (int i = 0; i < found.length; i++) {
+			found[i] = counts.get(i);
+		}
+		synchronized (examples) {
+			return new Report(checked, injected, found, new ArrayList<>(examples));
+		}
+	}
+
+	/**
+	 * Checks the transactions of {@link StubbedCollector#collect()}: reads the opening balances, collects, then
+	 * checks {@link StubbedCollector#getTransactions()} and the balances. The collector must have been validated.
+	 */
+	public Report check(StubbedCollector collector) throws CollectError, AccessDeny, TemporaryUnavailable, ConnectionFailure, ParameterError, InterruptedException {
+		open(collector.getAccounts(), collector.injectedErrors());
+		boolean generated = false;
+		try {
+			collector.collect();
+			for (TransactionDto transaction : collector.getTransactions()) {
+				accept(transaction);
+			}
+			generated = true;
+		} finally {
+			if (!generated) {
+				// Stops the partitions
+				close(Collections.emptyList());
+			}
+		}
+		return close(collector.getAccounts());
+	}
+
+	/**
+	 * Checks the transactions of {@link StubbedCollector#publishTransactions()} as they are published, then
+	 * the balances. The collector must have been validated.
+	 *
+	 * @throws IllegalStateException if the publisher signals an error
+	 */
+	public Report checkPublished(StubbedCollector collector) throws InterruptedException {
+		open(collector.getAccounts(), collector.injectedErrors());
+		CountDownLatch completed = new CountDownLatch(1);
+		AtomicReference<Throwable> error = new AtomicReference<>();
+		collector.publishTransactions().subscribe(new Flow.Subscriber<TransactionDto>() {
+
+			private Flow.Subscription subscription;
+
+			private int received;
+
+			@Override
+			public void onSubscribe(Flow.Subscription subscription) {
+				this.subscription = subscription;
+				subscription.request(BATCH);
+			}
+
+			@Override
+			public void onNext(TransactionDto transaction) {
+				accept(transaction);
+				if (++received == BATCH) {
+					received = 0;
+					subscription.request(BATCH);
+				}
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				error.set(throwable);
+				completed.countDown();
+			}
+
+			@Override
+			public void onComplete() {
+				completed.countDown();
+			}
+		});
+		completed.await();
+		Report report = close(collector.getAccounts());
+		if (error.get() != null) {
+			throw new IllegalStateException("Publisher failed", error.get());
+		}
+		return report;
+	}
+
+	private void checkPurchaseTotal(TransactionDto purchase, long cents) {
+		List<ItemDto> items = purchase.getItems();
+		if (items != null && !items.isEmpty()) {
+			// Lazy purchases have no items until materialized
+			long total = 0;
+			for (int i = 0; i < items.size(); i++) {
+				total += Cents.of(items.get(i).getPrice());
+			}
+			if (total != cents) {
+				violation(Invariant.PURCHASE_TOTAL, "Items of purchase " + purchase.getId() + " add up to " + Cents.toDouble(total)
+						+ ", not " + purchase.getAmount());
+			}
+		}
+		List<PaymentDto> payments = purchase.getPayments();
+		if (payments != null && !payments.isEmpty()) {
+			long total = 0;
+			for (int i = 0; i < payments.size(); i++) {
+				total += Cents.of(payments.get(i).getAmount());
+			}
+			if (total != cents) {
+				violation(Invariant.PURCHASE_TOTAL, "Payments of purchase " + purchase.getId() + " add up to " + Cents.toDouble(total)
+						+ ", not " + purchase.getAmount());
+			}
+		}
+	}
+
+	private void pair(String key, Half half) {
+		Half other = pending.remove(key);
+		if (other == null) {
+			pending.put(key, half);
+			if (pending.size() > WINDOW) {
+				Iterator<Half> oldest = pending.values().iterator();
+				unmatched(oldest.next());
+				oldest.remove();
+			}
+			return;
+		}
+		if (half.invariant == Invariant.PURCHASE_PAYMENT && half.purchase == other.purchase) {
+			// Two purchases, or two payments, on the same date with the same label
+			unmatched(other);
+			pending.put(key, half);
+			return;
+		}
+		if (half.currency != null && half.currency.equals(other.currency) && half.cents + other.cents != 0) {
+			violation(half.invariant, (half.invariant == Invariant.TRANSFER_NET ? "Transfer legs " : "Purchase and payment ")
+					+ other.id + " and " + half.id + " do not net to zero: " + Cents.toDouble(other.cents + half.cents));
+		}
+	}
+
+	private void unmatched(Half half) {
+		if (half.invariant == Invariant.TRANSFER_NET) {
+			violation(Invariant.TRANSFER_NET, "Transfer " + half.id + " has no other leg");
+		}
+		else {
+			violation(Invariant.PURCHASE_PAYMENT, (half.purchase ? "Purchase " : "Payment ") + half.id + " has no "
+					+ (half.purchase ? "payment" : "purchase"));
+		}
+	}
+
+	private void route(Row row) {
+		int partition = row.account == null ? 0 : Math.floorMod(row.account.hashCode(), partitions.length);
+		List<Row> batch = batches[partition];
+		batch.add(row);
+		if (batch.size() == BATCH) {
+			try {
+				partitions[partition].queue.put(batch);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while checking", e);
+			}
+			batches[partition] = new ArrayList<>(BATCH);
+		}
+	}
+
+	private void violation(Invariant invariant, String example) {
+		counts.incrementAndGet(invariant.ordinal());
+		synchronized (examples) {
+			if (examples.size() < MAX_EXAMPLES) {
+				examples.add(invariant + ": " + example);
+			}
+		}
+	}
+
+	/**
+	 * What the partitions need of a transaction
+	 */
+	private static final class Row {
+
+		final String id;
+
+		final String account;
+
+		final String series;
+
+		final long day;
+
+		final long cents;
+
+		final boolean inRange;
+
+		final boolean posted;
+
+		final boolean injected;
+
+		Row(String id, String account, String series, long day, long cents, boolean inRange, boolean posted, boolean injected) {
+			this.id = id;
+			this.account = account;
+			this.series = series;
+			this.day = day;
+			this.cents = cents;
+			this.inRange = inRange;
+			this.posted = posted;
+			this.injected = injected;
+		}
+	}
+
+	/**
+	 * A purchase, a payment or a transfer leg waiting for its counterpart
+	 */
+	private static final class Half {
+
+		final String id;
+
+		final Invariant invariant;
+
+		final boolean purchase;
+
+		final long cents;
+
+		final String currency;
+
+		Half(String id, Invariant invariant, boolean purchase, long cents, String currency) {
+			this.id = id;
+			this.invariant = invariant;
+			this.purchase = purchase;
+			this.cents = cents;
+			this.currency = currency;
+		}
+	}
+
+	/**
+	 * Accounts and recurring payments of a share of the account uuids, checked by one thread
+	 */
+	private final class Partition implements Runnable {
+
+		private BlockingQueue<List<Row>> queue;
+
+		/**
+		 * Sum in cents of the posted transactions of each account, and 1 if one of them is not in cents
+		 */
+		private final Map<String, long[]> posted = new HashMap<>();
+
+		/**
+		 * Id of each recurring occurrence (series and day), and the reverse, kept from a collect to the next
+		 */
+		private final Map<String, String> occurrenceIds = new HashMap<>();
+
+		private final Map<String, String> idOccurrences = new HashMap<>();
+
+		void open() {
+			queue = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+			posted.clear();
+		}
+
+		@Override
+		public void run() {
+			try {
+				for (List<Row> batch = queue.take(); batch != END; batch = queue.take()) {
+					if (failure.get() != null) {
+						// Keep draining so that the reader never blocks
+						continue;
+					}
+					try {
+						for (Row row : batch) {
+							check(row);
+						}
+					} catch (RuntimeException e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			} catch (InterruptedException e) {
+				failure.compareAndSet(null, e);
+			}
+		}
+
+		private void check(Row row) {
+			if (!row.injected && (row.account == null || !openings.isEmpty() && !openings.containsKey(row.account))) {
+				violation(Invariant.FIELDS, row.id + " is on unknown account " + row.account);
+			}
+			if (row.posted && row.account != null) {
+				long[] sum = posted.computeIfAbsent(row.account, k -> new long[2]);
+				if (row.inRange) {
+					sum[0] += row.cents;
+				}
+				else {
+					sum[1] = 1;
+				}
+			}
+			if (row.series != null && row.day != NO_DAY && row.id != null) {
+				String occurrence = row.series + ':' + row.day;
+				String id = occurrenceIds.putIfAbsent(occurrence, row.id);
+				if (id != null && !id.equals(row.id)) {
+					violation(Invariant.RECURRING_ID, "Occurrence of " + row.series + " on " + LocalDate.ofEpochDay(row.day)
+							+ " has id " + row.id + ", it was " + id);
+				}
+				String previous = idOccurrences.putIfAbsent(row.id, occurrence);
+				if (previous != null && !previous.equals(occurrence)) {
+					violation(Invariant.RECURRING_ID, "Id " + row.id + " is used by occurrences " + previous + " and " + occurrence);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Violations found in the output of one collect
+	 */
+	public static final class Report {
+
+		private final long checked;
+
+		private final long injected;
+
+		private final long[] counts;
+
+		private final List<String> examples;
+
+		Report(long checked, long injected, long[] counts, List<String> examples) {
+			this.checked = checked;
+			this.injected = injected;
+			this.counts = counts;
+			this.examples = examples;
+		}
+
+		public long getChecked() {
+			return checked;
+		}
+
+		/**
+		 * @return the number of transactions broken on purpose, not checked
+		 */
+		public long getInjected() {
+			return injected;
+		}
+
+		public long getViolations(Invariant invariant) {
+			return counts[invariant.ordinal()];
+		}
+
+		public long getViolationCount() {
+			long total = 0;
+			for (long count : counts) {
+				total += count;
+			}
+			return total;
+		}
+
+		/**
+		 * @return a description of the first violations
+		 */
+		public List<String> getExamples() {
+			return Collections.unmodifiableList(examples);
+		}
+
+		public boolean isConsistent() {
+			return getViolationCount() == 0;
+		}
+
+		/**
+		 * @throws IllegalStateException with the report if an invariant is violated
+		 */
+		public void assertConsistent() {
+			if (!isConsistent()) {
+				throw new IllegalStateException(toString());
+			}
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder report = new StringBuilder();
+			report.append(checked).append(" transactions, ").append(injected).append(" broken on purpose: ")
+					.append(isConsistent() ? "consistent" : getViolationCount() + " violations").append('\n');
+			for (Invariant invariant : Invariant.values()) {
+				report.append(String.format("%-17s %d%n", invariant, counts[invariant.ordinal()]));
+			}
+			for (String example : examples) {
+				report.append(example).append('\n');
+			}
+			return report.toString();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		StubbedCollector collector = new StubbedCollector();
+		collector.setDelayInSeconds(0);
+		collector.setCorrectOpCount(args.length > 0 ? Integer.parseInt(args[0]) : 100_000);
+		collector.setErrorOpCount(args.length > 1 ? Integer.parseInt(args[1]) : 100);
+		if (!collector.validate().isEmpty()) {
+			throw new IllegalStateException("Invalid configuration");
+		}
+		InvariantChecker checker = new InvariantChecker(args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors());
+		Report report = checker.check(collector);
+		System.out.print(report);
+		if (!report.isConsistent()) {
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,142 @@
+package com.tibudget.plugins.stubbed;
+
+import com.tibudget.dto.TransactionDto;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compares the allocation and GC cost of {@link StubbedCollector#publishTransactions()} with and without a
+ * {@link TransactionPool}, for a subscriber that reads each transaction and acknowledges them by batches.
+ * <p>
+ * Transfers are the most common operations the pool recycles, so they are the only type generated:
+ * <pre>
+ * java -cp &lt;classpath&gt; com.tibudget.plugins.stubbed.PoolingProbe 1000000
+ * </pre>
+ * No reference figures are kept with the code: the gain depends on the JVM, the heap and the GC, run it
+ * with the settings of the host.
+ */
+public final class PoolingProbe {
+
+	private static final Logger LOG = Logger.getLogger(PoolingProbe.class.getName());
+
+	private static final int BATCH = 256;
+
+	private PoolingProbe() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int operations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		// Warm-up, then one measured run of each
+		run(operations / 10, null);
+		run(operations / 10, new TransactionPool(4 * BATCH, false));
+		report("allocated", run(operations, null));
+		TransactionPool pool = new TransactionPool(4 * BATCH, false);
+		report("pooled", run(operations, pool));
+		System.out.printf("pool: %d created, %d reused%n", pool.getCreated(), pool.getReused());
+	}
+
+	private static long[] run(int operations, TransactionPool pool) throws InterruptedException {
+		StubbedCollector collector = new StubbedCollector();
+		collector.setDelayInSeconds(0);
+		collector.setCorrectOpCount(operations);
+		collector.setTypeMix("TRANSFER=1");
+		if (!collector.validate().isEmpty()) {
+			throw new IllegalStateException("Invalid configuration");
+		}
+		System.gc();
+		long gcCount = gcCount();
+		long gcMillis = gcMillis();
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+
+		CountDownLatch completed = new CountDownLatch(1);
+		collector.publishTransactions(pool).subscribe(new Flow.Subscriber<TransactionDto>() {
+
+			private final List<TransactionDto> batch = new ArrayList<>(BATCH);
+
+			private Flow.Subscription subscription;
+
+			private long checksum;
+
+			@Override
+			public void onSubscribe(Flow.Subscription subscription) {
+				this.subscription = subscription;
+				subscription.request(BATCH);
+			}
+
+			@Override
+			public void onNext(TransactionDto transaction) {
+				checksum += transaction.getDateTransaction().getTime() + transaction.getLabel().length() + (long) transaction.getAmount();
+				batch.add(transaction);
+				if (batch.size() == BATCH) {
+					acknowledge();
+					subscription.request(BATCH);
+				}
+			}
+
+			@Override
+			public void onError(Throwable throwable) {
+				LOG.log(Level.SEVERE, "Publication failed", throwable);
+				completed.countDown();
+			}
+
+			@Override
+			public void onComplete() {
+				acknowledge();
+				completed.countDown();
+			}
+
+			private void acknowledge() {
+				if (pool != null) {
+					pool.release(batch);
+				}
+				batch.clear();
+			}
+		});
+		completed.await();
+		return new long[]{operations, System.nanoTime() - start, allocatedBytes() - allocated, gcCount() - gcCount, gcMillis() - gcMillis};
+	}
+
+	private static void report(String mode, long[] run) {
+		System.out.printf("%-9s %d operations in %.0f ms, %.1f bytes allocated per operation, %d GC, %d ms in GC%n",
+				mode, run[0], run[1] / 1e6, (double) run[2] / run[0], run[3], run[4]);
+	}
+
+	/**
+	 * @return the bytes allocated by all the live threads, -1 if the JVM does not tell
+	 */
+	private static long allocatedBytes() {
+		if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+			return -1;
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long total = 0;
+		for (long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+			total += Math.max(0, allocated);
+		}
+		return total;
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+
+	private static long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(0, gc.getCollectionTime());
+		}
+		return millis;
+	}
+}
@@ -0,0 +1,339 @@
+package com.tibudget.plugins.stubbed;
+
+import com.tibudget.dto.MessageDto;
+import com.tibudget.dto.TransactionDto;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Field;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the lifecycle of one collector (validate, collect, read accounts and transactions) in a loop, as a
+ * host that keeps the plugin loaded for days, and checks that the resources it holds stay bounded.
+ * <p>
+ * Every few cycles a sample records the heap after GC, the open file descriptors, the plugin files in the
+ * temporary directory, the {@link File#deleteOnExit()} registrations and the entries the collector keeps
+ * between collects. The report flags a metric as growing when every value of the last third of the run
+ * is above every value of its first third (after a warm-up quarter), by more than the noise of the metric.
+ * <p>
+ * Each cycle is one simulated day of a stopped {@link SimulatedClock}, so recurring payments and the
+ * default period move forward and collect delays cost nothing.
+ * <pre>
+ * java -cp &lt;classpath&gt; com.tibudget.plugins.stubbed.SoakRunner PT2H 100
+ * </pre>
+ */
+public final class SoakRunner {
+
+	private static final Logger LOG = Logger.getLogger(SoakRunner.class.getName());
+
+	static final String HEAP = "heapAfterGcBytes";
+
+	static final String FILE_DESCRIPTORS = "openFileDescriptors";
+
+	static final String TEMP_FILES = "tempFiles";
+
+	static final String TEMP_BYTES = "tempBytes";
+
+	static final String DELETE_ON_EXIT = "deleteOnExitFiles";
+
+	private static final long MIN_HEAP_TOLERANCE = 2L * 1024 * 1024;
+
+	/**
+	 * Samples needed before growth can be told from warm-up
+	 */
+	private static final int MIN_SAMPLES = 8;
+
+	private final StubbedCollector collector;
+
+	private final Duration duration;
+
+	private final int maxCycles;
+
+	private final int cyclesPerSample;
+
+	private final SimulatedClock clock = SimulatedClock.stopped(Instant.now(), ZoneId.systemDefault());
+
+	/**
+	 * @param collector       the configured collector, kept for the whole run
+	 * @param duration        maximum real duration of the run
+	 * @param maxCycles       maximum number of cycles, 0 for no limit
+	 * @param cyclesPerSample number of cycles between two samples
+	 */
+	public SoakRunner(StubbedCollector collector, Duration duration, int maxCycles, int cyclesPerSample) {
+		if (cyclesPerSample <= 0) {
+			throw new IllegalArgumentException("cyclesPerSample must be positive: " + cyclesPerSample);
+		}
+		if (maxCycles < 0) {
+			throw new IllegalArgumentException("maxCycles must not be negative: " + maxCycles);
+		}
+		this.collector = collector;
+		this.duration = duration;
+		this.maxCycles = maxCycles;
+		this.cyclesPerSample = cyclesPerSample;
+	}
+
+	public Report run() {
+		collector.setClock(clock);
+		List<Sample> samples = new ArrayList<>();
+		long start = System.nanoTime();
+		long end = start + duration.toNanos();
+		int failures = 0;
+		int cycle = 0;
+		samples.add(sample(cycle, 0));
+		while ((maxCycles == 0 || cycle < maxCycles) && System.nanoTime() - end < 0) {
+			if (!cycle(cycle)) {
+				failures++;
+			}
+			cycle++;
+			clock.advance(Duration.ofDays(1));
+			if (cycle % cyclesPerSample == 0) {
+				samples.add(sample(cycle, (System.nanoTime() - start) / 1_000_000));
+			}
+		}
+		return new Report(samples, cycle, failures);
+	}
+
+	/**
+	 * @return false if the collect failed, as some scenarios ask it to
+	 */
+	private boolean cycle(int cycle) {
+		List<MessageDto> messages = collector.validate();
+		if (!messages.isEmpty()) {
+			throw new IllegalStateException("Invalid configuration, " + messages.size() + " messages from validate()");
+		}
+		try {
+			collector.collect();
+		} catch (Exception e) {
+			LOG.log(Level.FINE, "Collect " + cycle + " failed", e);
+			return false;
+		}
+		collector.getAccounts();
+		for (TransactionDto transaction : collector.getTransactions()) {
+			// Read what a host reads, the content of lazy purchases is built first
+			collector.materialize(transaction).getItems().size();
+		}
+		return true;
+	}
+
+	private Sample sample(int cycle, long elapsedMillis) {
+		Map<String, Long> values = new LinkedHashMap<>();
+		values.put(HEAP, heapAfterGc());
+		values.put(FILE_DESCRIPTORS, openFileDescriptors());
+		File[] tempFiles = new File(System.getProperty("java.io.tmpdir")).listFiles((dir, name) -> name.startsWith("tibu_"));
+		long tempBytes = 0;
+		if (tempFiles != null) {
+			for (File tempFile : tempFiles) {
+				tempBytes += tempFile.length();
+			}
+		}
+		values.put(TEMP_FILES, tempFiles == null ? -1L : tempFiles.length);
+		values.put(TEMP_BYTES, tempBytes);
+		values.put(DELETE_ON_EXIT, deleteOnExitFiles());
+		for (Map.Entry<String, Integer> size : collector.retainedSizes().entrySet()) {
+			values.put(size.getKey(), (long) size.getValue());
+		}
+		LOG.log(Level.FINE, "Soak cycle {0}: {1}", new Object[]{cycle, values});
+		return new Sample(cycle, elapsedMillis, values);
+	}
+
+	private static long heapAfterGc() {
+		long used = Long.MAX_VALUE;
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			used = Math.min(used, ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+		}
+		return used;
+	}
+
+	/**
+	 * @return the open file descriptors of the JVM, or -1 if the platform does not tell
+	 */
+	private static long openFileDescriptors() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+			return ((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the size of the JDK list of files to delete on exit, which needs
+	 * {@code --add-opens java.base/java.io=ALL-UNNAMED}, otherwise the registrations made by the plugin
+	 */
+	private static long deleteOnExitFiles() {
+		try {
+			Field files = Class.forName("java.io.DeleteOnExitHook").getDeclaredField("files");
+			files.setAccessible(true);
+			Collection<?> registered = (Collection<?>) files.get(null);
+			// Null once the JVM runs the hook
+			return registered == null ? 0 : registered.size();
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return FileGenerator.deleteOnExitCount();
+		}
+	}
+
+	/**
+	 * @param series    values of a metric, in sampling order
+	 * @param tolerance growth considered as noise
+	 * @return true if the last third of the series, after a warm-up quarter, is entirely above its first third
+	 */
+	static boolean isGrowing(long[] series, long tolerance) {
+		if (series.length < MIN_SAMPLES) {
+			return false;
+		}
+		int from = series.length / 4;
+		int third = (series.length - from) / 3;
+		long firstMax = Long.MIN_VALUE;
+		for (int i = from; i < from + third; i++) {
+			firstMax = Math.max(firstMax, series[i]);
+		}
+		long lastMin = Long.MAX_VALUE;
+		for (int i = series.length - third; i < series.length; i++) {
+			lastMin = Math.min(lastMin, series[i]);
+		}
+		return lastMin > firstMax + tolerance;
+	}
+
+	static final class Sample {
+
+		final int cycle;
+
+		final long elapsedMillis;
+
+		final Map<String, Long> values;
+
+		Sample(int cycle, long elapsedMillis, Map<String, Long> values) {
+			this.cycle = cycle;
+			this.elapsedMillis = elapsedMillis;
+			this.values = values;
+		}
+	}
+
+	public static final class Report {
+
+		private final List<Sample> samples;
+
+		private final int cycles;
+
+		private final int failedCollects;
+
+		private final List<String> growing = new ArrayList<>();
+
+		Report(List<Sample> samples, int cycles, int failedCollects) {
+			this.samples = samples;
+			this.cycles = cycles;
+			this.failedCollects = failedCollects;
+			for (String metric : metrics()) {
+				long[] series = series(metric);
+				if (isGrowing(series, tolerance(metric, series))) {
+					growing.add(metric);
+				}
+			}
+		}
+
+		private List<String> metrics() {
+			return samples.isEmpty() ? Collections.emptyList() : new ArrayList<>(samples.get(0).values.keySet());
+		}
+
+		private long[] series(String metric) {
+			long[] series = new long[samples.size()];
+			for (int i = 0; i < series.length; i++) {
+				series[i] = samples.get(i).values.getOrDefault(metric, -1L);
+			}
+			return series;
+		}
+
+		private static long tolerance(String metric, long[] series) {
+			switch (metric) {
+				case HEAP:
+					long max = 0;
+					for (long value : series) {
+						max = Math.max(max, value);
+					}
+					return Math.max(MIN_HEAP_TOLERANCE, max / 10);
+				case FILE_DESCRIPTORS:
+					// JFR, class loading and the JIT open a few files on their own
+					return 4;
+				default:
+					return 0;
+			}
+		}
+
+		public int getCycles() {
+			return cycles;
+		}
+
+		public int getFailedCollects() {
+			return failedCollects;
+		}
+
+		/**
+		 * @return the metrics growing without bound, empty if the plugin can stay loaded
+		 */
+		public List<String> getGrowingMetrics() {
+			return Collections.unmodifiableList(growing);
+		}
+
+		public boolean isBounded() {
+			return growing.isEmpty();
+		}
+
+		/**
+		 * @throws IllegalStateException with the report if a metric grows without bound
+		 */
+		public void assertBounded() {
+			if (!isBounded()) {
+				throw new IllegalStateException(toString());
+			}
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder report = new StringBuilder();
+			Sample last = samples.get(samples.size() - 1);
+			report.append(cycles).append(" cycles in ").append(Duration.ofMillis(last.elapsedMillis)).append(", ").append(failedCollects).append(" failed collects, ")
+					.append(samples.size()).append(" samples: ")
+					.append(isBounded() ? "all metrics bounded" : "growing " + growing).append('\n');
+			report.append(String.format("%-22s %15s %15s %15s %15s%n", "metric", "first", "min", "max", "last"));
+			for (String metric : metrics()) {
+				long[] series = series(metric);
+				long min = Long.MAX_VALUE;
+				long max = Long.MIN_VALUE;
+				for (long value : series) {
+					min = Math.min(min, value);
+					max = Math.max(max, value);
+				}
+				report.append(String.format("%-22s %15d %15d %15d %15d%s%n", metric, series[0], min, max,
+						series[series.length - 1], growing.contains(metric) ? "  GROWING" : ""));
+			}
+			return report.toString();
+		}
+	}
+
+	public static void main(String[] args) {
+		Duration duration = args.length > 0 ? Duration.parse(args[0]) : Duration.ofMinutes(10);
+		StubbedCollector collector = new StubbedCollector();
+		collector.setDelayInSeconds(0);
+		collector.setCorrectOpCount(args.length > 1 ? Integer.parseInt(args[1]) : 100);
+		if (args.length > 2) {
+			collector.setScenario(args[2]);
+		}
+		Report report = new SoakRunner(collector, duration, 0, args.length > 3 ? Integer.parseInt(args[3]) : 50).run();
+		System.out.print(report);
+		if (!report.isBounded()) {
+			System.exit(1);
+		}
+	}
+}
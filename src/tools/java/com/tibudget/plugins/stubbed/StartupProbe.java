@@ -0,0 +1,59 @@
+package com.tibudget.plugins.stubbed;
+
+import com.tibudget.api.CollectorPlugin;
+import com.tibudget.dto.TransactionDto;
+
+import java.util.List;
+import java.util.ServiceLoader;
+
+/**
+ * Measures the cold start of the plugin, as a host sees it: from the {@link ServiceLoader} lookup to
+ * the first transaction. The first page is requested with a page size of 1, so generation stops as
+ * soon as one transaction exists.
+ * <p>
+ * Run it in a fresh JVM, for example to compare runs with and without a class data sharing archive
+ * (see the {@code appcds} profile of the build):
+ * <pre>
+ * java -cp &lt;classpath&gt; com.tibudget.plugins.stubbed.StartupProbe
+ * </pre>
+ * The {@code slim} profile also runs it on the minimised JAR, where it fails if a class the plugin needs
+ * was stripped.
+ */
+public final class StartupProbe {
+
+	private StartupProbe() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		long start = System.nanoTime();
+		StubbedCollector collector = null;
+		for (CollectorPlugin plugin : ServiceLoader.load(CollectorPlugin.class)) {
+			if (plugin instanceof StubbedCollector) {
+				collector = (StubbedCollector) plugin;
+				break;
+			}
+		}
+		if (collector == null) {
+			throw new IllegalStateException("StubbedCollector not found by the ServiceLoader");
+		}
+		long loaded = System.nanoTime();
+
+		collector.setDelayInSeconds(0);
+		collector.setPageSize(1);
+		if (!collector.validate().isEmpty()) {
+			throw new IllegalStateException("Invalid default configuration");
+		}
+		long validated = System.nanoTime();
+
+		collector.collect();
+		List<TransactionDto> first = collector.getTransactionPage(null).getTransactions();
+		long firstTransaction = System.nanoTime();
+		if (first.isEmpty()) {
+			throw new IllegalStateException("No transaction collected");
+		}
+
+		System.out.printf("ServiceLoader: %.1f ms, validate: %.1f ms, first transaction: %.1f ms, total: %.1f ms (%d transaction)%n",
+				(loaded - start) / 1e6, (validated - loaded) / 1e6, (firstTransaction - validated) / 1e6,
+				(firstTransaction - start) / 1e6, first.size());
+	}
+}